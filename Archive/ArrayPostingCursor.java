@@ -0,0 +1,26 @@
+package search.indexserver;
+
+import java.nio.IntBuffer;
+
+/**
+ * Posting cursor over docIds that have already been read into an array.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class ArrayPostingCursor extends BufferPostingCursor {
+
+	/**
+	 * @param docIds docIds in increasing order
+	 */
+	public ArrayPostingCursor(int[] docIds) {
+		this(docIds, docIds.length);
+	} // end ArrayPostingCursor constructor
+
+	/**
+	 * @param docIds docIds in increasing order
+	 * @param length number of docIds to use from the array
+	 */
+	public ArrayPostingCursor(int[] docIds, int length) {
+		super(IntBuffer.wrap(docIds, 0, length));
+	} // end ArrayPostingCursor constructor
+
+} // end ArrayPostingCursor class
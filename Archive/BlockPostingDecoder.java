@@ -0,0 +1,199 @@
+package search.indexserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decode a block-compressed (version 3) posting list.
+ * Blocks are read and unpacked one at a time, and advance() uses the skip headers
+ * to jump over blocks that cannot contain the target without reading them.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class BlockPostingDecoder implements PostingCursor {
+
+	private final PostingStore store;
+	private final int nDocs;
+	private final int nBlocks;
+	private final int[] lastDocIds;
+	private final int[] offsets;
+	private final long dataStart;
+	private final long hits;
+	private final int[] buffer;
+	private byte[] bytes;
+	private int block;
+	private int count;
+	private int index;
+	private int docId;
+
+	/**
+	 * Read the skip headers of a posting list, without access to its hit lists.
+	 * @param store chunk storage
+	 * @param ptr lexicon pointer for the word
+	 * @param nDocs lexicon document count for the word
+	 * @throws IOException
+	 */
+	public BlockPostingDecoder(PostingStore store, long ptr, int nDocs) throws IOException {
+		this(store, ptr, nDocs, -1);
+	} // end BlockPostingDecoder constructor
+
+	/**
+	 * Read the skip headers of a posting list.
+	 * @param store chunk storage
+	 * @param ptr lexicon pointer for the word
+	 * @param nDocs lexicon document count for the word
+	 * @param hits offset of the word's hit list offset table, or -1 if freq() is not needed
+	 * @throws IOException
+	 */
+	public BlockPostingDecoder(PostingStore store, long ptr, int nDocs, long hits) throws IOException {
+
+		this.store = store;
+		this.hits = hits;
+		this.nDocs = nDocs;
+		this.nBlocks = BlockPostingFormat.numBlocks(nDocs);
+		this.lastDocIds = new int [this.nBlocks];
+		this.offsets = new int [this.nBlocks];
+
+		byte[] headers = new byte [this.nBlocks * 8];
+		store.readFully(ptr + 8, headers, 0, headers.length);
+		ByteBuffer buf = ByteBuffer.wrap(headers);
+		for (int b = 0; b < this.nBlocks; b++) {
+			this.lastDocIds[b] = buf.getInt();
+			this.offsets[b] = buf.getInt();
+		} // end for
+
+		this.dataStart = ptr + 8 + headers.length;
+		this.buffer = new int [BlockPostingFormat.BLOCK_SIZE];
+		this.bytes = new byte [BlockPostingFormat.blockSize(BlockPostingFormat.BLOCK_SIZE, 32)];
+		this.block = -1;
+		this.count = 0;
+		this.index = 0;
+		this.docId = -1;
+
+	} // end BlockPostingDecoder constructor
+
+	public int docId() {
+		return this.docId;
+	} // end docId()
+
+	public int nextDoc() throws IOException {
+		if (this.docId == NO_MORE_DOCS) {
+			return NO_MORE_DOCS;
+		} // end if
+		if (++this.index >= this.count) {
+			if (this.block + 1 >= this.nBlocks) {
+				return this.docId = NO_MORE_DOCS;
+			} // end if
+			decodeBlock(this.block + 1);
+		} // end if
+		return this.docId = this.buffer[this.index];
+	} // end nextDoc()
+
+	public int advance(int target) throws IOException {
+
+		if (this.docId >= target) {
+			return this.docId;
+		} // end if
+
+		// skip whole blocks whose last docId is below the target, galloping over the
+		// skip headers so a far target costs a logarithmic number of probes
+		int b = Math.max(this.block, 0);
+		if (b < this.nBlocks && this.lastDocIds[b] < target) {
+			int lo = b;
+			int step = 1;
+			int hi = lo + step;
+			while (hi < this.nBlocks && this.lastDocIds[hi] < target) {
+				lo = hi;
+				step <<= 1;
+				hi = lo + step;
+			} // end while
+			hi = Math.min(hi, this.nBlocks);
+			while (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				if (this.lastDocIds[mid] < target) {
+					lo = mid;
+				} else {
+					hi = mid;
+				} // end if
+			} // end while
+			b = hi;
+		} // end if
+		if (b == this.nBlocks) {
+			return this.docId = NO_MORE_DOCS;
+		} // end if
+		if (b != this.block) {
+			decodeBlock(b);
+		} // end if
+
+		// the target is inside this block
+		while (this.buffer[this.index] < target) {
+			this.index++;
+		} // end while
+		return this.docId = this.buffer[this.index];
+
+	} // end advance()
+
+	public int freq() throws IOException {
+		if (this.hits < 0) {
+			return 1;
+		} // end if
+		int ordinal = this.block * BlockPostingFormat.BLOCK_SIZE + this.index;
+		return SeparatedPostingFormat.hitCount(this.store, this.hits, this.nDocs, ordinal);
+	} // end freq()
+
+	public int[] hits() throws IOException {
+		if (this.hits < 0) {
+			return null;
+		} // end if
+		int ordinal = this.block * BlockPostingFormat.BLOCK_SIZE + this.index;
+		return ChunkFormat.readHitList(this.store,
+				SeparatedPostingFormat.hitList(this.store, this.hits, this.nDocs, ordinal));
+	} // end hits()
+
+	public int cost() {
+		return this.nDocs;
+	} // end cost()
+
+	/**
+	 * @return last docId of each block, for callers that want to probe block ranges
+	 */
+	public int[] getLastDocIds() {
+		return this.lastDocIds;
+	} // end getLastDocIds()
+
+	/**
+	 * Read and unpack a block into the buffer and position the cursor on its first docId.
+	 * @param b block number
+	 * @throws IOException
+	 */
+	private void decodeBlock(int b) throws IOException {
+
+		int count = Math.min(BlockPostingFormat.BLOCK_SIZE, this.nDocs - b * BlockPostingFormat.BLOCK_SIZE);
+		long pos = this.dataStart + this.offsets[b];
+		int bitWidth = this.store.readUnsignedByte(pos);
+		int size = BlockPostingFormat.blockSize(count, bitWidth) - 1;
+		this.store.readFully(pos + 1, this.bytes, 0, size);
+
+		long mask = (1L << bitWidth) - 1;
+		long acc = 0;
+		int bits = 0;
+		int in = 0;
+		int prev = (b == 0) ? 0 : this.lastDocIds[b - 1];
+
+		for (int i = 0; i < count; i++) {
+			while (bits < bitWidth) {
+				acc |= (long) (this.bytes[in++] & 0xff) << bits;
+				bits += 8;
+			} // end while
+			prev += (int) (acc & mask);
+			this.buffer[i] = prev;
+			acc >>>= bitWidth;
+			bits -= bitWidth;
+		} // end for
+
+		this.block = b;
+		this.count = count;
+		this.index = 0;
+
+	} // end decodeBlock()
+
+} // end BlockPostingDecoder class
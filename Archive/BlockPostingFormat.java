@@ -0,0 +1,124 @@
+package search.indexserver;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Version 3 posting layout: like version 2, but the docIds of a word are delta-encoded and
+ * bit-packed in blocks of BLOCK_SIZE docs.
+ *
+ * The docId stream of a word is the long pointer into the hits area, then one skip header
+ * (last docId, byte offset of the block) per block, then the blocks. A block is one byte holding
+ * the bit width, followed by the deltas packed least significant bit first. The first delta of
+ * a block is taken from the last docId of the previous block (or 0 for the first block).
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class BlockPostingFormat extends SeparatedPostingFormat {
+
+	public static final int BLOCK_SIZE = 128;
+
+	/**
+	 * @param hitsArea offset of the hits area in the chunk
+	 */
+	public BlockPostingFormat(long hitsArea) {
+		super(hitsArea);
+	} // end BlockPostingFormat constructor
+
+	public int[] readDocIds(PostingStore store, long ptr, int nDocs, int limit) throws IOException {
+
+		if (nDocs < limit) {
+			limit = nDocs;
+		} // end if
+
+		int[] docIds = new int [limit];
+		BlockPostingDecoder decoder = new BlockPostingDecoder(store, ptr, nDocs);
+		for (int i = 0; i < limit; i++) {
+			docIds[i] = decoder.nextDoc();
+		} // end for
+
+		return docIds;
+
+	} // end readDocIds()
+
+	public PostingCursor cursor(PostingStore store, long ptr, int nDocs) throws IOException {
+		return new BlockPostingDecoder(store, ptr, nDocs, hitsStart(store, ptr));
+	} // end cursor()
+
+	/**
+	 * @param nDocs
+	 * @return number of blocks in a posting list of nDocs docIds
+	 */
+	public static int numBlocks(int nDocs) {
+		return (nDocs + BLOCK_SIZE - 1) / BLOCK_SIZE;
+	} // end numBlocks()
+
+	/**
+	 * @param count number of docIds in the block
+	 * @param bitWidth
+	 * @return size of an encoded block in bytes
+	 */
+	public static int blockSize(int count, int bitWidth) {
+		return 1 + (count * bitWidth + 7) / 8;
+	} // end blockSize()
+
+	/**
+	 * Encode the skip headers and blocks for a posting list (everything after the hits pointer).
+	 * @param out
+	 * @param docIds docIds in increasing order
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	public static long writeDocIds(DataOutput out, int[] docIds) throws IOException {
+
+		int nBlocks = numBlocks(docIds.length);
+		int[] bitWidths = new int [nBlocks];
+		int offset = 0;
+
+		// skip headers first, so work out each block's bit width and size
+		for (int b = 0; b < nBlocks; b++) {
+			int start = b * BLOCK_SIZE;
+			int end = Math.min(start + BLOCK_SIZE, docIds.length);
+			int prev = (b == 0) ? 0 : docIds[start - 1];
+			int max = 0;
+			for (int i = start; i < end; i++) {
+				max |= docIds[i] - prev;
+				prev = docIds[i];
+			} // end for
+			bitWidths[b] = 32 - Integer.numberOfLeadingZeros(max);
+			out.writeInt(docIds[end - 1]);
+			out.writeInt(offset);
+			offset += blockSize(end - start, bitWidths[b]);
+		} // end for
+
+		for (int b = 0; b < nBlocks; b++) {
+
+			int start = b * BLOCK_SIZE;
+			int end = Math.min(start + BLOCK_SIZE, docIds.length);
+			int prev = (b == 0) ? 0 : docIds[start - 1];
+			int bitWidth = bitWidths[b];
+
+			out.writeByte(bitWidth);
+
+			long acc = 0;
+			int bits = 0;
+			for (int i = start; i < end; i++) {
+				acc |= (long) (docIds[i] - prev) << bits;
+				bits += bitWidth;
+				prev = docIds[i];
+				while (bits >= 8) {
+					out.writeByte((int) acc);
+					acc >>>= 8;
+					bits -= 8;
+				} // end while
+			} // end for
+			if (bits > 0) {
+				out.writeByte((int) acc);
+			} // end if
+
+		} // end for
+
+		return 8L * nBlocks + offset;
+
+	} // end writeDocIds()
+
+} // end BlockPostingFormat class
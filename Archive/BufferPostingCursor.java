@@ -0,0 +1,94 @@
+package search.indexserver;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+/**
+ * Posting cursor over docIds held in an IntBuffer, such as a list cached off-heap by
+ * PostingListCache, or an array wrapped by ArrayPostingCursor. Reads are absolute, so many
+ * cursors may share one buffer.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class BufferPostingCursor implements PostingCursor {
+
+	private final IntBuffer docIds;
+	private final int length;
+	private int index;
+
+	/**
+	 * @param docIds docIds in increasing order, from index 0 to the buffer's limit
+	 */
+	public BufferPostingCursor(IntBuffer docIds) {
+		this.docIds = docIds;
+		this.length = docIds.limit();
+		this.index = -1;
+	} // end BufferPostingCursor constructor
+
+	public int docId() {
+		if (this.index < 0) {
+			return -1;
+		} // end if
+		return (this.index < this.length) ? this.docIds.get(this.index) : NO_MORE_DOCS;
+	} // end docId()
+
+	public int nextDoc() {
+		if (this.index < this.length) {
+			this.index++;
+		} // end if
+		return docId();
+	} // end nextDoc()
+
+	public int advance(int target) {
+
+		if (this.index < 0) {
+			this.index = 0;
+		} // end if
+		if (this.index >= this.length || this.docIds.get(this.index) >= target) {
+			return docId();
+		} // end if
+
+		// gallop: double the step until we pass the target, then binary search the last step
+		int lo = this.index;
+		int step = 1;
+		int hi = lo + step;
+		while (hi < this.length && this.docIds.get(hi) < target) {
+			lo = hi;
+			step <<= 1;
+			hi = lo + step;
+		} // end while
+		hi = Math.min(hi, this.length);
+
+		// docIds[lo] < target, and docIds[hi] >= target or hi == length
+		while (hi - lo > 1) {
+			int mid = (lo + hi) >>> 1;
+			if (this.docIds.get(mid) < target) {
+				lo = mid;
+			} else {
+				hi = mid;
+			} // end if
+		} // end while
+		this.index = hi;
+		return docId();
+
+	} // end advance()
+
+	public int freq() throws IOException {
+		return 1;
+	} // end freq()
+
+	public int[] hits() throws IOException {
+		return null;
+	} // end hits()
+
+	public int cost() {
+		return this.length;
+	} // end cost()
+
+	/**
+	 * @return position of the current docId in the buffer
+	 */
+	int ordinal() {
+		return this.index;
+	} // end ordinal()
+
+} // end BufferPostingCursor class
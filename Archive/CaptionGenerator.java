@@ -14,9 +14,7 @@ import search.indexbuilder.ContentChunkFile;
 import search.indexbuilder.DocIndexFile;
 import search.indexbuilder.Doc;
 
-import java.util.StringTokenizer;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.util.Arrays;
 
 /**
  * Generate Captions from query result documents.
@@ -26,13 +24,17 @@ public class CaptionGenerator implements Runnable {
 	
 	private int docID;
 	private String[] terms;
-	private Pattern[] termRegs;
+	private TermMatcher termMatcher;
 	private String captionResult;
+	private int[] highlights;
+	private int[] snippetTerms;
 	private boolean getPage;
 	private Doc returnDoc;
 	private ContentChunkFile conChunk;
 	public QLatch cglatch;
 	private DocIndexFile docInd;
+	private DocumentCache docCache;
+	private CaptionTextSidecar textSidecar;
 	private static final boolean DEBUG = true;
 	private Timer timer = new Timer("IndexServer",true);
 	
@@ -54,14 +56,7 @@ public class CaptionGenerator implements Runnable {
 		conChunk = ccf;
 		this.docID = docID;
 		this.terms = terms;
-		this.termRegs = new Pattern[terms.length];
-		
-		for (int i=0;i<terms.length;i++) {
-			StringBuilder regex = new StringBuilder("\\b");
-			regex.append(this.terms[i].toLowerCase());
-			regex.append("\\b");
-			termRegs[i] = Pattern.compile(regex.toString());
-		} // end for
+		this.termMatcher = new TermMatcher(terms);
 	} // end new CaptionGenerator() constructor
 	
 	
@@ -83,17 +78,22 @@ public class CaptionGenerator implements Runnable {
 		conChunk = ccf;
 		this.docID = docID;
 		this.terms = terms;
-		this.termRegs = new Pattern[terms.length];
-		
-		for (int i=0;i<terms.length;i++) {
-			StringBuilder regex = new StringBuilder("\\b");
-			regex.append(this.terms[i].toLowerCase());
-			regex.append("\\b");
-			termRegs[i] = Pattern.compile(regex.toString());
-		} // end for
+		this.termMatcher = new TermMatcher(terms);
 		
 	} // end CaptionGenerator() constructor
 	
+	/**
+	 * Constructor for CaptionGenerator that reads documents through a cache shared with other generators.
+	 * @param ccf The ContentChunkFile to be searched in.
+	 * @param dif The DocIndexFile to be used.
+	 * @param cache The DocumentCache shared by all caption workers.
+	 * @param docID The docID of the document to caption.
+	 */
+	public CaptionGenerator(ContentChunkFile ccf, DocIndexFile dif, DocumentCache cache, int docID, String[] terms, boolean pageOnly) {
+		this(ccf, dif, docID, terms, pageOnly);
+		docCache = cache;
+	} // end CaptionGenerator() constructor
+	
 //	public void setReturnMode(boolean in)
 //	{
 //		getPage = in;
@@ -145,12 +145,41 @@ public class CaptionGenerator implements Runnable {
 		return this.captionResult;
 	}
 	
+	/**
+	 * @return start and end (exclusive) of each query term in the snippet of getCaption(), in pairs
+	 */
+	public int[] getHighlights()
+	{
+		return this.highlights;
+	}
+	
+	/**
+	 * Make captions from the caption text sidecar of the content chunk, parsing the document's
+	 * HTML only if the sidecar does not hold it.
+	 * @param sidecar caption text sidecar, or null to always parse HTML
+	 */
+	public void setTextSidecar(CaptionTextSidecar sidecar)
+	{
+		this.textSidecar = sidecar;
+	}
+	
 	public void retrievePage()
 	{
-		long off = docInd.getDocPtr(docID);
-		returnDoc = conChunk.getDocAt(off);
+		returnDoc = fetchDoc();
 	}
 	
+	/**
+	 * Read the document from the cache if there is one, otherwise from the content chunk.
+	 * @return the document
+	 */
+	private Doc fetchDoc() {
+		if (docCache != null) {
+			return docCache.get(docID, docInd, conChunk);
+		} // end if
+		long off = docInd.getDocPtr(docID);
+		return conChunk.getDocAt(off);
+	} // end fetchDoc()
+	
 	/**
 	 * This internal method processes the data in terms and docID and uses them to generate a caption and puts that caption into result caption. 
 	 * @return the caption resulting from the last docID and terms input
@@ -162,12 +191,29 @@ public class CaptionGenerator implements Runnable {
 		
 //		debugPrint("Making caption...");
 		
+		// plain text from the sidecar needs neither the document nor an HTML parser
+		if (textSidecar != null) {
+			this.timer.startTimer("Get caption text from sidecar",method);
+			CaptionTextSidecar.Text text = textSidecar.get(docID);
+			this.timer.stopTimer(method);
+			if (text != null) {
+				makeCaption(text);
+				return;
+			} // end if
+		} // end if
+		
 		String htmlDoc,url;
 		StringBuilder caption;
 		
 		//StringBuilder created, about to open ContentChunk.
 //		debugPrint(".");
-		if(docInd != null)
+		if(docInd != null && docCache != null)
+		{
+			this.timer.startTimer("Get document from document cache",method);
+			returnDoc = fetchDoc();
+			this.timer.stopTimer(method);
+		}
+		else if(docInd != null)
 		{
 			this.timer.startTimer("Content Chunk opened, getting offset and retrieving document",method);
 			long off = docInd.getDocPtr(docID);
@@ -213,7 +259,7 @@ public class CaptionGenerator implements Runnable {
 			if (terms.length == 1)
 				snippet = snippetOne(pars);
 			else
-				snippet = snippetMulti(pars);
+				snippet = snippetMulti(htmlDoc, true);
 			
 		} catch (ParserException pe) {
 			pe.printStackTrace();
@@ -235,14 +281,12 @@ public class CaptionGenerator implements Runnable {
 		 * Quick and dirty search for title.
 		 * This should probably be fixed as it does not implement the HTML Parser.
 		 */
-		int titleLoc = htmlDoc.indexOf("<title>");
-		
 		this.timer.startTimer("Retrieve document title",method);
+		String title = htmlTitle(htmlDoc);
 		
-		if (titleLoc >= 0) {
+		if (title != null) {
 //			debugPrint("Found title, removing...");
-			int endTitle = htmlDoc.indexOf("</title>");
-			caption= new StringBuilder(htmlDoc.substring(titleLoc+7,endTitle));
+			caption= new StringBuilder(title);
 			caption.append("\n");
 		} else {
 //			debugPrint("No title found, using url as title...");
@@ -257,6 +301,7 @@ public class CaptionGenerator implements Runnable {
 		this.timer.startTimer("Assemble document content caption",method);
 		caption.append(url);
 		caption.append("\n");
+		highlights = highlight(caption.length(), snippet);
 		caption.append(snippet);
 		this.timer.stopTimer(method);
 		
@@ -267,6 +312,89 @@ public class CaptionGenerator implements Runnable {
 		this.timer.stopTimer(method);
 		
 	} // end makeCaption()
+	
+	/**
+	 * Make the caption from sidecar text, the same way makeCaption() does from HTML.
+	 * @param text caption text of the document
+	 */
+	private void makeCaption(CaptionTextSidecar.Text text) {
+		
+		// add new method to timer
+		Method method = timer.addMethod("makeCaption");
+		
+		this.timer.startTimer("Make document text snippet",method);
+		StringBuilder snippet = (terms.length == 1) ? snippetOne(text.body)
+				: snippetMulti(text.body, false);
+		this.timer.stopTimer(method);
+		
+		this.timer.startTimer("Assemble document text caption",method);
+		StringBuilder caption = new StringBuilder(text.title.length() > 0 ? text.title : text.url);
+		caption.append("\n");
+		caption.append(text.url);
+		caption.append("\n");
+		highlights = highlight(caption.length(), snippet);
+		caption.append(snippet);
+		this.captionResult = caption.toString();
+		this.timer.stopTimer(method);
+		
+	} // end makeCaption()
+	
+	/**
+	 * Quick search for the title of an HTML document.
+	 * @param html
+	 * @return the title, or null if the document has none
+	 */
+	static String htmlTitle(String html) {
+		int titleLoc = html.indexOf("<title>");
+		if (titleLoc < 0) {
+			return null;
+		} // end if
+		int endTitle = html.indexOf("</title>", titleLoc);
+		return (endTitle < 0) ? null : html.substring(titleLoc+7,endTitle);
+	} // end htmlTitle()
+	
+	/**
+	 * @param html
+	 * @return the text of an HTML document
+	 * @throws ParserException
+	 */
+	static String htmlText(String html) throws ParserException {
+		return convertToText(Parser.createParser(html, null));
+	} // end htmlText()
+	
+	/**
+	 * Cut text out around each occurrence of the term in plain text, as snippetOne(Parser) does
+	 * around the HTML nodes that hold it.
+	 */
+	private StringBuilder snippetOne(String text) {
+		
+		StringBuilder toRet = new StringBuilder();
+		appendTermWindows(text, toRet);
+		
+		// like the multi-term snippet, fall back to the start of the document
+		if (toRet.length() == 0) {
+			toRet.append(text, 0, Math.min(text.length(), 151));
+		} // end if
+		
+		return toRet;
+		
+	} // end snippetOne()
+
+	/**
+	 * Append the text within 50 chars of each term in text to toRet, until toRet holds 300 chars.
+	 */
+	private void appendTermWindows(String text, StringBuilder toRet) {
+		int from = 0;
+		while (toRet.length() < 300 && termMatcher.find(text, from)) {
+			int s = Math.max(termMatcher.start()-50, 0);
+			int e = Math.min(termMatcher.end()+50, text.length());
+			if (toRet.length() > 0) {
+				toRet.append(" ... ");
+			} // end if
+			toRet.append(text, s, e);
+			from = e;
+		} // end while
+	} // end appendTermWindows()
 
 	private StringBuilder snippetOne(Parser p) throws ParserException {
 		
@@ -280,7 +408,6 @@ public class CaptionGenerator implements Runnable {
 		
 		debugPrint("NodeList Length: " + nl.size());
 		
-		String term = terms[0];
 		StringBuilder toRet = new StringBuilder();
 		String temp;
 		
@@ -300,30 +427,7 @@ public class CaptionGenerator implements Runnable {
 				 * This section cuts chunks of text out of the file.
 				 */
 				this.timer.startTimer("Get document chunk closest to term",method);
-				while (toRet.length() < 300) {
-					
-					int targ = temp.indexOf(term);
-					int s,e;
-					
-					if (targ >= 0) {
-						
-						if (targ <= 50)
-							s = 0;
-						else
-							s=targ-50;
-						
-						if (temp.length() - (targ+50) <=0)
-							e = temp.length()-1;
-						else
-							e = targ+50;
-						
-						toRet.append(temp.substring(s,e));
-						
-					} else {
-						break;
-					} // end if
-					
-				} // end while
+				appendTermWindows(temp, toRet);
 				this.timer.stopTimer(method);
 				
 			} // end if
@@ -334,243 +438,54 @@ public class CaptionGenerator implements Runnable {
 		
 	} // end snippetOne()
 	
-	private StringBuilder snippetMulti(Parser p) throws ParserException {
+	/**
+	 * Make a snippet from the passage that covers the most query terms most densely.
+	 * @param doc document
+	 * @param html true if doc is HTML, false if it is plain text
+	 */
+	private StringBuilder snippetMulti(CharSequence doc, boolean html) {
 		
 		// add new method to timer
 		Method method = timer.addMethod("snippetMulti");
 		
-		String[] words = new String[3000];
-		
-		this.timer.startTimer("Convert parser to text string",method);
-		String full = convertToText(p);
+		this.timer.startTimer("Select passage covering the most terms",method);
+		PassageSelector.Passage passage = new PassageSelector(termMatcher, terms.length).select(doc, html);
 		this.timer.stopTimer(method);
 		
-		StringTokenizer sto = new StringTokenizer(full);
-		debugPrint("Full: "+full.length());
-		/*
-		 * First, we use the convertToText method to create a large string which contains all the text in the document
-		 * and then use StringTokenizer to create a 1000 element array of the first 1000 words in the array.
-		 */
-		int pos = 0;
-		this.timer.startTimer("Add snippet words to words array",method);
-		while (sto.hasMoreTokens() && pos < 1000) {
-			String temp = sto.nextToken();
-			words[pos] = temp;
-			pos++;
-		} // end while
-		int numOfWords = pos;
-		
-		this.timer.stopTimer(method);
-		
-		if(DEBUG)
-		{
-			System.out.println("Now Testing word Array, first 20 words:");
-			for(int k=0;k<20;k++)
-			{
-				System.out.print(words[k]+" ");
-			}
-		}
-		
-		/*
-		 * Now we get six ranked items from the array.
-		 */
-		double[] ranks = new double[6];
-		StringBuilder[] candidates = new StringBuilder[6];
-		pos = 0;
-		int docPos = 0;
-		double uniqueFound = 0;
-		int wordsInCurrent = 0;
-		boolean[] found = new boolean[terms.length];
-		
-		for (int b=0; b<found.length; b++) {
-			found[b] = false;
-		} // end for
-		
-		this.timer.startTimer("Make and rank snippets of text from document content",method);
-		
-		//Main search loop
-		while (docPos<numOfWords && pos < 6) {
-			
-			//First, check to see if we have more words left, if we don't, close up.
-			if (words[docPos] == null) {
-				
-				if (candidates[pos] != null) {
-					double rank = uniqueFound/terms.length;
-//					this.timer.startTimer("Add rank " + rank + " to term " + words[pos],method);
-					ranks[pos] = rank;
-					pos++;
-//					this.timer.stopTimer(method);
-				} // end if
-				
-				break;
-				
-			} else {
-				
-//				this.timer.startTimer("Check if word is a query term",method);
-				int t = isTerm(words[docPos]);
-//				this.timer.stopTimer(method);
-				
-				//If the current word is a term...
-				if (t != -1) {
-					
-					//First, note that we have found this:
-					if (!found[t]) {
-//						this.timer.startTimer("Query term found",method);
-						uniqueFound++;
-						found[t] = true;
-//						this.timer.stopTimer(method);
-					} // end if
-				
-					//Next, either create a new candidate StringBuilder, or append to the existing one.
-					if (candidates[pos] == null) {
-						
-//						this.timer.startTimer("Create new string builder and append to candidates array",method);
-						candidates[pos] = new StringBuilder(words[docPos]);
-						wordsInCurrent++;
-//						this.timer.stopTimer(method);
-					
-					//Otherwise, we are in the process of assembling a StringBuilder, we add this String, and note that we've found it.
-					} else {
-						
-//						this.timer.startTimer("Append existing string builder to candidates array",method);
-						candidates[pos].append(words[pos]);
-						wordsInCurrent++;
-//						this.timer.stopTimer(method);
-						
-					} // end if
-				
-				//Otherwise, if the current word is not a term,
-				} else {
-					
-					//If we're working on a candidate, we add this String to it.
-					if (candidates[pos] != null) {
-//						this.timer.startTimer("If we're working on a candidate, we add " + words[docPos] + " to candidates",method);
-						candidates[pos].append(" ");
-						candidates[pos].append(words[docPos]);
-//						this.timer.stopTimer(method);
-					} // end if
-					
-				} // end if
-			
-				//Finally, check if we're done with this stringbuilder...
-//				this.timer.startTimer("Check if we're done with string builder",method);
-				
-				if (candidates[pos]!=null) {
-					
-					if (wordsInCurrent > 50 || uniqueFound == terms.length) {
-						
-						ranks[pos] = uniqueFound/terms.length;
-						pos++;
-						uniqueFound = 0;
-						wordsInCurrent = 0;
-						
-						for (int b=0;b<found.length;b++) {
-							found[b] = false;
-						} // end for
-						
-					} // end if
-					
-				} // end if
-				
-//				this.timer.stopTimer(method);
-				
-				docPos++;
-				
-			} // end if
-			
-		} // end while
-		
-		this.timer.stopTimer(method);
-		
-		if(DEBUG)
-		{
-			System.out.println("DEBUG Ranks:");
-			for(int f=0;f<6;f++)
-			{
-				if(candidates[f]==null)
-					break;
-				System.out.println(candidates[f] + "|RANK:|" + ranks[f]);
-			}
-			if(candidates[0]!=null)
-			{
-				debugPrint("Doublechecking ranks:");
-				StringTokenizer stroc = new StringTokenizer(candidates[0].toString());
-				while(stroc.hasMoreTokens())
-				{
-					String w = stroc.nextToken();
-					debugPrint("Word: " + w + ", isTerm: "+isTerm(w));
-				}
-			}
-		}
-		
-		//We now have up to six potential candidates for the snippet, so we need to put them together.
-		StringBuilder snippet = new StringBuilder("");
-		int highestInd = 0;
-		double highestRank = 0;
-		
-		while (snippet.length() < 150) {
-			
-			highestInd = 0;
-			highestRank = 0;
-			
-			this.timer.startTimer("Find highest ranking candidate",method);
-			for (int i=0;i<pos-1;i++) {
-				if (highestRank < ranks[i]) {
-					highestRank = ranks[i];
-				} // end if
-			} // end for
-			this.timer.stopTimer(method);
-			
-			//If highestRank is > 0, then we have candidates to use:
-			if (highestRank > 0) {
-				
-				this.timer.startTimer("Append highest ranked candidate to snippet",method);
-				snippet.append(candidates[highestInd]);
-				ranks[highestInd] = 0;
-				this.timer.stopTimer(method);
-				
-			//Otherwise, we just take the beginning of the document:
-			} else {
-				
-				this.timer.startTimer("Append beginning of document to snippet",method);
-				if (full.length() < 151) {
-					snippet.append(full.substring(0,full.length()-1));
-				} else {
-					snippet.append(full.substring(0, 151));
-				} // end if
-				this.timer.stopTimer(method);
-				
-				break;
-				
-			} // end if
-			
-		} // end while
-		
-		return snippet;
+		snippetTerms = passage.termOffsets;
+		return new StringBuilder(passage.text);
 		
 	} // end snippetMulti()
 	
 	/**
-	 * 
-	 * @param s
-	 * @return the index of the term that s.equals(), or -1.
+	 * Find the query terms in the snippet, for highlighting.
+	 * @param base position of the snippet in the caption
+	 * @param snippet
+	 * @return start and end (exclusive) of each term in the caption, in pairs
 	 */
-	private int isTerm(String s) {
-		
-		int toRet = -1;
-		for (int i=0;i<terms.length;i++) {
-			Matcher m = termRegs[i].matcher(s.toLowerCase());
-			if (m.find()) {
-				toRet = i;
-				break;
+	private int[] highlight(int base, CharSequence snippet) {
+		if (snippetTerms != null) {
+			int[] offsets = new int [snippetTerms.length];
+			for (int i = 0; i < offsets.length; i++) {
+				offsets[i] = base + snippetTerms[i];
+			} // end for
+			return offsets;
+		} // end if
+		int[] offsets = new int [16];
+		int n = 0;
+		int at = 0;
+		while (termMatcher.find(snippet, at)) {
+			if (n + 2 > offsets.length) {
+				offsets = Arrays.copyOf(offsets, 2 * offsets.length);
 			} // end if
-		} // end for
-		
-		return toRet;
-		
-	} // end isTerm()
+			offsets[n++] = base + termMatcher.start();
+			offsets[n++] = base + termMatcher.end();
+			at = termMatcher.end();
+		} // end while
+		return Arrays.copyOf(offsets, n);
+	} // end highlight()
 	
-	private String convertToText(Parser con) throws ParserException {
+	private static String convertToText(Parser con) throws ParserException {
 		
 		NodeIterator ni = con.elements();
 		StringBuilder text = new StringBuilder("");
@@ -583,7 +498,7 @@ public class CaptionGenerator implements Runnable {
 		
 	} // end convertToText()
 	
-	private void processNodes(Node node,StringBuilder strb) {
+	private static void processNodes(Node node,StringBuilder strb) {
 		
 		if (node instanceof TextNode) {
 			
@@ -1,96 +1,161 @@
 package search.indexserver;
 import java.io.*;
 import  java.net.*;
-import java.util.Random;
-import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
-import search.indexbuilder.DocIndexFile;
-import search.indexbuilder.ContentChunkFile;
-
-public class CaptionListener 
+/**
+ * Caption server. Clients keep their connection open and send WireProtocol requests:
+ * CAPTION for one document's caption, or CAPTION_BATCH for a whole result page, whose
+ * captions are made in parallel and sent back together, null where not made within the
+ * batch's timeout. Each is answered with CAPTIONS (or ERROR) carrying the request's ID, as
+ * soon as it is ready, so requests on a connection do not wait for each other.
+ */
+public class CaptionListener
 {
-	
-	private static DocIndexFile docIndex;
-	private static ContentChunkFile contentFile;
-	
+
+	// time allowed for a batch when the request gives none
+	public static final long DEFAULT_BATCH_TIMEOUT_MILLIS = 500;
+
+	private static CaptionService captions;
+
+	// reader and writer threads of open connections, and threads waiting on batches
+	private static ExecutorService connections;
+
 	public static void main(String [] args) throws Exception
 	{
 		System.out.println("Reading config file...");
 		BufferedReader configRead = new BufferedReader(new FileReader("fileNums.config"));
 		int initNum = Integer.parseInt(configRead.readLine());
-		docIndex = new DocIndexFile(initNum);
-		contentFile = new ContentChunkFile(initNum);
-		
+
+		// optional second argument sets the number of caption threads (default: one per core)
+		int nWorkers = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		captions = new CaptionService(initNum, nWorkers, DocumentCache.DEFAULT_BUDGET);
+		if (captions.getTextSidecar() != null) {
+			System.out.println("! Making captions from " + captions.getTextSidecar().size() + " documents in "
+					+ CaptionTextSidecar.sidecarFile(initNum));
+		} // end if
+		connections = Executors.newCachedThreadPool();
+
 		ServerSocket listener = new ServerSocket(Integer.parseInt(args[0]));
-		System.out.println("! Listening on port: "+ listener.getLocalPort());
-		
+		System.out.println("! Listening on port: "+ listener.getLocalPort() + " with " + captions.getThreadCount() + " caption threads");
+
 		while(true)
-		{ 
-			Socket connection = listener.accept();
-			
+		{
+			final Socket connection = listener.accept();
+
 			System.out.println("! Accepted connection from: "+
 					connection.getRemoteSocketAddress()); //returns where the connection is from
-		
-			
-			BufferedReader clientIn = new  BufferedReader(
-					new InputStreamReader(connection.getInputStream()));
-			DataOutputStream clientOut = new DataOutputStream(
-					connection.getOutputStream());
-			
-			ObjectOutputStream out = new ObjectOutputStream(connection.getOutputStream());
-	        ObjectInputStream in = new ObjectInputStream(connection.getInputStream());
-			
-			
-	        System.out.println("Incoming string string about to be read");
-			
-			//reads an incoming string
-			String input = clientIn.readLine();
-			input.trim();
-			
-			
-		
-			StringTokenizer st = new StringTokenizer(input);
-			int count= st.countTokens();
-			
-			String[] queryArray = new String[count];
-				int index =0;
-				while(st.hasMoreTokens())
-				{
-					queryArray[index] = st.nextToken();
-					System.out.println(queryArray[index]+" read into the array");
-					index++;
-				}
-				
-				
-			System.out.println("String has been read " +input);
-			//reads the incoming doc id
-			int incoming = clientIn.read();
-			System.out.println("int has been read " + incoming);
-			
-			/*New CaptionGenerator System
-			 * Creating thread:
-			 */
-			CaptionGenerator capGen = new CaptionGenerator(contentFile,docIndex,incoming,queryArray,false);
-			Thread qThread = new Thread(capGen,"CaptionGenerator");
-			qThread.start();
-			capGen.cglatch.awaitZero();
-			
-			String caps = capGen.getCaption();
-				
-			System.out.println("A caption related to the id" + caps);
-			
-		
-			
-			out.writeObject(caps); //sends the caption info over the network over the network
-			//to FrontEndCaps which makes the caps available to FrontEnd
-			
-			System.out.println("The data object(cation) has been sent over the network");
-				
-			connection.close();
-			System.out.println("!Remote Client Disconnected: "+ connection.getInetAddress());
-			
+
+			connections.execute(new Runnable() {
+				public void run() {
+					serve(connection);
+				} // end run()
+			});
+
 		}
-		
+
+	}
+
+	/**
+	 * Read caption requests from a connection until the client closes it, and start each one.
+	 * Runs on the connection's reader thread.
+	 * @param connection
+	 */
+	private static void serve(Socket connection)
+	{
+		WireConnection wire = null;
+
+		try {
+
+			wire = new WireConnection(connection, connections);
+
+			WireProtocol.Message request;
+			while ((request = wire.read()) != null) {
+				caption(wire, request);
+			} // end while
+
+		} catch (Exception e) {
+			System.out.println("! Could not read caption request.");
+			e.printStackTrace();
+		} finally {
+			if (wire != null) {
+				// the writer closes the connection once the requests already read are answered
+				wire.finish();
+			} else {
+				try {
+					connection.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				} // end try/catch
+			} // end if
+		} // end try/catch/finally
+	}
+
+	/**
+	 * Start one caption request and answer it on the connection when it completes.
+	 * @param wire
+	 * @param request
+	 */
+	private static void caption(final WireConnection wire, WireProtocol.Message request)
+	{
+		final int requestId = request.getRequestId();
+
+		CompletableFuture<String[]> reply;
+		try {
+			if (request.getType() == WireProtocol.CAPTION) {
+				int docId = request.getVarInt();
+				String[] terms = request.getStrings();
+				reply = captions.captionAsync(terms, docId).thenApply(new Function<String, String[]>() {
+					public String[] apply(String caption) {
+						return new String[] { caption };
+					} // end apply()
+				});
+			} else if (request.getType() == WireProtocol.CAPTION_BATCH) {
+				int timeoutMillis = request.getVarInt();
+				final long timeout = (timeoutMillis > 0) ? timeoutMillis : DEFAULT_BATCH_TIMEOUT_MILLIS;
+				final int[] docIds = new int[request.getCount()];
+				for (int i = 0; i < docIds.length; i++) {
+					docIds[i] = request.getVarInt();
+				} // end for
+				final String[] terms = request.getStrings();
+				// the batch spreads its captions over the caption threads and waits here
+				reply = CompletableFuture.supplyAsync(new Supplier<String[]>() {
+					public String[] get() {
+						return captions.captions(terms, docIds, timeout);
+					} // end get()
+				}, connections);
+			} else {
+				wire.reply(WireProtocol.error(requestId, "Caption server does not answer requests of type " + request.getType()));
+				return;
+			} // end if
+		} catch (IOException e) {
+			wire.reply(WireProtocol.error(requestId, "Malformed caption request: " + e.getMessage()));
+			return;
+		} catch (RuntimeException e) {
+			// every request read must be answered, or the connection never closes
+			System.out.println("! Could not start caption request.");
+			e.printStackTrace();
+			wire.reply(WireProtocol.error(requestId, "Could not make captions: " + e));
+			return;
+		} // end try/catch
+
+		reply.whenComplete(new BiConsumer<String[], Throwable>() {
+			public void accept(String[] caps, Throwable failure) {
+				if (failure != null) {
+					System.out.println("! Could not serve caption request.");
+					failure.printStackTrace();
+					wire.reply(WireProtocol.error(requestId, "Could not make captions: " + failure));
+				} else {
+					wire.reply(new WireProtocol.Message(WireProtocol.CAPTIONS, requestId).putStrings(caps));
+				} // end if
+			} // end accept()
+		});
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,165 @@
+package search.indexserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import search.indexbuilder.ContentChunkFile;
+import search.indexbuilder.DocIndexFile;
+
+/**
+ * Makes captions for one content chunk, singly or a result page at a time.
+ * Batches are spread over a pool of caption threads and wait at most until their deadline.
+ * The document cache and caption text sidecar are shared; each thread opens its own doc index
+ * and content chunk, so reads never share a file position. The sidecar is mapped once, when
+ * the service starts; a sidecar rewritten later is only used after a restart.
+ * @author Sam Gunther, Adam Steinberger
+ */
+public class CaptionService {
+
+	private final int chunkNum;
+	private final DocumentCache docCache;
+	private final CaptionTextSidecar textSidecar;
+	private final ExecutorService pool;
+	private final int nThreads;
+
+	private final ThreadLocal<DocIndexFile> docIndex = new ThreadLocal<DocIndexFile>() {
+		protected DocIndexFile initialValue() {
+			return new DocIndexFile(chunkNum);
+		} // end initialValue()
+	};
+	private final ThreadLocal<ContentChunkFile> contentFile = new ThreadLocal<ContentChunkFile>() {
+		protected ContentChunkFile initialValue() {
+			return new ContentChunkFile(chunkNum);
+		} // end initialValue()
+	};
+
+	/**
+	 * @param chunkNum number of the content chunk
+	 * @param nThreads number of caption threads for batches
+	 * @param cacheBytes memory budget of the document cache
+	 */
+	public CaptionService(int chunkNum, int nThreads, long cacheBytes) {
+
+		this.chunkNum = chunkNum;
+		this.docCache = new DocumentCache(cacheBytes);
+		this.textSidecar = CaptionTextSidecar.open(chunkNum);
+		this.nThreads = Math.max(nThreads, 1);
+
+		final AtomicInteger count = new AtomicInteger();
+		this.pool = Executors.newFixedThreadPool(this.nThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CaptionGenerator-" + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			} // end newThread()
+		});
+
+	} // end CaptionService constructor
+
+	/**
+	 * Make one caption on the calling thread.
+	 * @param terms query terms
+	 * @param docId
+	 * @return the caption, or null if it could not be made
+	 */
+	public String caption(String[] terms, int docId) {
+		CaptionGenerator capGen = new CaptionGenerator(contentFile.get(), docIndex.get(), docCache, docId, terms, false);
+		capGen.setTextSidecar(textSidecar);
+		capGen.run();
+		return capGen.getCaption();
+	} // end caption()
+
+	/**
+	 * Make one caption on a caption thread.
+	 * @param terms query terms
+	 * @param docId
+	 * @return a future completed with the caption, or null if it could not be made
+	 */
+	public CompletableFuture<String> captionAsync(final String[] terms, final int docId) {
+		return CompletableFuture.supplyAsync(new Supplier<String>() {
+			public String get() {
+				return caption(terms, docId);
+			} // end get()
+		}, this.pool);
+	} // end captionAsync()
+
+	/**
+	 * Make the captions of a result page in parallel.
+	 * @param terms query terms, shared by all captions
+	 * @param docIds documents to caption
+	 * @param timeoutMillis time allowed for the whole batch
+	 * @return captions in the order of docIds; a caption not made by the deadline is null
+	 */
+	public String[] captions(final String[] terms, int[] docIds, long timeoutMillis) {
+
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>(docIds.length);
+
+		for (int i = 0; i < docIds.length; i++) {
+			final int docId = docIds[i];
+			futures.add(CompletableFuture.supplyAsync(new Supplier<String>() {
+				public String get() {
+					// a caption that could not start in time is not worth making
+					if (System.nanoTime() - deadline >= 0) {
+						return null;
+					} // end if
+					return caption(terms, docId);
+				} // end get()
+			}, this.pool));
+		} // end for
+
+		String[] captions = new String [docIds.length];
+		for (int i = 0; i < docIds.length; i++) {
+			try {
+				long left = Math.max(deadline - System.nanoTime(), 0);
+				captions[i] = futures.get(i).get(left, TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				captions[i] = null;
+			} catch (Exception e) {
+				System.out.println("! Could not make caption for docId " + docIds[i] + ".");
+				e.printStackTrace();
+				captions[i] = null;
+			} // end try/catch
+		} // end for
+
+		return captions;
+
+	} // end captions()
+
+	/**
+	 * @return the document cache, for its hit, miss and eviction counters
+	 */
+	public DocumentCache getDocumentCache() {
+		return this.docCache;
+	} // end getDocumentCache()
+
+	/**
+	 * @return the caption text sidecar, or null if the chunk has none
+	 */
+	public CaptionTextSidecar getTextSidecar() {
+		return this.textSidecar;
+	} // end getTextSidecar()
+
+	/**
+	 * @return number of caption threads for batches
+	 */
+	public int getThreadCount() {
+		return this.nThreads;
+	} // end getThreadCount()
+
+	/**
+	 * Stop the caption threads.
+	 */
+	public void shutdown() {
+		this.pool.shutdownNow();
+	} // end shutdown()
+
+} // end CaptionService class
@@ -0,0 +1,158 @@
+package search.indexserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import search.indexbuilder.ContentChunkFile;
+import search.indexbuilder.Doc;
+import search.indexbuilder.DocIndexFile;
+
+/**
+ * Write the caption text sidecar (content%016x.captions) for a content chunk, so captions can
+ * be made from plain text instead of parsing each document's HTML (see CaptionTextSidecar).
+ * Usage: CaptionSidecarWriter chunkNum firstDocId lastDocId
+ * @author Sam Gunther, Adam Steinberger
+ */
+public class CaptionSidecarWriter {
+
+	// captions only look near the start of a document, so longer bodies are cut
+	public static final int MAX_BODY_CHARS = 1 << 15;
+
+	/**
+	 * Write the sidecar for a content chunk. The file is written under a temporary name and
+	 * atomically renamed over the old one, so a caption server starting up never sees a partial
+	 * sidecar. A running caption server keeps serving the sidecar it mapped at startup, and
+	 * only picks up the new one when it is restarted.
+	 * @param chunkNum number of the content chunk
+	 * @param firstDocId first docId to write
+	 * @param lastDocId last docId to write; docIds the chunk does not hold are skipped
+	 * @return number of documents written
+	 * @throws IOException
+	 */
+	public static int write(int chunkNum, int firstDocId, int lastDocId) throws IOException {
+		return write(new DocIndexFile(chunkNum), new ContentChunkFile(chunkNum),
+				CaptionTextSidecar.sidecarFile(chunkNum), firstDocId, lastDocId);
+	} // end write()
+
+	/**
+	 * Write a sidecar from an open content chunk.
+	 * @param docIndex doc index of the chunk
+	 * @param contentFile content chunk
+	 * @param sidecar sidecar file to write
+	 * @param firstDocId first docId to write
+	 * @param lastDocId last docId to write; docIds the chunk does not hold are skipped
+	 * @return number of documents written
+	 * @throws IOException
+	 */
+	public static int write(DocIndexFile docIndex, ContentChunkFile contentFile, File sidecar,
+			int firstDocId, int lastDocId) throws IOException {
+
+		File temp = new File(sidecar.getPath() + ".tmp");
+		File texts = new File(sidecar.getPath() + ".texts.tmp");
+
+		// write the texts first, remembering where each one starts
+		int[] docIds = new int [1024];
+		long[] offsets = new long [1024];
+		int n = 0;
+		long pos = 0;
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(texts), 1 << 16));
+		for (int docId = firstDocId; docId <= lastDocId; docId++) {
+
+			Doc doc = contentFile.getDocAt(docIndex.getDocPtr(docId));
+			if (doc == null || doc.content == null) {
+				continue;
+			} // end if
+
+			String title = CaptionGenerator.htmlTitle(doc.content);
+			String body;
+			try {
+				body = QueryResultCache.normalize(CaptionGenerator.htmlText(doc.content));
+			} catch (Exception e) {
+				System.out.println("! Could not parse document " + docId + ", skipping it.");
+				continue;
+			} // end try/catch
+			if (body.length() > MAX_BODY_CHARS) {
+				body = body.substring(0, MAX_BODY_CHARS);
+			} // end if
+
+			if (n == docIds.length) {
+				docIds = Arrays.copyOf(docIds, 2 * n);
+				offsets = Arrays.copyOf(offsets, 2 * n);
+			} // end if
+			docIds[n] = docId;
+			offsets[n] = pos;
+			n++;
+
+			pos += writeString(out, (title == null) ? "" : title);
+			pos += writeString(out, (doc.url == null) ? "" : doc.url);
+			pos += writeString(out, body);
+
+		} // end for
+		out.close();
+
+		// then the header and index, followed by the texts
+		long textStart = CaptionTextSidecar.HEADER_SIZE + (long) n * CaptionTextSidecar.RECORD_SIZE;
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		out.writeLong(CaptionTextSidecar.MAGIC);
+		out.writeInt(n);
+		for (int i = 0; i < n; i++) {
+			out.writeInt(docIds[i]);
+			out.writeLong(textStart + offsets[i]);
+		} // end for
+		InputStream in = new BufferedInputStream(new FileInputStream(texts), 1 << 16);
+		byte[] buf = new byte [1 << 16];
+		int r;
+		while ((r = in.read(buf)) > 0) {
+			out.write(buf, 0, r);
+		} // end while
+		in.close();
+		out.close();
+		texts.delete();
+
+		// one atomic rename, so the sidecar is never missing or partial, even for a moment
+		Files.move(temp.toPath(), sidecar.toPath(),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		return n;
+
+	} // end write()
+
+	/**
+	 * @return number of bytes written
+	 */
+	private static int writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes(CompactLexicon.UTF8);
+		out.writeInt(b.length);
+		out.write(b);
+		return 4 + b.length;
+	} // end writeString()
+
+	/**
+	 * The main sidecar writing method.
+	 */
+	public static void main(String[] args) {
+
+		try {
+
+			int chunkNum = Integer.parseInt(args[0]);
+			int docs = write(chunkNum, Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+			System.out.println("! Wrote " + docs + " documents to " + CaptionTextSidecar.sidecarFile(chunkNum));
+
+		} catch (Exception e) {
+			System.out.println("! Could not write caption text sidecar.");
+			e.printStackTrace();
+		} // end try/catch
+
+	} // end main()
+
+} // end CaptionSidecarWriter class
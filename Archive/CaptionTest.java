@@ -0,0 +1,265 @@
+package search.indexserver;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import search.common.LogLibrary;
+import search.indexbuilder.ContentChunkFile;
+import search.indexbuilder.Doc;
+import search.indexbuilder.DocIndexFile;
+
+/**
+ * Test the pieces of caption making: passages chosen by PassageSelector against a brute-force
+ * search over all windows, the words of HtmlTokenStream, and CaptionService batches served
+ * from a caption text sidecar.
+ * @author Sam Gunther, Adam Steinberger
+ */
+public class CaptionTest {
+
+	private static LogLibrary logs;
+
+	// content chunk number no real chunk uses, so the test sidecar cannot replace a real one
+	private static final int TEST_CHUNK = 0xfffffff;
+
+	private static final String[] TERMS = {"a", "b", "c", "d"};
+
+	/**
+	 * Brute force: over the first MAX_WORDS words, the window of at most MAX_WINDOW words that
+	 * covers the most distinct terms, then is the shortest, then the earliest.
+	 * @param ids term number of each word, -1 for other words
+	 * @return distinct terms covered, first word and end (exclusive) of the window
+	 */
+	private static int[] bestWindow(int[] ids) {
+		int n = Math.min(ids.length, PassageSelector.MAX_WORDS);
+		int[] best = {0, 0, 0};
+		for (int right = 0; right < n; right++) {
+			for (int left = Math.max(0, right - PassageSelector.MAX_WINDOW + 1); left <= right; left++) {
+				Set<Integer> covered = new HashSet<Integer>();
+				for (int i = left; i <= right; i++) {
+					if (ids[i] >= 0) {
+						covered.add(ids[i]);
+					} // end if
+				} // end for
+				int d = covered.size();
+				if (d > best[0] || (d == best[0] && d > 0 && right + 1 - left < best[2] - best[1])) {
+					best = new int [] {d, left, right + 1};
+				} // end if
+			} // end for
+		} // end for
+		return best;
+	} // end bestWindow()
+
+	/**
+	 * On 3000 random documents the passage must cover as many terms as the best window, start
+	 * CONTEXT_WORDS before it and hold its last word, and its term offsets must mark terms.
+	 * Word i of a document is "x-i", or "t-i" for a term t, so a word gives its own position.
+	 */
+	private static boolean checkPassages() {
+		Random rand = new Random(11);
+		for (int t = 0; t < 3000; t++) {
+
+			int nTerms = 2 + rand.nextInt(3);
+			String[] terms = Arrays.copyOf(TERMS, nTerms);
+			int n = 1 + rand.nextInt(rand.nextBoolean() ? 60 : 1500);
+			double p = rand.nextDouble() * 0.3;
+			int[] ids = new int [n];
+			StringBuilder doc = new StringBuilder();
+			for (int i = 0; i < n; i++) {
+				ids[i] = (rand.nextDouble() < p) ? rand.nextInt(nTerms) : -1;
+				doc.append((ids[i] >= 0) ? terms[ids[i]] : "x").append('-').append(i).append(' ');
+			} // end for
+
+			int[] best = bestWindow(ids);
+			PassageSelector.Passage passage = new PassageSelector(new TermMatcher(terms), nTerms).select(doc, false);
+			if (passage.termsCovered != best[0]) {
+				System.out.println("! Passage covers " + passage.termsCovered + " terms, not " + best[0]);
+				return false;
+			} // end if
+
+			String[] words = passage.text.split(" ");
+			int from = Integer.parseInt(words[0].substring(words[0].indexOf('-') + 1));
+			int expectedFrom = (best[0] == 0) ? 0 : Math.max(best[1] - PassageSelector.CONTEXT_WORDS, 0);
+			if (from != expectedFrom
+					|| (best[0] > 0 && !Arrays.asList(words).contains(terms[ids[best[2] - 1]] + "-" + (best[2] - 1)))) {
+				System.out.println("! Passage \"" + passage.text + "\" is not the window [" + best[1] + ", " + best[2] + ")");
+				return false;
+			} // end if
+
+			for (int k = 0; k < passage.termOffsets.length; k += 2) {
+				String term = passage.text.substring(passage.termOffsets[k], passage.termOffsets[k + 1]);
+				if (!Arrays.asList(terms).contains(term)) {
+					System.out.println("! Term offsets mark \"" + term + "\"");
+					return false;
+				} // end if
+			} // end for
+
+		} // end for
+		return true;
+	} // end checkPassages()
+
+	/**
+	 * @return every word of a token stream
+	 */
+	private static List<String> words(HtmlTokenStream tokens) {
+		List<String> words = new ArrayList<String>();
+		while (tokens.next()) {
+			words.add(tokens.token().toString());
+		} // end while
+		return words;
+	} // end words()
+
+	/**
+	 * HTML words must skip tags, comments, scripts and styles and decode entities; plain text
+	 * words must match StringTokenizer, cut at MAX_TOKEN_LENGTH.
+	 */
+	private static boolean checkTokenStream() {
+
+		String html = "<html><head><title>T &amp; U</title><script type=x>var a = '<b>no</b>';</script>"
+				+ "<style>p{x:y}</style></head><body><!-- hidden <p>c</p> --><p>Black&nbsp;cat&#44; sat</p>"
+				+ "on<b>the</b> mat &foo; &#x41;BC <scriptx>keep</scriptx> end";
+		List<String> expected = Arrays.asList("T", "&", "U", "Black", "cat,", "sat", "on", "the", "mat",
+				"&foo;", "ABC", "keep", "end");
+		if (!words(new HtmlTokenStream(html)).equals(expected)) {
+			System.out.println("! HTML words " + words(new HtmlTokenStream(html)));
+			return false;
+		} // end if
+
+		Random rand = new Random(3);
+		String[] pieces = {"cat", "<b>", "&amp;", " ", "  ", "\n", "\t", "x"};
+		for (int t = 0; t < 2000; t++) {
+			StringBuilder text = new StringBuilder();
+			int n = rand.nextInt(50);
+			for (int i = 0; i < n; i++) {
+				text.append(pieces[rand.nextInt(pieces.length)]);
+				if (rand.nextInt(100) == 0) {
+					text.append(new String(new char [300]).replace('\0', 'y'));
+				} // end if
+			} // end for
+			List<String> words = new ArrayList<String>();
+			StringTokenizer st = new StringTokenizer(text.toString());
+			while (st.hasMoreTokens()) {
+				String word = st.nextToken();
+				words.add(word.substring(0, Math.min(word.length(), HtmlTokenStream.MAX_TOKEN_LENGTH)));
+			} // end while
+			if (!words(HtmlTokenStream.plainText(text)).equals(words)) {
+				System.out.println("! Plain text words differ on \"" + text + "\"");
+				return false;
+			} // end if
+		} // end for
+
+		return true;
+
+	} // end checkTokenStream()
+
+	/**
+	 * A batch must give each document its own caption, in the order asked, and a batch too
+	 * large for its deadline must return near the deadline with the captions it has.
+	 */
+	private static boolean checkService() throws Exception {
+
+		ContentChunkFile chunk = new ContentChunkFile(TEST_CHUNK) {
+			public Doc getDocAt(long ptr) {
+				Doc doc = new Doc();
+				StringBuilder content = new StringBuilder("<title>Doc " + ptr + "</title>");
+				for (int i = 0; i < 2000; i++) {
+					content.append((i == 50) ? " black cat w" : " w").append(i);
+				} // end for
+				doc.content = content.toString();
+				doc.url = "http://x/" + ptr;
+				return doc;
+			} // end getDocAt()
+		};
+		DocIndexFile index = new DocIndexFile(TEST_CHUNK) {
+			public long getDocPtr(int docId) {
+				return docId;
+			} // end getDocPtr()
+		};
+
+		File sidecar = CaptionTextSidecar.sidecarFile(TEST_CHUNK);
+		try {
+
+			CaptionSidecarWriter.write(index, chunk, sidecar, 0, 99);
+			CaptionService service = new CaptionService(TEST_CHUNK, 4, 1 << 20);
+			String[] terms = {"black", "cat"};
+
+			int[] docIds = new int [100];
+			for (int i = 0; i < docIds.length; i++) {
+				docIds[i] = (i * 37) % 100;
+			} // end for
+			String[] captions = service.captions(terms, docIds, 10000);
+			for (int i = 0; i < docIds.length; i++) {
+				if (captions[i] == null || !captions[i].startsWith("Doc " + docIds[i] + "\nhttp://x/" + docIds[i] + "\n")
+						|| !captions[i].contains("black cat")) {
+					System.out.println("! Wrong caption for docId " + docIds[i] + ": " + captions[i]);
+					return false;
+				} // end if
+			} // end for
+			if (!captions[1].equals(service.caption(terms, docIds[1]))
+					|| !captions[2].equals(service.captionAsync(terms, docIds[2]).get())) {
+				System.out.println("! Single captions differ from batch captions");
+				return false;
+			} // end if
+
+			int[] many = new int [20000];
+			for (int i = 0; i < many.length; i++) {
+				many[i] = i % 100;
+			} // end for
+			long start = System.nanoTime();
+			captions = service.captions(terms, many, 20);
+			long millis = (System.nanoTime() - start) / 1000000;
+			int made = 0;
+			for (String caption : captions) {
+				if (caption != null) {
+					made++;
+				} // end if
+			} // end for
+			service.shutdown();
+			return made < many.length && millis < 1000;
+
+		} finally {
+			sidecar.delete();
+		} // end try/finally
+
+	} // end checkService()
+
+	/**
+	 * The main test method.
+	 */
+	public static void main(String[] args) {
+
+		try {
+
+			logs = LogLibrary.instance("CaptionTest.log");
+
+			if (checkPassages()) {
+				logs.log("Caption Server", "no risk", "passage selection test passed");
+			} else {
+				logs.log("Caption Server", "high risk", "passage selection test failed");
+			} // end if
+
+			if (checkTokenStream()) {
+				logs.log("Caption Server", "no risk", "token stream test passed");
+			} else {
+				logs.log("Caption Server", "high risk", "token stream test failed");
+			} // end if
+
+			if (checkService()) {
+				logs.log("Caption Server", "no risk", "caption service test passed");
+			} else {
+				logs.log("Caption Server", "high risk", "caption service test failed");
+			} // end if
+
+		} catch (Exception e) {
+			System.out.println("! Could not run the caption test.");
+			e.printStackTrace();
+		} // end try/catch
+
+	} // end main()
+
+} // end CaptionTest class
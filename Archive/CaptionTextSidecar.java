@@ -0,0 +1,153 @@
+package search.indexserver;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Caption text sidecar of a content chunk (content%016x.captions): the title, URL and
+ * whitespace-normalized body text of each document, so captions can be made without parsing
+ * HTML. The file is read in place through a memory map and is safe to share between threads.
+ *
+ * The sidecar starts with MAGIC and the number of documents, then one (int docId, long offset)
+ * index record per document in increasing docId order, then the documents themselves:
+ * title, URL and body, each as an int length followed by that many UTF-8 bytes.
+ * Sidecars are written by CaptionSidecarWriter.
+ * @author Sam Gunther, Adam Steinberger
+ */
+public class CaptionTextSidecar {
+
+	// "SKCAPTXT"
+	public static final long MAGIC = 0x534B434150545854L;
+	public static final int HEADER_SIZE = 12;
+	public static final int RECORD_SIZE = 12;
+
+	/**
+	 * Caption text of one document.
+	 */
+	public static class Text {
+
+		public final String title;
+		public final String url;
+		public final String body;
+
+		public Text(String title, String url, String body) {
+			this.title = title;
+			this.url = url;
+			this.body = body;
+		} // end Text constructor
+
+	} // end Text class
+
+	private final PostingStore file;
+	private final int size;
+
+	/**
+	 * Map a sidecar file.
+	 * @param f sidecar file
+	 * @throws IOException if the file is not a caption text sidecar
+	 */
+	public CaptionTextSidecar(File f) throws IOException {
+
+		this.file = new MappedPostingStore(f);
+
+		if (this.file.readLong(0) != MAGIC) {
+			this.file.close();
+			throw new IOException(f + " is not a caption text sidecar");
+		} // end if
+
+		this.size = this.file.readInt(8);
+
+	} // end CaptionTextSidecar constructor
+
+	/**
+	 * @param chunkNum number of the content chunk
+	 * @return the sidecar file for the chunk
+	 */
+	public static File sidecarFile(int chunkNum) {
+		return new File(String.format("content%1$016x.captions", chunkNum));
+	} // end sidecarFile()
+
+	/**
+	 * Map the sidecar of a content chunk, if it has one.
+	 * @param chunkNum number of the content chunk
+	 * @return the sidecar, or null if there is no usable sidecar
+	 */
+	public static CaptionTextSidecar open(int chunkNum) {
+
+		File f = sidecarFile(chunkNum);
+		if (!f.exists()) {
+			return null;
+		} // end if
+
+		try {
+			return new CaptionTextSidecar(f);
+		} catch (IOException e) {
+			System.out.println("! Could not map caption text sidecar, parsing HTML instead.");
+			System.out.println(e);
+			return null;
+		} // end try/catch
+
+	} // end open()
+
+	/**
+	 * Look up the caption text of a document.
+	 * @param docId
+	 * @return caption text, or null if the document is not in the sidecar
+	 */
+	public Text get(int docId) {
+
+		try {
+
+			int lo = 0, hi = this.size - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int id = this.file.readInt(record(mid));
+				if (id < docId) {
+					lo = mid + 1;
+				} else if (id > docId) {
+					hi = mid - 1;
+				} else {
+					long pos = this.file.readLong(record(mid) + 4);
+					String title = readString(pos);
+					pos += 4 + this.file.readInt(pos);
+					String url = readString(pos);
+					pos += 4 + this.file.readInt(pos);
+					return new Text(title, url, readString(pos));
+				} // end if
+			} // end while
+
+		} catch (IOException e) {
+			System.out.println("! Could not read caption text sidecar.");
+			e.printStackTrace();
+		} // end try/catch
+
+		return null;
+
+	} // end get()
+
+	/**
+	 * @return number of documents in the sidecar
+	 */
+	public int size() {
+		return this.size;
+	} // end size()
+
+	/**
+	 * Release the mapped file.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		this.file.close();
+	} // end close()
+
+	private long record(int index) {
+		return HEADER_SIZE + (long) index * RECORD_SIZE;
+	} // end record()
+
+	private String readString(long pos) throws IOException {
+		byte[] b = new byte [this.file.readInt(pos)];
+		this.file.readFully(pos + 4, b, 0, b.length);
+		return new String(b, CompactLexicon.UTF8);
+	} // end readString()
+
+} // end CaptionTextSidecar class
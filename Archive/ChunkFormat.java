@@ -0,0 +1,158 @@
+package search.indexserver;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Versions and shared layout of chunk%016x.index files.
+ *
+ * Version 1 (interleaved) has no header. It starts with the lex map boundary, followed by the
+ * lex area and then the index area, where each docId is followed by its hit list.
+ *
+ * Version 2 (separated) starts with MAGIC | 2, the lex map boundary and the offset of the hits area.
+ * The lexicon pointer of a word leads to its docId stream: a long pointer into the hits area
+ * followed by nDocs contiguous docIds. The hits area holds, for each word, nDocs int offsets
+ * followed by the hit lists they address, so docIds can be read without touching hit lists.
+ *
+ * Version 3 (blocked) has the same layout as version 2, except that the docIds of a word are
+ * delta-encoded and bit-packed in blocks with skip headers (see BlockPostingFormat).
+ *
+ * A hit list is a one byte hit count (or 0xff followed by a two byte count for long lists),
+ * followed by two bytes per hit.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class ChunkFormat {
+
+	// "SKEARCH" followed by the version byte; far larger than any lex map boundary
+	public static final long MAGIC = 0x534B454152434800L;
+
+	public static final int INTERLEAVED = 1;
+	public static final int SEPARATED = 2;
+	public static final int BLOCKED = 3;
+
+	// largest number of hits a hit list can hold
+	public static final int MAX_HITS = 0xffff;
+
+	/**
+	 * Detect the format version of a chunk.
+	 * @param store chunk storage
+	 * @return
+	 * @throws IOException
+	 */
+	public static int version(PostingStore store) throws IOException {
+		long first = store.readLong(0);
+		if ((first & ~0xffL) == MAGIC) {
+			return (int) (first & 0xff);
+		} // end if
+		return INTERLEAVED;
+	} // end version()
+
+	/**
+	 * @param version
+	 * @return offset of the lex map boundary
+	 */
+	public static long boundaryOffset(int version) {
+		return (version == INTERLEAVED) ? 0 : 8;
+	} // end boundaryOffset()
+
+	/**
+	 * @param version
+	 * @return offset of the first lexicon entry
+	 */
+	public static long lexStart(int version) {
+		return (version == INTERLEAVED) ? 8 : 24;
+	} // end lexStart()
+
+	/**
+	 * Create the posting format for a chunk.
+	 * @param version
+	 * @param store chunk storage
+	 * @return
+	 * @throws IOException
+	 */
+	public static PostingFormat postingFormat(int version, PostingStore store) throws IOException {
+		switch (version) {
+		case INTERLEAVED:
+			return new InterleavedPostingFormat();
+		case SEPARATED:
+			return new SeparatedPostingFormat(store.readLong(16));
+		case BLOCKED:
+			return new BlockPostingFormat(store.readLong(16));
+		default:
+			throw new IOException("Unknown index chunk version " + version);
+		} // end switch
+	} // end postingFormat()
+
+	/**
+	 * Read the hit list header at pos and return size of that hitlist, including the header.
+	 * @param store
+	 * @param pos offset of the hit list
+	 * @return
+	 * @throws IOException
+	 */
+	public static int hitListSize(PostingStore store, long pos) throws IOException {
+		int hitListSize = store.readUnsignedByte(pos);
+		if (hitListSize < 0xff) {
+			return hitListSize * 2 + 1;
+		} else {
+			return store.readUnsignedShort(pos + 1) * 2 + 3;
+		} // end if
+	} // end hitListSize()
+
+	/**
+	 * Read the hit list header at pos and return the number of hits in that hit list.
+	 * @param store
+	 * @param pos offset of the hit list
+	 * @return
+	 * @throws IOException
+	 */
+	public static int hitCount(PostingStore store, long pos) throws IOException {
+		int nHits = store.readUnsignedByte(pos);
+		return (nHits < 0xff) ? nHits : store.readUnsignedShort(pos + 1);
+	} // end hitCount()
+
+	/**
+	 * Decode the hit list at pos.
+	 * @param store
+	 * @param pos offset of the hit list
+	 * @return
+	 * @throws IOException
+	 */
+	public static int[] readHitList(PostingStore store, long pos) throws IOException {
+		int nHits = store.readUnsignedByte(pos++);
+		if (nHits == 0xff) {
+			nHits = store.readUnsignedShort(pos);
+			pos += 2;
+		} // end if
+		int[] hits = new int [nHits];
+		for (int i = 0; i < nHits; i++) {
+			hits[i] = store.readUnsignedShort(pos);
+			pos += 2;
+		} // end for
+		return hits;
+	} // end readHitList()
+
+	/**
+	 * Encode a hit list.
+	 * @param out
+	 * @param hits
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	public static int writeHitList(DataOutput out, int[] hits) throws IOException {
+		int nHits = Math.min(hits.length, MAX_HITS);
+		int size = 1;
+		if (nHits < 0xff) {
+			out.writeByte(nHits);
+		} else {
+			out.writeByte(0xff);
+			out.writeShort(nHits);
+			size += 2;
+		} // end if
+		for (int i = 0; i < nHits; i++) {
+			out.writeShort(hits[i]);
+		} // end for
+		return size + nHits * 2;
+	} // end writeHitList()
+
+} // end ChunkFormat class
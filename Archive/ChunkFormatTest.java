@@ -0,0 +1,403 @@
+package search.indexserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import search.common.LogLibrary;
+
+/**
+ * Test writing and reading index chunks in each format version.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class ChunkFormatTest {
+
+	private static LogLibrary logs;
+
+	private static final String[] WORDS = {"black", "cat", "hello", "search", "world"};
+
+	/**
+	 * Build random posting lists for the test words.
+	 */
+	private static void makePostings(int[][] docIds, int[][][] hits) {
+		Random rand = new Random(7);
+		for (int w = 0; w < WORDS.length; w++) {
+			int nDocs = 1 + rand.nextInt(400);
+			docIds[w] = new int [nDocs];
+			hits[w] = new int [nDocs][];
+			int docId = rand.nextInt(10);
+			for (int d = 0; d < nDocs; d++) {
+				docIds[w][d] = docId;
+				docId += 1 + rand.nextInt(50);
+				// make some hit lists long enough to need the two byte count
+				hits[w][d] = new int [rand.nextInt(10) == 0 ? 300 : rand.nextInt(8)];
+				for (int h = 0; h < hits[w][d].length; h++) {
+					hits[w][d][h] = rand.nextInt(0x10000);
+				} // end for
+			} // end for
+		} // end for
+	} // end makePostings()
+
+	/**
+	 * Check that a reader returns the expected docIds and hit lists.
+	 */
+	private static boolean check(InvertedIndexFileReader reader, int[][] docIds, int[][][] hits) {
+		if (reader.getDocIds("nosuchword", 10).length != 0) {
+			return false;
+		} // end if
+		for (int w = 0; w < WORDS.length; w++) {
+			if (!Arrays.equals(docIds[w], reader.getDocIds(WORDS[w], docIds[w].length))) {
+				return false;
+			} // end if
+			int[] head = reader.getDocIds(WORDS[w], 3);
+			if (!Arrays.equals(Arrays.copyOf(docIds[w], head.length), head)) {
+				return false;
+			} // end if
+			for (int d = 0; d < docIds[w].length; d += 7) {
+				if (!Arrays.equals(hits[w][d], reader.getHits(WORDS[w], d))) {
+					return false;
+				} // end if
+			} // end for
+		} // end for
+
+		// AND of the first two words must match a plain intersection
+		ArrayDeque<String> words = new ArrayDeque<String>();
+		words.add(WORDS[0]);
+		words.add(WORDS[1]);
+		int[] expected = new int [Math.min(docIds[0].length, docIds[1].length)];
+		int n = 0;
+		for (int i = 0, j = 0; i < docIds[0].length && j < docIds[1].length; ) {
+			if (docIds[0][i] < docIds[1][j]) {
+				i++;
+			} else if (docIds[0][i] > docIds[1][j]) {
+				j++;
+			} else {
+				expected[n++] = docIds[0][i];
+				i++;
+				j++;
+			} // end if
+		} // end for
+		int[] anded = reader.queryAND(words, 1000);
+		if (!Arrays.equals(Arrays.copyOf(expected, n), anded == null ? new int [0] : anded)) {
+			return false;
+		} // end if
+
+		// ranking cursors must see each doc's hit list length as its term frequency
+		try {
+			for (int w = 0; w < WORDS.length; w++) {
+				PostingCursor cursor = reader.getCursor(WORDS[w]);
+				for (int d = 0; d < docIds[w].length; d++) {
+					if (cursor.nextDoc() != docIds[w][d] || cursor.freq() != hits[w][d].length) {
+						return false;
+					} // end if
+				} // end for
+			} // end for
+		} catch (IOException e) {
+			return false;
+		} // end try/catch
+
+		// WAND must find the same top docs as scoring every doc
+		words.clear();
+		int docCount = 0;
+		for (int w = 0; w < WORDS.length; w++) {
+			docCount = Math.max(docCount, docIds[w].length);
+		} // end for
+		RankedSearch.Term[] terms = new RankedSearch.Term [WORDS.length];
+		for (int w = 0; w < WORDS.length; w++) {
+			words.add(WORDS[w]);
+			terms[w] = new RankedSearch.Term(reader.getCursor(WORDS[w]), docIds[w].length, docCount);
+		} // end for
+		try {
+			ScoredDocIds ranked = reader.queryRanked(words, 10);
+			ScoredDocIds all = RankedSearch.scoredDocs(terms, 10, false);
+			return ranked != null && ranked.getDocIds().length == 10
+					&& Arrays.equals(all.getDocIds(), ranked.getDocIds())
+					&& Arrays.equals(all.getScores(), ranked.getScores());
+		} catch (IOException e) {
+			return false;
+		} // end try/catch
+	} // end check()
+
+	private static final String[] DOCS = {
+		"the black cat sat on the mat",
+		"a cat that is black",
+		"black and white cat",
+		"the cat sat near the black mat" };
+
+	/**
+	 * Write a chunk holding DOCS, with each word's positions as its hit lists.
+	 */
+	private static void writeDocs(File f, int version) throws IOException {
+		Map<String,List<int[]>> postings = new TreeMap<String,List<int[]>>();
+		for (int d = 0; d < DOCS.length; d++) {
+			String[] words = DOCS[d].split(" ");
+			for (int p = 0; p < words.length; p++) {
+				List<int[]> list = postings.get(words[p]);
+				if (list == null) {
+					list = new ArrayList<int[]>();
+					postings.put(words[p], list);
+				} // end if
+				// postings are {docId, position}
+				list.add(new int [] {d, p});
+			} // end for
+		} // end for
+		ChunkIndexWriter writer = new ChunkIndexWriter(f, version);
+		for (Map.Entry<String,List<int[]>> e : postings.entrySet()) {
+			List<Integer> docIds = new ArrayList<Integer>();
+			List<List<Integer>> hits = new ArrayList<List<Integer>>();
+			for (int[] posting : e.getValue()) {
+				if (docIds.isEmpty() || docIds.get(docIds.size() - 1) != posting[0]) {
+					docIds.add(posting[0]);
+					hits.add(new ArrayList<Integer>());
+				} // end if
+				hits.get(hits.size() - 1).add(posting[1]);
+			} // end for
+			int[] ids = new int [docIds.size()];
+			int[][] h = new int [ids.length][];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = docIds.get(i);
+				h[i] = new int [hits.get(i).size()];
+				for (int j = 0; j < h[i].length; j++) {
+					h[i][j] = hits.get(i).get(j);
+				} // end for
+			} // end for
+			writer.addWord(e.getKey(), ids, h);
+		} // end for
+		writer.close();
+	} // end writeDocs()
+
+	/**
+	 * @return docIds matching a query with phrases or NEAR/k
+	 */
+	private static int[] query(InvertedIndexFileReader reader, String query) {
+		ArrayDeque<String> words = new ArrayDeque<String>();
+		List<Proximity> proximity = new ArrayList<Proximity>();
+		QueryThread.parseQuery(query, words, proximity);
+		int[] docIds = reader.queryAND(words, 10, null, proximity);
+		return (docIds == null) ? new int [0] : docIds;
+	} // end query()
+
+	/**
+	 * Check phrase and NEAR/k queries against DOCS.
+	 */
+	private static boolean checkProximity(InvertedIndexFileReader reader) {
+		return Arrays.equals(new int [] {0, 1, 2, 3}, query(reader, "black cat"))
+				&& Arrays.equals(new int [] {0}, query(reader, "\"black cat\""))
+				&& Arrays.equals(new int [] {0}, query(reader, "\"black cat\" mat"))
+				&& Arrays.equals(new int [] {0}, query(reader, "black NEAR/2 cat"))
+				&& Arrays.equals(new int [] {0, 1, 2}, query(reader, "cat NEAR/3 black"))
+				&& Arrays.equals(new int [] {3}, query(reader, "\"cat sat\" black NEAR/1 mat"))
+				&& Arrays.equals(new int [0], query(reader, "\"cat black\""));
+	} // end checkProximity()
+
+	/**
+	 * Check that queries that cannot be parsed fail on their own, leaving the query thread
+	 * to answer the queries after them.
+	 */
+	private static boolean checkBadQueries(InvertedIndexFileReader reader) throws Exception {
+
+		BlockingDeque<Query> queue = new LinkedBlockingDeque<Query>();
+		QueryThread qThread = new QueryThread(reader, queue, false);
+		Thread t = new Thread(qThread, "ChunkFormatTest-QueryThread");
+		t.setDaemon(true);
+		t.start();
+
+		try {
+			String[] bad = {"black NEAR/99999999999 cat", "||", "black NEAR/2 \"cat sat\"", "NEAR/2 cat"};
+			boolean ok = true;
+			for (String q : bad) {
+				Query search = new Query(q, 10);
+				queue.addLast(search);
+				try {
+					search.getResult().get(5, TimeUnit.SECONDS);
+				} catch (ExecutionException e) {
+					// failing is fine; never completing is not
+				} // end try/catch
+			} // end for
+
+			// an out of range NEAR/k is a plain word, so this query matches nothing
+			Query outOfRange = new Query("black NEAR/99999999999 cat", 10);
+			Query good = new Query("black NEAR/2 cat", 10);
+			queue.addLast(outOfRange);
+			queue.addLast(good);
+			int[] none = outOfRange.getResult().get(5, TimeUnit.SECONDS);
+			ok &= (none == null || none.length == 0);
+			ok &= Arrays.equals(new int [] {0}, good.getResult().get(5, TimeUnit.SECONDS));
+			return ok;
+		} catch (TimeoutException e) {
+			return false;
+		} finally {
+			qThread.kill();
+		} // end try/catch/finally
+
+	} // end checkBadQueries()
+
+	/**
+	 * Reads that run past the end of a truncated chunk must throw IOException on every backend,
+	 * however many bytes of the read are still inside the chunk.
+	 */
+	private static boolean checkTruncatedReads() throws IOException {
+		File f = File.createTempFile("chunk", ".index");
+		f.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(f);
+		out.write(new byte [] {1, 2, 3, 4, 5, 6, 7});
+		out.close();
+		for (StorageBackend backend : StorageBackend.values()) {
+			PostingStore store = backend.open(f);
+			try {
+				if (store.readInt(3) != 0x04050607) {
+					return false;
+				} // end if
+				for (int width : new int [] {1, 2, 4, 8}) {
+					try {
+						switch (width) {
+						case 1: store.readUnsignedByte(7); break;
+						case 2: store.readUnsignedShort(6); break;
+						case 4: store.readInt(4); break;
+						default: store.readLong(0); break;
+						} // end switch
+						return false;
+					} catch (IOException e) {
+						// expected
+					} // end try/catch
+				} // end for
+			} finally {
+				store.close();
+			} // end try/finally
+		} // end for
+		return true;
+	} // end checkTruncatedReads()
+
+	/**
+	 * The main test method.
+	 */
+	public static void main(String[] args) {
+
+		try {
+
+			logs = LogLibrary.instance("ChunkFormatTest.log");
+
+			int[][] docIds = new int [WORDS.length][];
+			int[][][] hits = new int [WORDS.length][][];
+			makePostings(docIds, hits);
+
+			File v1 = File.createTempFile("chunk", ".index");
+			File v2 = File.createTempFile("chunk", ".index");
+			File v3 = File.createTempFile("chunk", ".index");
+			v1.deleteOnExit();
+			v2.deleteOnExit();
+			v3.deleteOnExit();
+
+			// write the old interleaved layout and read it back
+			ChunkIndexWriter writer = new ChunkIndexWriter(v1, ChunkFormat.INTERLEAVED);
+			for (int w = 0; w < WORDS.length; w++) {
+				writer.addWord(WORDS[w], docIds[w], hits[w]);
+			} // end for
+			writer.close();
+
+			InvertedIndexFileReader reader = new InvertedIndexFileReader(v1, false, StorageBackend.MAPPED);
+			if (reader.getVersion() == ChunkFormat.INTERLEAVED && check(reader, docIds, hits)) {
+				logs.log("Index Server", "no risk", "interleaved chunk test passed");
+			} else {
+				logs.log("Index Server", "high risk", "interleaved chunk test failed");
+			} // end if
+
+			// migrate it to the newer layouts and read those back with each backend
+			ChunkIndexConverter.convert(reader, new ChunkIndexWriter(v2, ChunkFormat.SEPARATED));
+			ChunkIndexConverter.convert(reader, new ChunkIndexWriter(v3, ChunkFormat.BLOCKED));
+
+			File[] files = {v2, v3};
+			for (File f : files) {
+				for (StorageBackend backend : StorageBackend.values()) {
+					reader = new InvertedIndexFileReader(f, false, backend);
+					if (check(reader, docIds, hits)) {
+						logs.log("Index Server", "no risk", "version " + reader.getVersion()
+								+ " chunk test passed on " + backend);
+					} else {
+						logs.log("Index Server", "high risk", "version " + reader.getVersion()
+								+ " chunk test failed on " + backend);
+					} // end if
+				} // end for
+			} // end for
+
+			// the lexicon sidecar must give the same answers as the loaded lexicon
+			LexiconSidecarWriter.write(v3);
+			reader = new InvertedIndexFileReader(v3, false, StorageBackend.MAPPED, true);
+			if (reader.getLexicon() instanceof MappedLexicon && check(reader, docIds, hits)) {
+				logs.log("Index Server", "no risk", "lexicon sidecar test passed");
+			} else {
+				logs.log("Index Server", "high risk", "lexicon sidecar test failed");
+			} // end if
+
+			// a sidecar older than its chunk must not be used, even if the length still matches
+			v3.setLastModified(v3.lastModified() + 2000);
+			reader = new InvertedIndexFileReader(v3, false, StorageBackend.MAPPED, true);
+			if (!(reader.getLexicon() instanceof MappedLexicon) && check(reader, docIds, hits)) {
+				logs.log("Index Server", "no risk", "stale lexicon sidecar test passed");
+			} else {
+				logs.log("Index Server", "high risk", "stale lexicon sidecar test failed");
+			} // end if
+			MappedLexicon.sidecarFile(v3).delete();
+
+			// docIds served from the posting list cache must match those read from the chunk
+			reader = new InvertedIndexFileReader(v3, false, StorageBackend.MAPPED);
+			reader.setPostingCache(new PostingListCache(1 << 20, 1));
+			reader.pinPostings(Arrays.asList(WORDS[0]));
+			if (check(reader, docIds, hits) && check(reader, docIds, hits)
+					&& reader.getPostingCache().getHits() > 0) {
+				logs.log("Index Server", "no risk", "posting list cache test passed");
+			} else {
+				logs.log("Index Server", "high risk", "posting list cache test failed");
+			} // end if
+
+			// phrases and NEAR/k must be checked against word positions in every format
+			for (int version = ChunkFormat.INTERLEAVED; version <= ChunkFormat.BLOCKED; version++) {
+				File f = File.createTempFile("chunk", ".index");
+				f.deleteOnExit();
+				writeDocs(f, version);
+				reader = new InvertedIndexFileReader(f, false, StorageBackend.MAPPED);
+				if (checkProximity(reader)) {
+					logs.log("Index Server", "no risk", "version " + version + " proximity test passed");
+				} else {
+					logs.log("Index Server", "high risk", "version " + version + " proximity test failed");
+				} // end if
+			} // end for
+
+			// a query that cannot be parsed must not take its query thread down with it
+			File f = File.createTempFile("chunk", ".index");
+			f.deleteOnExit();
+			writeDocs(f, ChunkFormat.BLOCKED);
+			if (checkBadQueries(new InvertedIndexFileReader(f, false, StorageBackend.MAPPED))) {
+				logs.log("Index Server", "no risk", "bad query test passed");
+			} else {
+				logs.log("Index Server", "high risk", "bad query test failed");
+			} // end if
+
+			if (checkTruncatedReads()) {
+				logs.log("Index Server", "no risk", "truncated chunk test passed");
+			} else {
+				logs.log("Index Server", "high risk", "truncated chunk test failed");
+			} // end if
+
+			System.out.println("Chunk sizes: v1 " + v1.length() + ", v2 " + v2.length() + ", v3 " + v3.length());
+
+		} catch (Exception e) {
+			System.out.println("! Could not run the chunk format test.");
+			e.printStackTrace();
+		} // end try/catch
+
+	} // end main()
+
+} // end ChunkFormatTest class
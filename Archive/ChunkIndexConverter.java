@@ -0,0 +1,63 @@
+package search.indexserver;
+
+import java.io.File;
+
+/**
+ * Rewrite an index chunk in another format version.
+ * The converted chunk is written next to the original as chunk%016x.index.new, so chunks
+ * can be migrated one at a time by renaming it over the original.
+ * Usage: ChunkIndexConverter docId [version]
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class ChunkIndexConverter {
+
+	/**
+	 * Copy every posting list of a reader's chunk into a writer.
+	 * @param reader
+	 * @param writer
+	 * @return number of words copied
+	 * @throws Exception
+	 */
+	public static int convert(InvertedIndexFileReader reader, ChunkIndexWriter writer) throws Exception {
+
+		Lexicon lexicon = reader.getLexicon();
+		for (int i = 0; i < lexicon.size(); i++) {
+			int nDocs = lexicon.nDocs(i);
+			int[] docIds = new int [nDocs];
+			int[][] hits = new int [nDocs][];
+			reader.getFormat().readPostings(reader.getStore(), lexicon.ptr(i), nDocs, docIds, hits);
+			writer.addWord(lexicon.word(i), docIds, hits);
+		} // end for
+		writer.close();
+
+		return lexicon.size();
+
+	} // end convert()
+
+	/**
+	 * The main conversion method.
+	 */
+	public static void main(String[] args) {
+
+		try {
+
+			int docId = Integer.parseInt(args[0]);
+			int version = args.length > 1 ? Integer.parseInt(args[1]) : ChunkFormat.BLOCKED;
+
+			String filename = String.format("chunk%1$016x.index", docId);
+			InvertedIndexFileReader reader = new InvertedIndexFileReader(new File(filename), false, null);
+			ChunkIndexWriter writer = new ChunkIndexWriter(new File(filename + ".new"), version);
+
+			System.out.println("! Converting " + filename + " from version " + reader.getVersion()
+					+ " to version " + version);
+			int words = convert(reader, writer);
+			System.out.println("! Wrote " + words + " words to " + filename + ".new");
+
+		} catch (Exception e) {
+			System.out.println("! Could not convert index chunk.");
+			e.printStackTrace();
+		} // end try/catch
+
+	} // end main()
+
+} // end ChunkIndexConverter class
@@ -0,0 +1,195 @@
+package search.indexserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Write an index chunk in any of the ChunkFormat versions.
+ * Posting lists are spooled to temporary files as words are added, and the header and
+ * lexicon are written in front of them on close().
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class ChunkIndexWriter {
+
+	private final File file;
+	private final int version;
+	private final ArrayList<Entry> lexicon;
+	private final File docsTemp;
+	private final File hitsTemp;
+	private final DataOutputStream docsOut;
+	private final DataOutputStream hitsOut;
+	private long docsSize;
+	private long hitsSize;
+
+	/**
+	 * Start writing a new chunk.
+	 * @param f chunk file
+	 * @param version ChunkFormat version to write
+	 * @throws IOException
+	 */
+	public ChunkIndexWriter(File f, int version) throws IOException {
+
+		if (version < ChunkFormat.INTERLEAVED || version > ChunkFormat.BLOCKED) {
+			throw new IOException("Cannot write index chunk version " + version);
+		} // end if
+
+		this.file = f;
+		this.version = version;
+		this.lexicon = new ArrayList<Entry>();
+		this.docsTemp = File.createTempFile("docs", ".tmp", f.getAbsoluteFile().getParentFile());
+		this.hitsTemp = File.createTempFile("hits", ".tmp", f.getAbsoluteFile().getParentFile());
+		this.docsOut = open(this.docsTemp);
+		this.hitsOut = open(this.hitsTemp);
+
+	} // end ChunkIndexWriter constructor
+
+	/**
+	 * Add the posting list of a word.
+	 * @param word
+	 * @param docIds docIds in increasing order
+	 * @param hits hit list for each docId
+	 * @throws IOException
+	 */
+	public void addWord(String word, int[] docIds, int[][] hits) throws IOException {
+
+		this.lexicon.add(new Entry(word, docIds.length, this.docsSize));
+
+		if (this.version == ChunkFormat.INTERLEAVED) {
+
+			for (int i = 0; i < docIds.length; i++) {
+				this.docsOut.writeInt(docIds[i]);
+				this.docsSize += 4 + ChunkFormat.writeHitList(this.docsOut, hits[i]);
+			} // end for
+
+		} else {
+
+			// docId stream: pointer into the hits area, then the docIds
+			this.docsOut.writeLong(this.hitsSize);
+			if (this.version == ChunkFormat.BLOCKED) {
+				this.docsSize += 8 + BlockPostingFormat.writeDocIds(this.docsOut, docIds);
+			} else {
+				for (int i = 0; i < docIds.length; i++) {
+					this.docsOut.writeInt(docIds[i]);
+				} // end for
+				this.docsSize += 8 + 4L * docIds.length;
+			} // end if
+
+			// hits area: offset table, then the hit lists
+			int offset = 0;
+			for (int i = 0; i < hits.length; i++) {
+				this.hitsOut.writeInt(offset);
+				offset += hitListSize(hits[i]);
+			} // end for
+			for (int i = 0; i < hits.length; i++) {
+				ChunkFormat.writeHitList(this.hitsOut, hits[i]);
+			} // end for
+			this.hitsSize += 4L * hits.length + offset;
+
+		} // end if
+
+	} // end addWord()
+
+	/**
+	 * Write the header and lexicon, then append the spooled posting lists.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+
+		this.docsOut.close();
+		this.hitsOut.close();
+
+		Collections.sort(this.lexicon, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return a.word.compareTo(b.word);
+			} // end compare()
+		});
+
+		// the lex map boundary counts each word without its newline, which is how
+		// the reader accounts for the lex area; pointers are real file offsets
+		long lexStart = ChunkFormat.lexStart(this.version);
+		long boundary = lexStart;
+		long docsArea = lexStart;
+		for (Entry e : this.lexicon) {
+			boundary += e.bytes.length + 12;
+			docsArea += e.bytes.length + 13;
+		} // end for
+		long hitsArea = docsArea + this.docsSize;
+
+		DataOutputStream out = open(this.file);
+
+		if (this.version != ChunkFormat.INTERLEAVED) {
+			out.writeLong(ChunkFormat.MAGIC | this.version);
+		} // end if
+		out.writeLong(boundary);
+		if (this.version != ChunkFormat.INTERLEAVED) {
+			out.writeLong(hitsArea);
+		} // end if
+
+		for (Entry e : this.lexicon) {
+			out.write(e.bytes);
+			out.writeByte('\n');
+			out.writeInt(e.nDocs);
+			out.writeLong(docsArea + e.ptr);
+		} // end for
+
+		copy(this.docsTemp, out);
+		copy(this.hitsTemp, out);
+		out.close();
+
+		this.docsTemp.delete();
+		this.hitsTemp.delete();
+
+	} // end close()
+
+	/**
+	 * @param hits
+	 * @return encoded size of a hit list
+	 */
+	private static int hitListSize(int[] hits) {
+		int nHits = Math.min(hits.length, ChunkFormat.MAX_HITS);
+		return (nHits < 0xff ? 1 : 3) + nHits * 2;
+	} // end hitListSize()
+
+	private static DataOutputStream open(File f) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+	} // end open()
+
+	private static void copy(File f, DataOutputStream out) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(f), 1 << 16);
+		byte[] buf = new byte [1 << 16];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		} // end while
+		in.close();
+	} // end copy()
+
+	/**
+	 * Lexicon entry waiting to be written.
+	 */
+	private static class Entry {
+
+		final String word;
+		final byte[] bytes;
+		final int nDocs;
+		final long ptr;
+
+		Entry(String w, int nd, long pt) throws IOException {
+			word = w;
+			bytes = w.getBytes("UTF-8");
+			nDocs = nd;
+			ptr = pt;
+		} // end Entry constructor
+
+	} // end Entry class
+
+} // end ChunkIndexWriter class
@@ -0,0 +1,343 @@
+package search.indexserver;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * In-heap lexicon without per-word objects.
+ * Words are front-coded in blocks of BLOCK_SIZE: the first word of a block is stored whole,
+ * and each following word as the length of the prefix it shares with the previous word plus
+ * the remaining suffix. nDocs and pointers are kept in parallel int[] and long[] arrays.
+ * Lookups binary search the first word of each block, then scan one block.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class CompactLexicon implements Lexicon {
+
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int BLOCK_SIZE = 16;
+
+	private final byte[] data;
+	private final int[] blockOffsets;
+	private final int[] nDocs;
+	private final long[] ptrs;
+	private final int size;
+	private final int maxWordLength;
+
+	private CompactLexicon(byte[] data, int[] blockOffsets, int[] nDocs, long[] ptrs,
+			int size, int maxWordLength) {
+		this.data = data;
+		this.blockOffsets = blockOffsets;
+		this.nDocs = nDocs;
+		this.ptrs = ptrs;
+		this.size = size;
+		this.maxWordLength = maxWordLength;
+	} // end CompactLexicon constructor
+
+	public int find(String word) {
+
+		byte[] key = word.getBytes(UTF8);
+		if (this.size == 0) {
+			return -1;
+		} // end if
+
+		// find the last block whose first word is <= key
+		int lo = 0, hi = this.blockOffsets.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			int pos = this.blockOffsets[mid];
+			int len = readVInt(pos);
+			pos += vIntSize(len);
+			if (compare(this.data, pos, len, key, 0, key.length) <= 0) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			} // end if
+		} // end while
+
+		// scan the block for the key
+		byte[] scratch = new byte [this.maxWordLength];
+		int ordinal = lo * BLOCK_SIZE;
+		int end = Math.min(ordinal + BLOCK_SIZE, this.size);
+		int pos = this.blockOffsets[lo];
+		for (; ordinal < end; ordinal++) {
+			long next = decodeWord(pos, ordinal % BLOCK_SIZE == 0, scratch);
+			pos = (int) (next >>> 32);
+			int len = (int) next;
+			int cmp = compare(scratch, 0, len, key, 0, key.length);
+			if (cmp == 0) {
+				return ordinal;
+			} else if (cmp > 0) {
+				break;
+			} // end if
+		} // end for
+
+		return -1;
+
+	} // end find()
+
+	public int nDocs(int ordinal) {
+		return this.nDocs[ordinal];
+	} // end nDocs()
+
+	public long ptr(int ordinal) {
+		return this.ptrs[ordinal];
+	} // end ptr()
+
+	public String word(int ordinal) {
+		byte[] scratch = new byte [this.maxWordLength];
+		int block = ordinal / BLOCK_SIZE;
+		int pos = this.blockOffsets[block];
+		int len = 0;
+		for (int i = block * BLOCK_SIZE; i <= ordinal; i++) {
+			long next = decodeWord(pos, i % BLOCK_SIZE == 0, scratch);
+			pos = (int) (next >>> 32);
+			len = (int) next;
+		} // end for
+		return new String(scratch, 0, len, UTF8);
+	} // end word()
+
+	public int size() {
+		return this.size;
+	} // end size()
+
+	public long memoryFootprint() {
+		// array headers are about 16 bytes each
+		return 16 * 4 + this.data.length + 4L * this.blockOffsets.length
+				+ 4L * this.nDocs.length + 8L * this.ptrs.length;
+	} // end memoryFootprint()
+
+	/**
+	 * Decode the word at pos into scratch, which holds the previous word of the block.
+	 * @return position of the next word in the high 32 bits, length of this word in the low 32 bits
+	 */
+	private long decodeWord(int pos, boolean first, byte[] scratch) {
+		int prefix = 0;
+		if (!first) {
+			prefix = readVInt(pos);
+			pos += vIntSize(prefix);
+		} // end if
+		int suffix = readVInt(pos);
+		pos += vIntSize(suffix);
+		System.arraycopy(this.data, pos, scratch, prefix, suffix);
+		return ((long) (pos + suffix) << 32) | (prefix + suffix);
+	} // end decodeWord()
+
+	private int readVInt(int pos) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = this.data[pos++];
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	} // end readVInt()
+
+	private static int vIntSize(int value) {
+		int n = 1;
+		while ((value >>>= 7) != 0) {
+			n++;
+		} // end while
+		return n;
+	} // end vIntSize()
+
+	/**
+	 * Compare two byte ranges as unsigned bytes.
+	 */
+	static int compare(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+		int n = Math.min(aLen, bLen);
+		for (int i = 0; i < n; i++) {
+			int cmp = (a[aOff + i] & 0xff) - (b[bOff + i] & 0xff);
+			if (cmp != 0) {
+				return cmp;
+			} // end if
+		} // end for
+		return aLen - bLen;
+	} // end compare()
+
+	/**
+	 * Collect lexicon entries and front-code them into a CompactLexicon.
+	 * Words may be added in any order; if the same word is added twice the last entry wins.
+	 */
+	public static class Builder {
+
+		private byte[] words = new byte [1 << 16];
+		private int wordsLength = 0;
+		private int[] starts = new int [1024];
+		private int[] nDocs = new int [1024];
+		private long[] ptrs = new long [1024];
+		private int size = 0;
+		private boolean sorted = true;
+
+		/**
+		 * Add a word given as UTF-8 bytes.
+		 * @param b
+		 * @param off
+		 * @param len
+		 * @param nd nDocs
+		 * @param pt pointer
+		 */
+		public void add(byte[] b, int off, int len, int nd, long pt) {
+
+			// starts holds one more entry than there are words
+			if (this.size + 1 == this.starts.length) {
+				int n = this.starts.length * 2;
+				this.starts = Arrays.copyOf(this.starts, n);
+				this.nDocs = Arrays.copyOf(this.nDocs, n);
+				this.ptrs = Arrays.copyOf(this.ptrs, n);
+			} // end if
+			if (this.wordsLength + len > this.words.length) {
+				this.words = Arrays.copyOf(this.words, Math.max(this.words.length * 2, this.wordsLength + len));
+			} // end if
+
+			System.arraycopy(b, off, this.words, this.wordsLength, len);
+			if (this.size > 0 && this.sorted && compareWords(this.size - 1, this.wordsLength, len) > 0) {
+				this.sorted = false;
+			} // end if
+
+			this.starts[this.size] = this.wordsLength;
+			this.nDocs[this.size] = nd;
+			this.ptrs[this.size] = pt;
+			this.wordsLength += len;
+			this.size++;
+			this.starts[this.size] = this.wordsLength;
+
+		} // end add()
+
+		/**
+		 * Add a word.
+		 * @param word
+		 * @param nd nDocs
+		 * @param pt pointer
+		 */
+		public void add(String word, int nd, long pt) {
+			byte[] b = word.getBytes(UTF8);
+			add(b, 0, b.length, nd, pt);
+		} // end add()
+
+		/**
+		 * @return number of words added so far
+		 */
+		public int size() {
+			return this.size;
+		} // end size()
+
+		/**
+		 * Front-code the collected words.
+		 * @return
+		 */
+		public CompactLexicon build() {
+
+			// sort word numbers rather than moving the words themselves
+			int[] order = new int [this.size];
+			for (int i = 0; i < this.size; i++) {
+				order[i] = i;
+			} // end for
+			if (!this.sorted) {
+				sort(order, new int [this.size], 0, this.size);
+			} // end if
+
+			// drop duplicates, keeping the last one added
+			int n = 0;
+			for (int i = 0; i < this.size; i++) {
+				if (n > 0 && compareWords(order[n - 1], this.starts[order[i]], length(order[i])) == 0) {
+					if (order[i] > order[n - 1]) {
+						order[n - 1] = order[i];
+					} // end if
+				} else {
+					order[n++] = order[i];
+				} // end if
+			} // end for
+
+			byte[] data = new byte [this.wordsLength + 10 * n + 16];
+			int[] blockOffsets = new int [(n + BLOCK_SIZE - 1) / BLOCK_SIZE];
+			int[] nd = new int [n];
+			long[] pt = new long [n];
+			int pos = 0;
+			int maxLength = 0;
+
+			for (int i = 0; i < n; i++) {
+
+				int w = order[i];
+				int start = this.starts[w];
+				int len = length(w);
+				maxLength = Math.max(maxLength, len);
+				nd[i] = this.nDocs[w];
+				pt[i] = this.ptrs[w];
+
+				if (i % BLOCK_SIZE == 0) {
+					blockOffsets[i / BLOCK_SIZE] = pos;
+					pos = writeVInt(data, pos, len);
+				} else {
+					int prev = order[i - 1];
+					int prevStart = this.starts[prev];
+					int prevLen = length(prev);
+					int prefix = 0;
+					while (prefix < len && prefix < prevLen
+							&& this.words[start + prefix] == this.words[prevStart + prefix]) {
+						prefix++;
+					} // end while
+					pos = writeVInt(data, pos, prefix);
+					pos = writeVInt(data, pos, len - prefix);
+					start += prefix;
+					len -= prefix;
+				} // end if
+
+				System.arraycopy(this.words, start, data, pos, len);
+				pos += len;
+
+			} // end for
+
+			return new CompactLexicon(Arrays.copyOf(data, pos), blockOffsets, nd, pt, n, maxLength);
+
+		} // end build()
+
+		private int length(int w) {
+			return this.starts[w + 1] - this.starts[w];
+		} // end length()
+
+		private int compareWords(int w, int start, int len) {
+			return compare(this.words, this.starts[w], length(w), this.words, start, len);
+		} // end compareWords()
+
+		/**
+		 * Stable merge sort of word numbers by word bytes.
+		 */
+		private void sort(int[] a, int[] tmp, int lo, int hi) {
+			if (hi - lo < 2) {
+				return;
+			} // end if
+			int mid = (lo + hi) >>> 1;
+			sort(a, tmp, lo, mid);
+			sort(a, tmp, mid, hi);
+			int i = lo, j = mid, k = lo;
+			while (i < mid && j < hi) {
+				if (compareWords(a[i], this.starts[a[j]], length(a[j])) <= 0) {
+					tmp[k++] = a[i++];
+				} else {
+					tmp[k++] = a[j++];
+				} // end if
+			} // end while
+			while (i < mid) {
+				tmp[k++] = a[i++];
+			} // end while
+			while (j < hi) {
+				tmp[k++] = a[j++];
+			} // end while
+			System.arraycopy(tmp, lo, a, lo, hi - lo);
+		} // end sort()
+
+		private static int writeVInt(byte[] b, int pos, int value) {
+			while ((value & ~0x7f) != 0) {
+				b[pos++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			} // end while
+			b[pos++] = (byte) value;
+			return pos;
+		} // end writeVInt()
+
+	} // end Builder class
+
+} // end CompactLexicon class
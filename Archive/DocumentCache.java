@@ -0,0 +1,188 @@
+package search.indexserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import search.indexbuilder.ContentChunkFile;
+import search.indexbuilder.Doc;
+import search.indexbuilder.DocIndexFile;
+
+/**
+ * Cache of documents read from a content chunk, keyed by docId and bounded by an approximate
+ * memory budget, so documents that show up on many result pages are read and decoded once.
+ * One cache is shared by all caption workers; cached Docs are shared too and must not be changed.
+ *
+ * Eviction is the same frequency-aware clock as QueryResultCache. Misses read the content chunk
+ * one at a time, since a ContentChunkFile is not known to be safe for concurrent reads.
+ * @author Sam Gunther, Adam Steinberger
+ */
+public class DocumentCache {
+
+	// cache budget when none is given
+	public static final long DEFAULT_BUDGET = 64L << 20;
+
+	private static final int MAX_FREQUENCY = 15;
+
+	private static class Entry {
+
+		final int docId;
+		final Doc doc;
+		final long bytes;
+		volatile int frequency;
+
+		Entry(int docId, Doc doc) {
+			this.docId = docId;
+			this.doc = doc;
+			// object headers and the chars of the content and url
+			this.bytes = 128 + 2L * length(doc.content) + 2L * length(doc.url);
+		} // end Entry constructor
+
+		private static int length(String s) {
+			return (s == null) ? 0 : s.length();
+		} // end length()
+
+	} // end Entry class
+
+	private final long budget;
+	private final ConcurrentHashMap<Integer,Entry> entries;
+	private final ConcurrentLinkedQueue<Entry> clock;
+	private final Object evictLock = new Object();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param budget approximate number of bytes the cached documents may use
+	 */
+	public DocumentCache(long budget) {
+		this.budget = budget;
+		this.entries = new ConcurrentHashMap<Integer,Entry>();
+		this.clock = new ConcurrentLinkedQueue<Entry>();
+	} // end DocumentCache constructor
+
+	/**
+	 * Get a document, reading it from the content chunk if it is not cached.
+	 * @param docId
+	 * @param index doc index giving the document's offset in the chunk
+	 * @param chunk content chunk holding the document
+	 * @return the document, or null if it could not be read
+	 */
+	public Doc get(int docId, DocIndexFile index, ContentChunkFile chunk) {
+
+		Entry entry = this.entries.get(docId);
+		if (entry != null) {
+			if (entry.frequency < MAX_FREQUENCY) {
+				entry.frequency++;
+			} // end if
+			this.hits.incrementAndGet();
+			return entry.doc;
+		} // end if
+		this.misses.incrementAndGet();
+
+		Doc doc;
+		synchronized (chunk) {
+			doc = chunk.getDocAt(index.getDocPtr(docId));
+		} // end synchronized
+		if (doc != null) {
+			put(docId, doc);
+		} // end if
+		return doc;
+
+	} // end get()
+
+	/**
+	 * Cache a document, evicting other documents if over budget.
+	 * @param docId
+	 * @param doc
+	 */
+	private void put(int docId, Doc doc) {
+
+		Entry entry = new Entry(docId, doc);
+		if (entry.bytes > this.budget) {
+			return;
+		} // end if
+
+		if (this.entries.putIfAbsent(docId, entry) != null) {
+			return;
+		} // end if
+		this.clock.add(entry);
+		this.bytes.addAndGet(entry.bytes);
+
+		if (this.bytes.get() > this.budget) {
+			evict();
+		} // end if
+
+	} // end put()
+
+	/**
+	 * Drop every cached document, e.g. when the content chunk changes.
+	 */
+	public void clear() {
+		synchronized (this.evictLock) {
+			Entry entry;
+			while ((entry = this.clock.poll()) != null) {
+				if (this.entries.remove(entry.docId, entry)) {
+					this.bytes.addAndGet(-entry.bytes);
+				} // end if
+			} // end while
+		} // end synchronized
+	} // end clear()
+
+	/**
+	 * Run the clock until the cache is within budget.
+	 */
+	private void evict() {
+		synchronized (this.evictLock) {
+			Entry entry;
+			while (this.bytes.get() > this.budget && (entry = this.clock.poll()) != null) {
+				if (this.entries.get(entry.docId) != entry) {
+					// already removed
+					continue;
+				} // end if
+				if (entry.frequency > 0) {
+					entry.frequency--;
+					this.clock.add(entry);
+				} else if (this.entries.remove(entry.docId, entry)) {
+					this.bytes.addAndGet(-entry.bytes);
+					this.evictions.incrementAndGet();
+				} // end if
+			} // end while
+		} // end synchronized
+	} // end evict()
+
+	public long getHits() {
+		return this.hits.get();
+	} // end getHits()
+
+	public long getMisses() {
+		return this.misses.get();
+	} // end getMisses()
+
+	public long getEvictions() {
+		return this.evictions.get();
+	} // end getEvictions()
+
+	/**
+	 * @return approximate number of bytes used by cached documents
+	 */
+	public long getBytes() {
+		return this.bytes.get();
+	} // end getBytes()
+
+	/**
+	 * @return number of cached documents
+	 */
+	public int size() {
+		return this.entries.size();
+	} // end size()
+
+	public String toString() {
+		long h = getHits();
+		long m = getMisses();
+		return String.format("%d documents, %d bytes, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+				size(), getBytes(), h, m, (h + m == 0) ? 0.0 : 100.0 * h / (h + m), getEvictions());
+	} // end toString()
+
+} // end DocumentCache class
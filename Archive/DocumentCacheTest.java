@@ -0,0 +1,157 @@
+package search.indexserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import search.common.LogLibrary;
+import search.indexbuilder.ContentChunkFile;
+import search.indexbuilder.Doc;
+import search.indexbuilder.DocIndexFile;
+
+/**
+ * Test the document cache against a made-up content chunk whose document at offset n is
+ * 1000 chars of content with url "u" + n.
+ * @author Sam Gunther, Adam Steinberger
+ */
+public class DocumentCacheTest {
+
+	private static LogLibrary logs;
+
+	// bytes one test document takes in the cache
+	private static final int DOC_BYTES = 128 + 2 * 1000 + 2 * 5;
+
+	/**
+	 * Content chunk that makes up its documents and counts the reads.
+	 */
+	private static class CountingChunk extends ContentChunkFile {
+
+		final AtomicInteger reads = new AtomicInteger();
+
+		CountingChunk() {
+			super(0);
+		} // end CountingChunk constructor
+
+		public Doc getDocAt(long ptr) {
+			this.reads.incrementAndGet();
+			Doc doc = new Doc();
+			doc.content = new String(new char [1000]);
+			doc.url = "u" + ptr;
+			return doc;
+		} // end getDocAt()
+
+	} // end CountingChunk class
+
+	/**
+	 * Doc index where the document of a docId is at offset docId.
+	 */
+	private static class IdentityIndex extends DocIndexFile {
+
+		IdentityIndex() {
+			super(0);
+		} // end IdentityIndex constructor
+
+		public long getDocPtr(int docId) {
+			return docId;
+		} // end getDocPtr()
+
+	} // end IdentityIndex class
+
+	/**
+	 * A hit must return the cached Doc without reading the chunk again.
+	 */
+	private static boolean checkHits(DocIndexFile index) {
+		CountingChunk chunk = new CountingChunk();
+		DocumentCache cache = new DocumentCache(DocumentCache.DEFAULT_BUDGET);
+		Doc first = cache.get(42, index, chunk);
+		Doc second = cache.get(42, index, chunk);
+		return first != null && first == second && "u42".equals(first.url)
+				&& chunk.reads.get() == 1 && cache.getHits() == 1 && cache.getMisses() == 1;
+	} // end checkHits()
+
+	/**
+	 * A document on every third result page must stay cached while one-off documents pass
+	 * through a cache with room for only 20 documents, and the cache must stay within budget.
+	 */
+	private static boolean checkEviction(DocIndexFile index) {
+		CountingChunk chunk = new CountingChunk();
+		DocumentCache cache = new DocumentCache(20 * DOC_BYTES);
+		int hot = 7;
+		for (int i = 0; i < 3000; i++) {
+			int docId = (i % 3 == 0) ? hot : 1000 + i;
+			Doc doc = cache.get(docId, index, chunk);
+			if (doc == null || !doc.url.equals("u" + docId) || cache.getBytes() > 20 * DOC_BYTES) {
+				return false;
+			} // end if
+		} // end for
+		// the hot document was read once, every one-off document once
+		return chunk.reads.get() == 1 + 2000 && cache.getEvictions() > 0 && cache.size() <= 20;
+	} // end checkEviction()
+
+	/**
+	 * Caption workers share one cache: every get must return the right document.
+	 */
+	private static boolean checkConcurrent(final DocIndexFile index) throws InterruptedException {
+		final CountingChunk chunk = new CountingChunk();
+		final DocumentCache cache = new DocumentCache(100 * DOC_BYTES);
+		final AtomicInteger wrong = new AtomicInteger();
+		Thread[] threads = new Thread [8];
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = t;
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < 20000; i++) {
+						int docId = (i * 31 + seed) % 300;
+						Doc doc = cache.get(docId, index, chunk);
+						if (doc == null || !doc.url.equals("u" + docId)) {
+							wrong.incrementAndGet();
+						} // end if
+					} // end for
+				} // end run()
+			});
+			threads[t].start();
+		} // end for
+		for (Thread thread : threads) {
+			thread.join();
+		} // end for
+		if (wrong.get() != 0 || cache.getBytes() > 100 * DOC_BYTES) {
+			return false;
+		} // end if
+		cache.clear();
+		return cache.size() == 0 && cache.getBytes() == 0;
+	} // end checkConcurrent()
+
+	/**
+	 * The main test method.
+	 */
+	public static void main(String[] args) {
+
+		try {
+
+			logs = LogLibrary.instance("DocumentCacheTest.log");
+			DocIndexFile index = new IdentityIndex();
+
+			if (checkHits(index)) {
+				logs.log("Caption Server", "no risk", "document cache hit test passed");
+			} else {
+				logs.log("Caption Server", "high risk", "document cache hit test failed");
+			} // end if
+
+			if (checkEviction(index)) {
+				logs.log("Caption Server", "no risk", "document cache eviction test passed");
+			} else {
+				logs.log("Caption Server", "high risk", "document cache eviction test failed");
+			} // end if
+
+			if (checkConcurrent(index)) {
+				logs.log("Caption Server", "no risk", "document cache concurrency test passed");
+			} else {
+				logs.log("Caption Server", "high risk", "document cache concurrency test failed");
+			} // end if
+
+		} catch (Exception e) {
+			System.out.println("! Could not run the document cache test.");
+			e.printStackTrace();
+		} // end try/catch
+
+	} // end main()
+
+} // end DocumentCacheTest class
@@ -1,67 +1,92 @@
 package search.indexserver;
 
 import java.io.*;
-import  java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Front-End Client for Skearch
+ * Front-End Client for Skearch. Queries go through one ShardBroker shared by the whole front
+ * end. The index servers are listed in indexservers.config, one shard per line, with the
+ * host:port of the shard's replicas separated by commas; the default is the single shard
+ * indexserver1:9001. Queries reuse a few open connections per server, may be sent from many
+ * threads at once, and are answered by the shards that answer within the broker's timeout.
  * @author Tsepang Tsolele
  */
 public class FrontEndClient {
 	
+	public static final String DEFAULT_ENDPOINTS = "indexserver1:9001";
+	
 	//will use this to access methods in frontEnd
 	private static int[] DocID;
 	
+	private static ShardBroker broker;
+	
 	//frontEnd will call this method to get a string of id's
 	public int[] getData() {
 		return DocID;
 	} // end getData()
 	
+	/**
+	 * @return the front end's shard broker, created on first use
+	 * @throws IOException if indexservers.config cannot be read
+	 */
+	public static synchronized ShardBroker getBroker() throws IOException {
+		
+		if (broker == null) {
+			List<String> shards = new ArrayList<String>();
+			File config = new File("indexservers.config");
+			if (config.exists()) {
+				BufferedReader configRead = new BufferedReader(new FileReader(config));
+				String line;
+				while ((line = configRead.readLine()) != null) {
+					if (!line.trim().isEmpty()) {
+						shards.add(line);
+					} // end if
+				} // end while
+				configRead.close();
+			} // end if
+			if (shards.isEmpty()) {
+				shards.add(DEFAULT_ENDPOINTS);
+			} // end if
+			broker = new ShardBroker(shards.toArray(new String [shards.size()]), ShardBroker.DEFAULT_TIMEOUT_MILLIS);
+			System.out.println("! Sending queries to " + shards.size() + " shards: " + shards);
+		} // end if
+		return broker;
+		
+	} // end getBroker()
+	
+	/**
+	 * Send a query without waiting for its answer.
+	 * @param s query
+	 * @return a future completed with the merged answer of the shards
+	 * @throws IOException if indexservers.config cannot be read
+	 */
+	public static CompletableFuture<ShardBroker.Result> sendQueryToIndexAsync(String s) throws IOException {
+		return getBroker().queryAsync(0, s);
+	} // end sendQueryToIndexAsync()
+	
 	public static int[] sendQueryToIndex(String s) {
 		
 		try {
 			
-			//open up a new socket with index server
-			Socket clientSocket1 = new Socket("indexserver1", 9001);
+			// the index servers pick how many docIds to return
+			ShardBroker.Result result = getBroker().query(0, s);
+			if (result.isPartial()) {
+				System.out.println("! Only " + result.getShardsAnswered() + " of " + result.getShardCount() + " shards answered");
+			} // end if
+			int[] ids = result.getDocIds();
+			DocID = ids;
 			
-			System.out.println("! Connected to: "+ 
-					clientSocket1.getInetAddress()+" on port: "
-					+ clientSocket1.getLocalPort());
-
-			// assume we have got the searchString from the front end
-			String serverDataOut = "hello world" + "\n";
-
-			// set up dataStreams and DocIDectStreams
-			DataOutputStream serverOut1 = new DataOutputStream(
-					clientSocket1.getOutputStream());
-			BufferedReader serverIn1 = new BufferedReader(
-					new InputStreamReader(clientSocket1.getInputStream()));
-
-			ObjectOutputStream out = new ObjectOutputStream(
-					clientSocket1.getOutputStream());
-			ObjectInputStream in = new ObjectInputStream(
-					clientSocket1.getInputStream());
-
-			// send query
-			serverOut1.writeBytes(serverDataOut);
-			System.out.println(">sent: " + serverDataOut + " to server");
-
-			// string to search has been sent out to the IndexServerListener
-			DocID = (int[]) in.readObject();
-
-			for (int i = 0; i < DocID.length; i++) {
-				System.out.print(DocID[i] + " ");
-			} // end for
+			if (ids != null) {
+				for (int i = 0; i < ids.length; i++) {
+					System.out.print(ids[i] + " ");
+				} // end for
+			} // end if
 			
 			System.out.print("\n");
-
-			// close and disconnect when results are printed
-			clientSocket1.close();
 			
-			System.out.println("! Disconnected from remote host: "
-					+ clientSocket1.getInetAddress());
-
-			return DocID;
+			return ids;
 				
 		} catch (Exception e) {
 			System.out.println("! Could not send query to index server.");
@@ -74,7 +99,7 @@ public class FrontEndClient {
 	public static void main(String[] args) {
 		
 		try {
-			sendQueryToIndex("Search");
+			sendQueryToIndex((args.length > 0) ? args[0] : "Search");
 		} catch (Exception e) {
 			System.out.println("! Could not search.");
 			e.printStackTrace();
@@ -0,0 +1,241 @@
+package search.indexserver;
+
+/**
+ * Streams the words of an HTML document's text one at a time, straight from the markup.
+ * Tags end the current word, comments and the contents of script and style elements are
+ * skipped, and the common character entities are decoded. Nothing is read past the last word
+ * asked for, and the only allocation is one fixed token buffer, however large the page.
+ *
+ * A word is a run of non-whitespace characters, as with StringTokenizer; words longer than
+ * MAX_TOKEN_LENGTH are cut. token() is a view of the buffer that next() overwrites.
+ * @author Sam Gunther, Adam Steinberger
+ */
+public class HtmlTokenStream {
+
+	public static final int MAX_TOKEN_LENGTH = 256;
+
+	private final CharSequence text;
+	private final boolean html;
+	private final char[] buffer = new char [MAX_TOKEN_LENGTH];
+	private final Token token = new Token();
+	private int length;
+	private int pos;
+
+	/**
+	 * View of the current word.
+	 */
+	private class Token implements CharSequence {
+
+		public int length() {
+			return HtmlTokenStream.this.length;
+		} // end length()
+
+		public char charAt(int index) {
+			if (index >= HtmlTokenStream.this.length) {
+				throw new IndexOutOfBoundsException(Integer.toString(index));
+			} // end if
+			return buffer[index];
+		} // end charAt()
+
+		public CharSequence subSequence(int start, int end) {
+			return toString().substring(start, end);
+		} // end subSequence()
+
+		public String toString() {
+			return new String(buffer, 0, HtmlTokenStream.this.length);
+		} // end toString()
+
+	} // end Token class
+
+	/**
+	 * @param html HTML document
+	 */
+	public HtmlTokenStream(CharSequence html) {
+		this(html, true);
+	} // end HtmlTokenStream constructor
+
+	/**
+	 * @param text document
+	 * @param html true if text is HTML, false if it is plain text
+	 */
+	HtmlTokenStream(CharSequence text, boolean html) {
+		this.text = text;
+		this.html = html;
+		this.pos = 0;
+	} // end HtmlTokenStream constructor
+
+	/**
+	 * @param text plain text, with no markup
+	 * @return stream over the words of the text
+	 */
+	public static HtmlTokenStream plainText(CharSequence text) {
+		return new HtmlTokenStream(text, false);
+	} // end plainText()
+
+	/**
+	 * Read the next word.
+	 * @return false if there are no more words
+	 */
+	public boolean next() {
+
+		this.length = 0;
+		int n = this.text.length();
+
+		while (this.pos < n) {
+
+			char c = this.text.charAt(this.pos);
+
+			if (this.html && c == '<') {
+				skipMarkup();
+				if (this.length > 0) {
+					return true;
+				} // end if
+			} else if (this.html && c == '&') {
+				c = decodeEntity();
+				if (Character.isWhitespace(c) || c == '\u00a0') {
+					if (this.length > 0) {
+						return true;
+					} // end if
+				} else {
+					append(c);
+				} // end if
+			} else if (Character.isWhitespace(c)) {
+				this.pos++;
+				if (this.length > 0) {
+					return true;
+				} // end if
+			} else {
+				append(c);
+				this.pos++;
+			} // end if
+
+		} // end while
+
+		return this.length > 0;
+
+	} // end next()
+
+	/**
+	 * @return the current word, valid until the next call to next()
+	 */
+	public CharSequence token() {
+		return this.token;
+	} // end token()
+
+	private void append(char c) {
+		if (this.length < MAX_TOKEN_LENGTH) {
+			this.buffer[this.length++] = c;
+		} // end if
+	} // end append()
+
+	/**
+	 * Skip the tag or comment at pos, and the contents of a script or style element.
+	 */
+	private void skipMarkup() {
+
+		if (startsWith("<!--", this.pos)) {
+			this.pos = indexOf("-->", this.pos + 4);
+			this.pos = (this.pos < 0) ? this.text.length() : this.pos + 3;
+			return;
+		} // end if
+
+		boolean script = startsWithIgnoreCase("<script", this.pos);
+		boolean style = startsWithIgnoreCase("<style", this.pos);
+
+		int end = indexOf(">", this.pos + 1);
+		this.pos = (end < 0) ? this.text.length() : end + 1;
+
+		if (script || style) {
+			String close = script ? "</script" : "</style";
+			while (this.pos < this.text.length() && !startsWithIgnoreCase(close, this.pos)) {
+				this.pos++;
+			} // end while
+		} // end if
+
+	} // end skipMarkup()
+
+	/**
+	 * Decode the character entity at pos, or take the '&' as is if it is not one we know.
+	 * @return the decoded character
+	 */
+	private char decodeEntity() {
+
+		int end = this.pos + 1;
+		int n = Math.min(this.text.length(), this.pos + 10);
+		while (end < n && this.text.charAt(end) != ';') {
+			end++;
+		} // end while
+		if (end >= n) {
+			this.pos++;
+			return '&';
+		} // end if
+
+		char c = 0;
+		if (this.text.charAt(this.pos + 1) == '#') {
+			try {
+				boolean hex = end > this.pos + 2 && (this.text.charAt(this.pos + 2) | 0x20) == 'x';
+				String digits = this.text.subSequence(this.pos + (hex ? 3 : 2), end).toString();
+				int code = Integer.parseInt(digits, hex ? 16 : 10);
+				c = (code > 0 && code <= 0xffff) ? (char) code : '?';
+			} catch (NumberFormatException e) {
+				c = 0;
+			} // end try/catch
+		} else if (startsWith("&amp;", this.pos)) {
+			c = '&';
+		} else if (startsWith("&lt;", this.pos)) {
+			c = '<';
+		} else if (startsWith("&gt;", this.pos)) {
+			c = '>';
+		} else if (startsWith("&quot;", this.pos)) {
+			c = '"';
+		} else if (startsWith("&apos;", this.pos)) {
+			c = '\'';
+		} else if (startsWith("&nbsp;", this.pos)) {
+			c = ' ';
+		} // end if
+
+		if (c == 0) {
+			this.pos++;
+			return '&';
+		} // end if
+		this.pos = end + 1;
+		return c;
+
+	} // end decodeEntity()
+
+	private boolean startsWith(String s, int from) {
+		if (from + s.length() > this.text.length()) {
+			return false;
+		} // end if
+		for (int i = 0; i < s.length(); i++) {
+			if (this.text.charAt(from + i) != s.charAt(i)) {
+				return false;
+			} // end if
+		} // end for
+		return true;
+	} // end startsWith()
+
+	private boolean startsWithIgnoreCase(String s, int from) {
+		if (from + s.length() > this.text.length()) {
+			return false;
+		} // end if
+		for (int i = 0; i < s.length(); i++) {
+			if (Character.toLowerCase(this.text.charAt(from + i)) != s.charAt(i)) {
+				return false;
+			} // end if
+		} // end for
+		// "<scriptx" is not a script tag
+		int next = from + s.length();
+		return next == this.text.length() || !Character.isLetterOrDigit(this.text.charAt(next));
+	} // end startsWithIgnoreCase()
+
+	private int indexOf(String s, int from) {
+		for (int i = from; i + s.length() <= this.text.length(); i++) {
+			if (startsWith(s, i)) {
+				return i;
+			} // end if
+		} // end for
+		return -1;
+	} // end indexOf()
+
+} // end HtmlTokenStream class
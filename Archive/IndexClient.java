@@ -0,0 +1,453 @@
+package search.indexserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Client of one index, served by one or more replica index servers. Keeps a small pool of
+ * open WireProtocol connections to every endpoint and spreads queries over them in turn;
+ * any number of queries may be in flight on a connection at once, and each completes its
+ * future when its answer arrives. Connections are opened on first use and reopened after a
+ * failure, so a busy front end reuses a handful of sockets instead of one per query.
+ * A query not answered within its timeout fails and is forgotten, as is a cancelled one.
+ * Safe to use from many threads.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class IndexClient {
+
+	// connections kept open to each endpoint
+	public static final int DEFAULT_CONNECTIONS = 4;
+
+	// time allowed to open a connection before trying the next one
+	public static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+	// time before trying again to open a connection that could not be opened
+	public static final long RETRY_MILLIS = 1000;
+
+	// time a query has to be answered when none is given
+	public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+	// fails queries that are not answered in time, for every client
+	private static final ScheduledThreadPoolExecutor deadlines = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "IndexClient-deadlines");
+			t.setDaemon(true);
+			return t;
+		} // end newThread()
+	});
+	static {
+		// most queries are answered in time; their deadlines must not pile up in the queue
+		deadlines.setRemoveOnCancelPolicy(true);
+	} // end static
+
+	private final List<InetSocketAddress> endpoints;
+	private final Connection[] connections;
+	private final Object[] locks;
+	private final long[] retryAt;
+	private final AtomicInteger next = new AtomicInteger();
+	private final long timeoutMillis;
+	private volatile boolean closed;
+
+	/**
+	 * @param endpoints servers of the index, as "host:port, host:port, ..."
+	 */
+	public IndexClient(String endpoints) {
+		this(parseEndpoints(endpoints), DEFAULT_CONNECTIONS, DEFAULT_TIMEOUT_MILLIS);
+	} // end IndexClient constructor
+
+	/**
+	 * @param endpoints servers of the index, all answering the same queries
+	 * @param connectionsPerEndpoint connections kept open to each endpoint
+	 * @param timeoutMillis time a query has to be answered when none is given
+	 */
+	public IndexClient(List<InetSocketAddress> endpoints, int connectionsPerEndpoint, long timeoutMillis) {
+
+		if (endpoints.isEmpty()) {
+			throw new IllegalArgumentException("Index client needs at least one endpoint");
+		} // end if
+
+		this.endpoints = new ArrayList<InetSocketAddress>(endpoints);
+		this.timeoutMillis = timeoutMillis;
+		int perEndpoint = Math.max(connectionsPerEndpoint, 1);
+		this.connections = new Connection [this.endpoints.size() * perEndpoint];
+		this.locks = new Object [this.connections.length];
+		this.retryAt = new long [this.connections.length];
+		long now = System.nanoTime();
+		for (int i = 0; i < this.locks.length; i++) {
+			this.locks[i] = new Object();
+			this.retryAt[i] = now;
+		} // end for
+
+	} // end IndexClient constructor
+
+	/**
+	 * @param list "host:port" endpoints separated by commas or whitespace
+	 * @return the endpoints, unresolved until a connection is opened
+	 */
+	public static List<InetSocketAddress> parseEndpoints(String list) {
+		List<InetSocketAddress> endpoints = new ArrayList<InetSocketAddress>();
+		for (String endpoint : list.trim().split("[,\\s]+")) {
+			if (endpoint.isEmpty()) {
+				continue;
+			} // end if
+			int colon = endpoint.lastIndexOf(':');
+			if (colon <= 0) {
+				throw new IllegalArgumentException("Endpoint \"" + endpoint + "\" is not host:port");
+			} // end if
+			endpoints.add(InetSocketAddress.createUnresolved(endpoint.substring(0, colon),
+					Integer.parseInt(endpoint.substring(colon + 1))));
+		} // end for
+		return endpoints;
+	} // end parseEndpoints()
+
+	/**
+	 * Send a query, to be answered within the client's timeout.
+	 * @param limit docIds wanted, or 0 for the server's default
+	 * @param query
+	 * @return a future completed with the first docIds matching the query in docId order,
+	 * or null if none match; completed exceptionally if the query could not be answered
+	 */
+	public CompletableFuture<int[]> queryAsync(int limit, String query) {
+		return queryAsync(limit, query, this.timeoutMillis);
+	} // end queryAsync()
+
+	/**
+	 * Send a query.
+	 * @param limit docIds wanted, or 0 for the server's default
+	 * @param query
+	 * @param timeoutMillis time the query has to be answered, after which it fails with a
+	 * SocketTimeoutException
+	 * @return a future completed with the first docIds matching the query in docId order,
+	 * or null if none match; completed exceptionally if the query could not be answered.
+	 * Cancelling the future forgets the query.
+	 */
+	public CompletableFuture<int[]> queryAsync(int limit, String query, long timeoutMillis) {
+
+		final CompletableFuture<ScoredDocIds> reply = send(WireProtocol.QUERY, limit, query, timeoutMillis);
+		final CompletableFuture<int[]> docIds = new CompletableFuture<int[]>();
+		reply.whenComplete(new BiConsumer<ScoredDocIds, Throwable>() {
+			public void accept(ScoredDocIds answer, Throwable failure) {
+				if (failure != null) {
+					docIds.completeExceptionally(failure);
+				} else {
+					docIds.complete(answer.getDocIds());
+				} // end if
+			} // end accept()
+		});
+		// cancelling the docIds forgets the query too
+		docIds.whenComplete(new BiConsumer<int[], Throwable>() {
+			public void accept(int[] ids, Throwable failure) {
+				if (failure instanceof CancellationException) {
+					reply.cancel(false);
+				} // end if
+			} // end accept()
+		});
+		return docIds;
+
+	} // end queryAsync()
+
+	/**
+	 * Send a query whose results are ranked by score, to be answered within the client's timeout.
+	 * @param limit docIds wanted, or 0 for the server's default
+	 * @param query
+	 * @return a future completed with the docIds of the best scoring documents, best first,
+	 * and their scores
+	 */
+	public CompletableFuture<ScoredDocIds> queryRankedAsync(int limit, String query) {
+		return send(WireProtocol.RANKED_QUERY, limit, query, this.timeoutMillis);
+	} // end queryRankedAsync()
+
+	/**
+	 * Send a query whose results are ranked by score.
+	 * @param limit docIds wanted, or 0 for the server's default
+	 * @param query
+	 * @param timeoutMillis time the query has to be answered, after which it fails
+	 * @return a future completed with the docIds of the best scoring documents, best first,
+	 * and their scores. Cancelling the future forgets the query.
+	 */
+	public CompletableFuture<ScoredDocIds> queryRankedAsync(int limit, String query, long timeoutMillis) {
+		return send(WireProtocol.RANKED_QUERY, limit, query, timeoutMillis);
+	} // end queryRankedAsync()
+
+	/**
+	 * Send a query and wait at most the client's timeout for its answer.
+	 * @param limit docIds wanted, or 0 for the server's default
+	 * @param query
+	 * @return docIds matching the query, or null if none match
+	 * @throws IOException if the query could not be answered in time
+	 */
+	public int[] query(int limit, String query) throws IOException {
+		CompletableFuture<int[]> reply = queryAsync(limit, query);
+		try {
+			return reply.get(this.timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			reply.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for query \"" + query + "\"", e);
+		} catch (TimeoutException e) {
+			reply.cancel(false);
+			throw new IOException("Query \"" + query + "\" was not answered within " + this.timeoutMillis + " ms", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			} // end if
+			throw new IOException(e.getCause());
+		} // end try/catch
+	} // end query()
+
+	/**
+	 * @return number of queries sent and not yet answered, failed or cancelled
+	 */
+	int getPendingCount() {
+		int n = 0;
+		for (int i = 0; i < this.connections.length; i++) {
+			synchronized (this.locks[i]) {
+				if (this.connections[i] != null) {
+					n += this.connections[i].pending.size();
+				} // end if
+			} // end synchronized
+		} // end for
+		return n;
+	} // end getPendingCount()
+
+	/**
+	 * @return endpoints of this client
+	 */
+	public List<InetSocketAddress> getEndpoints() {
+		return this.endpoints;
+	} // end getEndpoints()
+
+	/**
+	 * Close every connection. Queries still in flight fail.
+	 */
+	public void close() {
+		this.closed = true;
+		for (int i = 0; i < this.connections.length; i++) {
+			synchronized (this.locks[i]) {
+				if (this.connections[i] != null) {
+					this.connections[i].fail(new IOException("Index client closed"));
+					this.connections[i] = null;
+				} // end if
+			} // end synchronized
+		} // end for
+	} // end close()
+
+	/**
+	 * Send a request on the next connection in turn, moving on to the next one if it
+	 * cannot be opened or has failed.
+	 * @param type QUERY or RANKED_QUERY
+	 * @return a future completed with the answer, scored if ranked. Cancelling the future
+	 * forgets the query.
+	 */
+	CompletableFuture<ScoredDocIds> send(byte type, int limit, final String query, final long timeoutMillis) {
+
+		IOException failure = null;
+		int start = this.next.getAndIncrement() & Integer.MAX_VALUE;
+
+		for (int attempt = 0; attempt < this.connections.length && !this.closed; attempt++) {
+			int slot = (start + attempt) % this.connections.length;
+			try {
+				final CompletableFuture<ScoredDocIds> reply = connection(slot).send(type, limit, query);
+				if (reply != null) {
+					// a server that never answers must not leave the query waiting forever
+					final ScheduledFuture<?> deadline = deadlines.schedule(new Runnable() {
+						public void run() {
+							reply.completeExceptionally(new SocketTimeoutException("Query \"" + query
+									+ "\" was not answered within " + timeoutMillis + " ms"));
+						} // end run()
+					}, timeoutMillis, TimeUnit.MILLISECONDS);
+					reply.whenComplete(new BiConsumer<ScoredDocIds, Throwable>() {
+						public void accept(ScoredDocIds docIds, Throwable failure) {
+							deadline.cancel(false);
+						} // end accept()
+					});
+					return reply;
+				} // end if
+			} catch (IOException e) {
+				failure = e;
+			} // end try/catch
+		} // end for
+
+		CompletableFuture<ScoredDocIds> reply = new CompletableFuture<ScoredDocIds>();
+		if (this.closed) {
+			failure = new IOException("Index client closed");
+		} else if (failure == null) {
+			failure = new IOException("No index server connection for query \"" + query + "\"");
+		} // end if
+		reply.completeExceptionally(failure);
+		return reply;
+
+	} // end send()
+
+	/**
+	 * @param slot
+	 * @return the open connection in a slot, opening it if needed
+	 * @throws IOException if the connection could not be opened
+	 */
+	private Connection connection(int slot) throws IOException {
+		synchronized (this.locks[slot]) {
+			Connection c = this.connections[slot];
+			if (c == null || !c.open) {
+				if (this.closed) {
+					throw new IOException("Index client closed");
+				} // end if
+				// consecutive slots belong to different endpoints, so turns alternate between them
+				InetSocketAddress endpoint = this.endpoints.get(slot % this.endpoints.size());
+				// a server that just refused us is not tried again by every query
+				if (System.nanoTime() - this.retryAt[slot] < 0) {
+					throw new IOException("Index server " + endpoint + " is down");
+				} // end if
+				try {
+					c = new Connection(endpoint);
+				} catch (IOException e) {
+					this.retryAt[slot] = System.nanoTime() + RETRY_MILLIS * 1000000L;
+					throw e;
+				} // end try/catch
+				this.connections[slot] = c;
+			} // end if
+			return c;
+		} // end synchronized
+	} // end connection()
+
+	/**
+	 * One open connection, with a reader thread completing the futures of its requests.
+	 */
+	private static class Connection implements Runnable {
+
+		private final InetSocketAddress endpoint;
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+		private final Map<Integer, CompletableFuture<ScoredDocIds>> pending = new ConcurrentHashMap<Integer, CompletableFuture<ScoredDocIds>>();
+		private final AtomicInteger nextId = new AtomicInteger();
+		private volatile boolean open = true;
+
+		Connection(InetSocketAddress endpoint) throws IOException {
+
+			this.endpoint = endpoint;
+			this.socket = new Socket();
+			try {
+				InetSocketAddress address = endpoint.isUnresolved()
+						? new InetSocketAddress(endpoint.getHostString(), endpoint.getPort()) : endpoint;
+				this.socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+				this.socket.setTcpNoDelay(true);
+				this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+				this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+			} catch (IOException e) {
+				this.socket.close();
+				throw new IOException("Could not connect to index server " + endpoint, e);
+			} // end try/catch
+
+			Thread reader = new Thread(this, "IndexClient-" + endpoint);
+			reader.setDaemon(true);
+			reader.start();
+
+		} // end Connection constructor
+
+		/**
+		 * @return the request's future, or null if the connection has already failed
+		 */
+		CompletableFuture<ScoredDocIds> send(byte type, int limit, String query) {
+
+			final int requestId = this.nextId.getAndIncrement();
+			WireProtocol.Message request = new WireProtocol.Message(type, requestId).putVarInt(limit).putString(query);
+			final CompletableFuture<ScoredDocIds> reply = new CompletableFuture<ScoredDocIds>();
+
+			// however the request ends (answered, timed out or cancelled) it stops waiting here
+			reply.whenComplete(new BiConsumer<ScoredDocIds, Throwable>() {
+				public void accept(ScoredDocIds docIds, Throwable failure) {
+					pending.remove(requestId, reply);
+				} // end accept()
+			});
+
+			synchronized (this) {
+				if (!this.open) {
+					return null;
+				} // end if
+				this.pending.put(requestId, reply);
+				try {
+					WireProtocol.write(this.out, request);
+					this.out.flush();
+				} catch (IOException e) {
+					fail(e);
+				} // end try/catch
+			} // end synchronized
+
+			return reply;
+
+		} // end send()
+
+		/**
+		 * Read answers and complete their futures until the connection ends.
+		 */
+		public void run() {
+			try {
+				WireProtocol.Message reply;
+				while ((reply = WireProtocol.read(this.in)) != null) {
+					CompletableFuture<ScoredDocIds> future = this.pending.remove(reply.getRequestId());
+					if (future == null) {
+						System.out.println("! Index server " + this.endpoint + " answered unknown request " + reply.getRequestId());
+					} else if (reply.getType() == WireProtocol.DOC_IDS) {
+						future.complete(new ScoredDocIds(reply.getDocIds(), null));
+					} else if (reply.getType() == WireProtocol.SCORED_DOC_IDS) {
+						future.complete(reply.getScoredDocIds());
+					} else if (reply.getType() == WireProtocol.ERROR) {
+						future.completeExceptionally(new IOException("Index server " + this.endpoint + ": " + reply.getString()));
+					} else {
+						future.completeExceptionally(new IOException("Index server " + this.endpoint + " answered with type " + reply.getType()));
+					} // end if
+				} // end while
+				fail(new EOFException("Index server " + this.endpoint + " closed the connection"));
+			} catch (IOException e) {
+				fail(e);
+			} // end try/catch
+		} // end run()
+
+		/**
+		 * Close the connection and fail every request still waiting on it.
+		 * @param e
+		 */
+		void fail(IOException e) {
+			synchronized (this) {
+				if (!this.open) {
+					return;
+				} // end if
+				this.open = false;
+			} // end synchronized
+			try {
+				this.socket.close();
+			} catch (IOException ce) {
+				// already failing
+			} // end try/catch
+			for (Integer requestId : this.pending.keySet()) {
+				CompletableFuture<ScoredDocIds> future = this.pending.remove(requestId);
+				if (future != null) {
+					future.completeExceptionally(e);
+				} // end if
+			} // end for
+		} // end fail()
+
+	} // end Connection class
+
+} // end IndexClient class
@@ -1,7 +1,19 @@
 package search.indexserver;
 
+import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import search.common.LogLibrary;
 import search.common.Timer;
@@ -9,34 +21,82 @@ import search.common.Timer.Method;
 
 /**
  * Index Server receives queries and returns docIDs for matching documents in the index.
+ * Queries are served by a pool of query threads that share one read-only index reader.
  * @author Adam Steinberger, Sam Gunther
  */
 public class IndexServer implements QueryHandler {
 
 	private static LogLibrary logs;
-	private QLatch serverLatch;
-	private ArrayDeque<Query> queries;
-	private QueryThread qThread;
+	// results cache budget when none is given
+	public static final long DEFAULT_CACHE_BYTES = 64L << 20;
+	// off-heap budget of the posting list cache
+	public static final long DEFAULT_POSTING_CACHE_BYTES = 128L << 20;
+	
+	private BlockingDeque<Query> queries;
+	private volatile InvertedIndexFileReader iiReader;
+	private QueryResultCache cache;
+	private QueryThread[] qThreads;
 	private boolean verbose;
 	private Timer timer;
-	private boolean kill;
+	private volatile boolean kill;
 	
 	/**
-	 * Skearch IndexServer constructor.
+	 * Skearch IndexServer constructor with one query thread per core.
 	 */
 	public IndexServer(int docId, boolean v) {
+		this(docId, v, Runtime.getRuntime().availableProcessors());
+	} // end IndexServer() constructor
+	
+	/**
+	 * Skearch IndexServer constructor with the default results cache budget.
+	 * @param docId first docId of the index chunk to serve
+	 * @param nThreads number of query threads
+	 */
+	public IndexServer(int docId, boolean v, int nThreads) {
+		this(docId, v, nThreads, DEFAULT_CACHE_BYTES);
+	} // end IndexServer() constructor
+	
+	/**
+	 * Skearch IndexServer constructor.
+	 * @param docId first docId of the index chunk to serve
+	 * @param nThreads number of query threads
+	 * @param cacheBytes memory budget of the query results cache
+	 */
+	public IndexServer(int docId, boolean v, int nThreads, long cacheBytes) {
+		this(docId, v, nThreads, cacheBytes, DEFAULT_POSTING_CACHE_BYTES);
+	} // end IndexServer() constructor
+	
+	/**
+	 * Skearch IndexServer constructor.
+	 * @param docId first docId of the index chunk to serve
+	 * @param nThreads number of query threads
+	 * @param cacheBytes memory budget of the query results cache
+	 * @param postingCacheBytes off-heap budget of the posting list cache, or 0 for no cache
+	 */
+	public IndexServer(int docId, boolean v, int nThreads, long cacheBytes, long postingCacheBytes) {
 		
 		try {
 			
 			logs = LogLibrary.instance("IndexServer.log");
-			this.serverLatch = new QLatch(1);
-			this.queries = new ArrayDeque<Query>();
-			this.qThread = new QueryThread(docId, this.queries, this.serverLatch, v);
-			Thread t1 = new Thread(qThread);
-			t1.start();
 			this.verbose = v;
 			this.timer = new Timer("IndexServer",this.verbose);
 			this.kill = false;
+			this.queries = new LinkedBlockingDeque<Query>();
+			this.cache = new QueryResultCache(cacheBytes);
+			
+			// all query threads read the same chunk through positional reads
+			this.iiReader = new InvertedIndexFileReader(docId, v);
+			if (postingCacheBytes > 0) {
+				this.iiReader.setPostingCache(new PostingListCache(postingCacheBytes));
+			} // end if
+			this.qThreads = new QueryThread[Math.max(nThreads, 1)];
+			
+			for (int i = 0; i < this.qThreads.length; i++) {
+				this.qThreads[i] = new QueryThread(this.iiReader, this.queries, v);
+				Thread t = new Thread(this.qThreads[i], "QueryThread-" + i);
+				t.setDaemon(true);
+				t.start();
+			} // end for
 			
 		} catch (Exception e) {
 			System.out.println("! Could not create index server.");
@@ -47,83 +107,337 @@ public class IndexServer implements QueryHandler {
 	
 	public void setVerbose(boolean v) {
 		this.verbose = v;
-		this.qThread.setVerbose(v);
+		for (QueryThread qThread : this.qThreads) {
+			qThread.setVerbose(v);
+		} // end for
 		this.timer.setVerbose(v);
 	} // end setVerbose()
 	
+	/**
+	 * Serve another index chunk. Queries already taken by a query thread finish on the old
+	 * chunk, which is closed once the last of them is done, and the results cache is
+	 * invalidated so no old result is served again. The new chunk gets an empty posting list
+	 * cache with the same budget and pinned words. If the new chunk cannot be opened, the old
+	 * one is kept and served as before.
+	 * @param docId first docId of the index chunk to serve
+	 * @throws IOException if the new chunk cannot be opened
+	 */
+	public void reloadChunk(int docId) throws IOException {
+		InvertedIndexFileReader reader = InvertedIndexFileReader.open(docId, this.verbose);
+		InvertedIndexFileReader old = this.iiReader;
+		PostingListCache postingCache = old.getPostingCache();
+		if (postingCache != null) {
+			reader.setPostingCache(postingCache.emptyCopy());
+			reader.pinPostings(postingCache.getPinned());
+		} // end if
+		this.iiReader = reader;
+		for (QueryThread qThread : this.qThreads) {
+			qThread.setReader(reader);
+		} // end for
+		this.cache.invalidate();
+		old.release();
+	} // end reloadChunk()
+	
+	/**
+	 * @return the query results cache, for its hit, miss and eviction counters
+	 */
+	public QueryResultCache getCache() {
+		return this.cache;
+	} // end getCache()
+	
+	/**
+	 * Pin stopword-like words in the posting list cache. The pins carry over to chunks
+	 * loaded by reloadChunk(); without a posting list cache this does nothing.
+	 * @param words
+	 */
+	public void pinPostings(Collection<String> words) {
+		this.iiReader.pinPostings(words);
+	} // end pinPostings()
+	
+	/**
+	 * @return the posting list cache of the chunk being served, or null
+	 */
+	public PostingListCache getPostingCache() {
+		return this.iiReader.getPostingCache();
+	} // end getPostingCache()
+	
+	/**
+	 * @return number of query threads
+	 */
+	public int getThreadCount() {
+		return this.qThreads.length;
+	} // end getThreadCount()
+	
+	/**
+	 * Stop all query threads.
+	 */
+	public void kill() {
+		this.kill = true;
+		for (QueryThread qThread : this.qThreads) {
+			qThread.kill();
+		} // end for
+		
+		// complete queries no query thread will take
+		Query search;
+		while ((search = this.queries.pollFirst()) != null) {
+			search.setDocIds(noResults(search.getLimit()));
+		} // end while
+	} // end kill()
+	
 	public boolean isVerbose() {
 		return this.verbose;
 	} // end setVerbose()
 	
 	/**
 	 * Query the Skearch Engine and get document IDs returned.
+	 * Waits on the result of queryDocIDAsync().
 	 */
 	public int[] queryDocID(int limit, String query) {
 		
-		query = query.trim();
-		int [] result = new int [limit];
-		Arrays.fill(result, -1);
+		// add new method to timer
+		Method method = timer.addMethod("queryDocID");
+		
+		int [] result = noResults(limit);
 		
 		try {
 			
-			while (!this.kill && !query.isEmpty()) {
-				
-				// add new method to timer
-				Method method = timer.addMethod("queryDocID");
-				
-				// setup search query and results
-				Query search = new Query(query,limit);
-				
-				// add search query to queries deque
-				this.timer.startTimer("Add \"" + query + "\" to search query deque",method);
-				this.queries.addFirst(search);
-				this.timer.stopTimer(method);
-				
-				// count down server latch so query threads know to check the queries deque
-				this.timer.startTimer("Count down server latch",method);
-				this.serverLatch.countDown();
-				this.timer.stopTimer(method);
-				
-				try {
-					
-					// try waiting for search query object to get results
-					this.timer.startTimer("Wait on search query latch until results are found",method);
-					search.getLatch().awaitZero();
-					this.timer.stopTimer(method);
-					
-				} catch (InterruptedException e) {
-					logs.log("Index Server", "high risk", "query latch will not open");
-					e.printStackTrace();
-				} // end try/catch
-				
-				if (this.kill) {
-					return result;
-				} // end if
-				
-				// get results from search query object
-				this.timer.startTimer("Get search results from query object",method);
-				result = search.getDocIds();
-				this.timer.stopTimer(method);
-				
-				// reset latch
-				this.timer.startTimer("Reset server latch",method);
-				this.serverLatch.reset();
-				this.timer.stopTimer(method);
-				
-				return result;
-				
+			// wait for a query thread to complete the search query's future
+			this.timer.startTimer("Wait on search query future until results are found",method);
+			int[] docIds = queryDocIDAsync(limit,query).get();
+			this.timer.stopTimer(method);
+			
+			if (docIds != null) {
+				result = docIds;
 			} // end if
 			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			System.out.println("! Interrupted while querying the index server.");
 		} catch (Exception e) {
 			System.out.println("! Could not query the index server.");
 			e.printStackTrace();
-			return result;
 		} // end try/catch
 		
 		return result;
 		
 	} // end queryDocID()
 	
+	/**
+	 * Queue a query for the query threads and return without waiting for the results,
+	 * so a caller can have many queries in flight at once.
+	 */
+	public CompletableFuture<int[]> queryDocIDAsync(int limit, String query) {
+		return submit(new Query(QueryResultCache.normalize(query),limit));
+	} // end queryDocIDAsync()
+	
+	/**
+	 * Queue a query whose results are ranked by score rather than docId order.
+	 * @param limit
+	 * @param query
+	 * @return a future completed with the docIds of the best scoring documents, best first,
+	 * and their scores
+	 */
+	public CompletableFuture<ScoredDocIds> queryRankedAsync(int limit, String query) {
+		final Query search = new Query(QueryResultCache.normalize(query),limit,true);
+		// the scores are attached before the future completes
+		return submit(search).thenApply(new Function<int[],ScoredDocIds>() {
+			public ScoredDocIds apply(int[] docIds) {
+				return new ScoredDocIds(docIds, search.getScores());
+			} // end apply()
+		});
+	} // end queryRankedAsync()
+	
+	/**
+	 * Queue a search query for the query threads.
+	 * @param search
+	 * @return the search query's future
+	 */
+	private CompletableFuture<int[]> submit(final Query search) {
+		
+		String query = search.getQuery();
+		int limit = search.getLimit();
+		
+		if (this.kill || query.isEmpty()) {
+			return CompletableFuture.completedFuture(noResults(limit));
+		} // end if
+		
+		// add new method to timer
+		Method method = timer.addMethod("submit");
+		
+		// answer repeated queries from the cache without queueing them
+		this.timer.startTimer("Look up \"" + query + "\" in results cache",method);
+		final String key = QueryResultCache.key(query,limit,search.isRanked());
+		boolean[] found = new boolean [1];
+		int[][] scores = new int [1][];
+		int[] cached = this.cache.get(key,found,scores);
+		this.timer.stopTimer(method);
+		if (found[0]) {
+			search.setDocIds(cached,scores[0]);
+			return search.getResult();
+		} // end if
+		
+		// cache the results when they come, unless the chunk changes first
+		final int generation = this.cache.getGeneration();
+		search.getResult().thenAccept(new Consumer<int[]>() {
+			public void accept(int[] docIds) {
+				cache.put(key,docIds,search.getScores(),generation);
+			} // end accept()
+		});
+		
+		// add search query to queries deque; the first free query thread takes it
+		this.timer.startTimer("Add \"" + query + "\" to search query deque",method);
+		this.queries.addLast(search);
+		this.timer.stopTimer(method);
+		
+		// a query queued while the server was being killed would never be taken
+		if (this.kill && this.queries.remove(search)) {
+			search.setDocIds(noResults(limit));
+		} // end if
+		
+		return search.getResult();
+		
+	} // end submit()
+	
+	/**
+	 * Query the Skearch Engine with a batch of queries at once.
+	 * Words are deduped across the batch and the posting list of each word shared by several
+	 * queries is read once, then every query is evaluated against the shared lists.
+	 * The batch runs on the calling thread; each query's future is completed as well.
+	 * Queries answered by the results cache are not searched, and the results of the rest
+	 * are added to it.
+	 * @param batch
+	 * @return docIds for each query, in batch order
+	 */
+	public int[][] queryDocIDs(List<Query> batch) {
+		
+		// add new method to timer
+		Method method = timer.addMethod("queryDocIDs");
+		
+		int[][] results = new int [batch.size()][];
+		List<ArrayDeque<String>> words = new ArrayList<ArrayDeque<String>>(batch.size());
+		List<List<Proximity>> proximity = new ArrayList<List<Proximity>>(batch.size());
+		boolean[] hasOR = new boolean [batch.size()];
+		Set<String> distinct = new LinkedHashSet<String>();
+		Set<String> shared = new LinkedHashSet<String>();
+		
+		// answer repeated queries from the cache; results of the others are cached unless the
+		// chunk changes before they are found
+		this.timer.startTimer("Look up " + batch.size() + " queries in results cache",method);
+		final int generation = this.cache.getGeneration();
+		String[] normalized = new String [batch.size()];
+		String[] keys = new String [batch.size()];
+		boolean[] found = new boolean [1];
+		int[][] scores = new int [1][];
+		for (int i = 0; i < batch.size(); i++) {
+			Query search = batch.get(i);
+			normalized[i] = QueryResultCache.normalize(search.getQuery());
+			keys[i] = QueryResultCache.key(normalized[i],search.getLimit(),search.isRanked());
+			int[] cached = this.cache.get(keys[i],found,scores);
+			if (found[0]) {
+				results[i] = (cached == null) ? noResults(search.getLimit()) : cached;
+				search.setDocIds(results[i],scores[0]);
+			} // end if
+		} // end for
+		this.timer.stopTimer(method);
+		
+		// parse every query into words
+		this.timer.startTimer("Parse " + batch.size() + " queries into words",method);
+		for (int i = 0; i < batch.size(); i++) {
+			ArrayDeque<String> w = new ArrayDeque<String>();
+			List<Proximity> p = new ArrayList<Proximity>();
+			// searched in normalized form, like single queries, so cached results match
+			String query = normalized[i];
+			if (results[i] == null && !query.isEmpty()) {
+				// a query that does not parse fails alone; the rest of the batch still runs
+				try {
+					hasOR[i] = QueryThread.parseQuery(query,w,p);
+				} catch (Exception e) {
+					System.out.println("! Could not parse query \"" + query + "\".");
+					e.printStackTrace();
+					results[i] = noResults(batch.get(i).getLimit());
+					batch.get(i).fail(e);
+					w.clear();
+				} // end try/catch
+				for (String word : new LinkedHashSet<String>(w)) {
+					if (!distinct.add(word)) {
+						shared.add(word);
+					} // end if
+				} // end for
+			} // end if
+			words.add(w);
+			proximity.add(p);
+		} // end for
+		this.timer.stopTimer(method);
+		
+		// keep one reader for the whole batch, even if the chunk is reloaded meanwhile
+		InvertedIndexFileReader reader;
+		do {
+			reader = this.iiReader;
+		} while (!reader.acquire());
+		
+		try {
+			
+			// read the posting list of each word used by more than one query once; words used
+			// by a single query are read by that query, which can stop early or skip blocks
+			this.timer.startTimer("Read posting lists for " + shared.size() + " shared words",method);
+			Map<String,int[]> postings = this.kill ? null : reader.readPostings(shared);
+			this.timer.stopTimer(method);
+			
+			// evaluate every query against the shared posting lists
+			this.timer.startTimer("Query the shared posting lists",method);
+			for (int i = 0; i < batch.size(); i++) {
+				Query search = batch.get(i);
+				if (results[i] != null) {
+					continue;
+				} // end if
+				int[] docIds = null;
+				int[] docScores = null;
+				if (postings != null && !words.get(i).isEmpty()) {
+					if (search.isRanked()) {
+						ScoredDocIds ranked = reader.queryRanked(words.get(i),search.getLimit());
+						docIds = (ranked == null) ? null : ranked.getDocIds();
+						docScores = (ranked == null) ? null : ranked.getScores();
+					} else if (hasOR[i]) {
+						docIds = reader.queryOR(words.get(i),search.getLimit(),postings);
+					} else {
+						docIds = reader.queryAND(words.get(i),search.getLimit(),postings,proximity.get(i));
+					} // end if
+				} // end if
+				if (postings != null) {
+					this.cache.put(keys[i],docIds,docScores,generation);
+				} // end if
+				results[i] = (docIds == null) ? noResults(search.getLimit()) : docIds;
+				search.setDocIds(results[i],docScores);
+			} // end for
+			this.timer.stopTimer(method);
+			
+		} catch (Exception e) {
+			System.out.println("! Could not query the index server.");
+			e.printStackTrace();
+			for (int i = 0; i < batch.size(); i++) {
+				if (results[i] == null) {
+					results[i] = noResults(batch.get(i).getLimit());
+					batch.get(i).fail(e);
+				} // end if
+			} // end for
+		} finally {
+			reader.release();
+		} // end try/catch/finally
+		
+		return results;
+		
+	} // end queryDocIDs()
+	
+	/**
+	 * @param limit
+	 * @return results array for a query with no results
+	 */
+	private static int[] noResults(int limit) {
+		int [] result = new int [limit];
+		Arrays.fill(result, -1);
+		return result;
+	} // end noResults()
+	
 	/**
 	 * DEPRECATED.
 	 * Query the Skearch Engine with a docID and get a caption back.
@@ -1,76 +1,212 @@
 package search.indexserver;
 import java.io.*;
 import  java.net.*;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import search.common.Timer;
 import search.common.Timer.Method;
 
-
+/**
+ * Index server listener. Clients keep their connection open and send WireProtocol QUERY and
+ * RANKED_QUERY requests; each is answered with DOC_IDS or SCORED_DOC_IDS (or ERROR) carrying the
+ * request's ID.
+ * Queries on a connection do not wait for each other: each one goes to the index server as soon
+ * as it arrives, and its answer is sent as soon as it completes, whatever the order it was sent in.
+ * A connection ends when the client closes it.
+ */
 public class IndexServerListener {
-	
+
+	// docIds returned per query when the request asks for none
+	public static final int LIMIT = 10;
+
+	// most docIds a query may ask for; larger limits are cut down to it
+	public static final int MAX_LIMIT = 1000;
+
+	// stopword-like words to pin in the posting list cache, if the file exists
+	public static final String PINNED_CONFIG = "pinnedWords.config";
+
 	private static Timer timer = new Timer("IndexServerListener",true);
 	private static IndexServer instance;
-	
+
+	// one reader and one writer thread per open connection
+	private static ExecutorService connections;
+
 	public static void main(String [] args) throws Exception {
-		
+
 		// add new method to timer
 		Method method = timer.addMethod("main");
-		
+
 		BufferedReader configRead = new BufferedReader(new FileReader("fileNums.config"));
 		int initNum = Integer.parseInt(configRead.readLine());
-		instance = new IndexServer(initNum,true);
-		
+
+		// optional second argument sets the number of query threads (default: one per core),
+		// optional third the posting list cache budget in megabytes (0 turns the cache off)
+		int nThreads = Runtime.getRuntime().availableProcessors();
+		long postingCacheBytes = IndexServer.DEFAULT_POSTING_CACHE_BYTES;
+		if (args.length > 1) {
+			nThreads = Integer.parseInt(args[1]);
+		} // end if
+		if (args.length > 2) {
+			postingCacheBytes = Long.parseLong(args[2]) << 20;
+		} // end if
+		instance = new IndexServer(initNum,true,nThreads,IndexServer.DEFAULT_CACHE_BYTES,postingCacheBytes);
+
+		// words listed one per line in pinnedWords.config are never evicted from the posting list cache
+		File pinnedConfig = new File(PINNED_CONFIG);
+		if (pinnedConfig.exists()) {
+			instance.pinPostings(readWords(pinnedConfig));
+		} // end if
+		connections = Executors.newCachedThreadPool();
+
 		timer.startTimer("Connecting to port " + args[0],method);
 		ServerSocket listener = new ServerSocket(Integer.parseInt(args[0]));
 		timer.stopTimer(method);
-		
+
 		while (true) {
-			
+
 			timer.startTimer("Listening on port " + args[0],method);
-			Socket connection = listener.accept();
-			timer.stopTimer(method);
-			
-			timer.startTimer("Accepted connection from " + connection.getRemoteSocketAddress(),
-					method);
-			
-			BufferedReader clientIn = new  BufferedReader(
-					new InputStreamReader(connection.getInputStream()));
-			DataOutputStream clientOut = new DataOutputStream(
-					connection.getOutputStream());
-			
-			ObjectOutputStream out = new ObjectOutputStream(connection.getOutputStream());
-	        ObjectInputStream in = new ObjectInputStream(connection.getInputStream());
-	        
-	        timer.stopTimer(method);
-			
-			//reads an incoming string
-	        timer.startTimer("Reading incoming query string",method);
-			String input = clientIn.readLine();
-			timer.stopTimer(method);
-			
-			timer.startTimer("Incoming query string " + input + " read",method);
-			input.trim();
-			timer.stopTimer(method);
-			
-			timer.startTimer("Querying the index server",method);
-			int[] ids = instance.queryDocID(10,input);
-			timer.stopTimer(method);
-			
-			timer.startTimer("Sending docIds " + Arrays.toString(ids) + " over the network",method);
-			out.writeObject(ids); //sends the array over the network
-			timer.stopTimer(method);
-			
-			//this is where method calling takes place
-			//specific to front-end communication
-			
-			//gets a query string from the front-end and communicates with a list of indexServers
-			timer.startTimer("Remote client " + connection.getInetAddress() + " disconnected",method);
-			connection.close();
+			final Socket connection = listener.accept();
 			timer.stopTimer(method);
-			
+
+			System.out.println("! Accepted connection from " + connection.getRemoteSocketAddress());
+
+			connections.execute(new Runnable() {
+				public void run() {
+					serve(connection);
+				} // end run()
+			});
+
 		} // end while
-		
+
 	} // end main()
 
+	/**
+	 * Read the non-empty lines of a file, trimmed.
+	 * @param file
+	 * @return words in file order
+	 * @throws IOException
+	 */
+	private static List<String> readWords(File file) throws IOException {
+		List<String> words = new ArrayList<String>();
+		BufferedReader read = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = read.readLine()) != null) {
+				line = line.trim();
+				if (!line.isEmpty()) {
+					words.add(line);
+				} // end if
+			} // end while
+		} finally {
+			read.close();
+		} // end try/finally
+		return words;
+	} // end readWords()
+
+	/**
+	 * Read queries from a connection until the client closes it, and start each one on the index
+	 * server. Runs on the connection's reader thread.
+	 * @param connection
+	 */
+	private static void serve(Socket connection) {
+
+		WireConnection wire = null;
+
+		try {
+
+			wire = new WireConnection(connection, connections);
+
+			WireProtocol.Message request;
+			while ((request = wire.read()) != null) {
+				query(wire, request);
+			} // end while
+
+		} catch (Exception e) {
+			System.out.println("! Could not read query from " + connection.getRemoteSocketAddress() + ".");
+			e.printStackTrace();
+		} finally {
+			if (wire != null) {
+				// the writer closes the connection once the queries already read are answered
+				wire.finish();
+			} else {
+				try {
+					connection.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				} // end try/catch
+			} // end if
+		} // end try/catch/finally
+
+	} // end serve()
+
+	/**
+	 * Start one query and answer it on the connection when it completes.
+	 * @param wire
+	 * @param request
+	 */
+	private static void query(final WireConnection wire, WireProtocol.Message request) {
+
+		final int requestId = request.getRequestId();
+
+		if (request.getType() != WireProtocol.QUERY && request.getType() != WireProtocol.RANKED_QUERY) {
+			wire.reply(WireProtocol.error(requestId, "Index server does not answer requests of type " + request.getType()));
+			return;
+		} // end if
+
+		final boolean ranked = request.getType() == WireProtocol.RANKED_QUERY;
+		CompletableFuture<ScoredDocIds> reply;
+		try {
+			int limit = request.getVarInt();
+			String query = request.getString().trim();
+			if (limit < 0) {
+				wire.reply(WireProtocol.error(requestId, "Negative limit " + limit));
+				return;
+			} else if (limit == 0) {
+				limit = LIMIT;
+			} // end if
+			// the limit sizes arrays, so a client must not be able to ask for gigabytes
+			limit = Math.min(limit, MAX_LIMIT);
+			if (ranked) {
+				reply = instance.queryRankedAsync(limit, query);
+			} else {
+				reply = instance.queryDocIDAsync(limit, query).thenApply(new Function<int[],ScoredDocIds>() {
+					public ScoredDocIds apply(int[] docIds) {
+						return new ScoredDocIds(docIds, null);
+					} // end apply()
+				});
+			} // end if
+		} catch (IOException e) {
+			wire.reply(WireProtocol.error(requestId, "Malformed query: " + e.getMessage()));
+			return;
+		} catch (RuntimeException e) {
+			// every query read must be answered, or the connection never closes
+			System.out.println("! Could not start query.");
+			e.printStackTrace();
+			wire.reply(WireProtocol.error(requestId, "Could not query the index server: " + e));
+			return;
+		} // end try/catch
+
+		reply.whenComplete(new BiConsumer<ScoredDocIds, Throwable>() {
+			public void accept(ScoredDocIds ids, Throwable failure) {
+				if (failure != null) {
+					System.out.println("! Could not query the index server.");
+					failure.printStackTrace();
+					wire.reply(WireProtocol.error(requestId, "Could not query the index server: " + failure));
+				} else if (ranked) {
+					wire.reply(new WireProtocol.Message(WireProtocol.SCORED_DOC_IDS, requestId)
+							.putScoredDocIds(ids.getDocIds(), ids.getScores()));
+				} else {
+					wire.reply(new WireProtocol.Message(WireProtocol.DOC_IDS, requestId).putDocIds(ids.getDocIds()));
+				} // end if
+			} // end accept()
+		});
+
+	} // end query()
+
 } // end IndexServerListener class
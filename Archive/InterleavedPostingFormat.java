@@ -0,0 +1,89 @@
+package search.indexserver;
+
+import java.io.IOException;
+
+/**
+ * Original (version 1) posting layout: each docId is immediately followed by its hit list,
+ * so reading the next docId means decoding the size of the current hit list and skipping it.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class InterleavedPostingFormat implements PostingFormat {
+
+	public int[] readDocIds(PostingStore store, long ptr, int nDocs, int limit) throws IOException {
+
+		if (nDocs < limit) {
+			limit = nDocs;
+		} // end if
+
+		int[] docIds = new int [limit];
+		long pos = ptr;
+
+		for (int docsFound = 0; docsFound < limit; docsFound++) {
+
+			docIds[docsFound] = store.readInt(pos);
+			pos += 4;
+
+			// now move to next docId - we have to skip over the current docId's
+			// hitlist to get to the next one
+			if (docsFound + 1 < limit) {
+				pos += ChunkFormat.hitListSize(store, pos);
+			} // end if
+
+		} // end for
+
+		return docIds;
+
+	} // end readDocIds()
+
+	public PostingCursor cursor(final PostingStore store, long ptr, int nDocs) throws IOException {
+
+		// the hit lists have to be walked to find each docId anyway, so remember where
+		// they are for ranking and phrase queries
+		int[] docIds = new int [nDocs];
+		final long[] hitLists = new long [nDocs];
+		long pos = ptr;
+		for (int i = 0; i < nDocs; i++) {
+			docIds[i] = store.readInt(pos);
+			pos += 4;
+			hitLists[i] = pos;
+			pos += ChunkFormat.hitListSize(store, pos);
+		} // end for
+
+		return new ArrayPostingCursor(docIds) {
+			public int freq() throws IOException {
+				return ChunkFormat.hitCount(store, hitLists[ordinal()]);
+			} // end freq()
+			public int[] hits() throws IOException {
+				return ChunkFormat.readHitList(store, hitLists[ordinal()]);
+			} // end hits()
+		};
+
+	} // end cursor()
+
+	public int[] readHits(PostingStore store, long ptr, int nDocs, int ordinal) throws IOException {
+
+		// walk past the postings in front of this one
+		long pos = ptr;
+		for (int i = 0; i < ordinal; i++) {
+			pos += 4;
+			pos += ChunkFormat.hitListSize(store, pos);
+		} // end for
+
+		return ChunkFormat.readHitList(store, pos + 4);
+
+	} // end readHits()
+
+	public void readPostings(PostingStore store, long ptr, int nDocs, int[] docIds, int[][] hits)
+			throws IOException {
+
+		long pos = ptr;
+		for (int i = 0; i < nDocs; i++) {
+			docIds[i] = store.readInt(pos);
+			pos += 4;
+			hits[i] = ChunkFormat.readHitList(store, pos);
+			pos += ChunkFormat.hitListSize(store, pos);
+		} // end for
+
+	} // end readPostings()
+
+} // end InterleavedPostingFormat class
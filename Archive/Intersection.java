@@ -0,0 +1,126 @@
+package search.indexserver;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Intersect the posting lists of all words of an AND query at once.
+ * The shortest list leads: each of its docIds is looked up in the other lists, shortest first,
+ * and whenever a list is past the candidate the leader jumps ahead to that docId instead.
+ * Lists about as long as the leader are stepped through linearly; lists much longer than the
+ * leader are probed with advance(), which gallops over arrays and skips whole blocks of
+ * compressed posting lists.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class Intersection {
+
+	// lists at least this many times longer than the leader are probed instead of stepped through
+	public static final int GALLOP_RATIO = 8;
+
+	private final PostingCursor[] cursors;
+	private final boolean[] gallop;
+	private boolean exhausted;
+
+	/**
+	 * Prepare to intersect posting lists one docId at a time.
+	 * @param cursors one unused cursor per word
+	 */
+	public Intersection(PostingCursor[] cursors) {
+
+		// order the lists by length, as the lexicon's nDocs gives it
+		this.cursors = cursors.clone();
+		Arrays.sort(this.cursors, new Comparator<PostingCursor>() {
+			public int compare(PostingCursor a, PostingCursor b) {
+				return (a.cost() < b.cost()) ? -1 : ((a.cost() == b.cost()) ? 0 : 1);
+			} // end compare()
+		});
+
+		this.exhausted = this.cursors.length == 0 || this.cursors[0].cost() == 0;
+		this.gallop = new boolean [this.cursors.length];
+		for (int i = 1; i < this.cursors.length && !this.exhausted; i++) {
+			this.gallop[i] = this.cursors[i].cost() / this.cursors[0].cost() >= GALLOP_RATIO;
+		} // end for
+
+	} // end Intersection constructor
+
+	/**
+	 * Move to the next docId found in every list. Afterwards every cursor is on that docId.
+	 * @return the docId, or PostingCursor.NO_MORE_DOCS
+	 * @throws IOException
+	 */
+	public int nextDoc() throws IOException {
+
+		if (this.exhausted) {
+			return PostingCursor.NO_MORE_DOCS;
+		} // end if
+
+		PostingCursor lead = this.cursors[0];
+		int docId = lead.nextDoc();
+
+		candidates:
+		while (docId != PostingCursor.NO_MORE_DOCS) {
+
+			for (int i = 1; i < this.cursors.length; i++) {
+				int other = seek(this.cursors[i], docId, this.gallop[i]);
+				if (other != docId) {
+					// this list has nothing between the candidate and other, so neither does the result
+					docId = lead.advance(other);
+					continue candidates;
+				} // end if
+			} // end for
+
+			return docId;
+
+		} // end while
+
+		this.exhausted = true;
+		return PostingCursor.NO_MORE_DOCS;
+
+	} // end nextDoc()
+
+	/**
+	 * Intersect posting lists.
+	 * @param cursors one unused cursor per word
+	 * @param limit maximum number of docIds to return
+	 * @return the first limit docIds found in every list, in increasing order
+	 * @throws IOException
+	 */
+	public static int[] intersect(PostingCursor[] cursors, int limit) throws IOException {
+
+		if (cursors.length == 0 || limit <= 0) {
+			return new int [0];
+		} // end if
+
+		Intersection intersection = new Intersection(cursors);
+		if (intersection.exhausted) {
+			return new int [0];
+		} // end if
+
+		int[] result = new int [Math.min(limit, intersection.cursors[0].cost())];
+		int n = 0;
+		int docId;
+		while (n < result.length && (docId = intersection.nextDoc()) != PostingCursor.NO_MORE_DOCS) {
+			result[n++] = docId;
+		} // end while
+
+		return (n < result.length) ? Arrays.copyOf(result, n) : result;
+
+	} // end intersect()
+
+	/**
+	 * Move a cursor to the first docId greater than or equal to target.
+	 * @param gallop true to probe with advance(), false to step with nextDoc()
+	 */
+	private static int seek(PostingCursor cursor, int target, boolean gallop) throws IOException {
+		if (gallop) {
+			return cursor.advance(target);
+		} // end if
+		int docId = cursor.docId();
+		while (docId < target) {
+			docId = cursor.nextDoc();
+		} // end while
+		return docId;
+	} // end seek()
+
+} // end Intersection class
@@ -0,0 +1,140 @@
+package search.indexserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Benchmark AND queries of a common word with words of decreasing frequency, comparing a
+ * linear two-pointer merge of the fully read lists with Intersection.
+ * Usage: IntersectionBenchmark [commonDocs] [rounds] [version]
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class IntersectionBenchmark {
+
+	private static final int[] RATIOS = { 1, 4, 16, 64, 256, 1024, 4096 };
+
+	/**
+	 * Write a chunk with one word in commonDocs docs and one rarer word per ratio.
+	 */
+	private static void writeChunk(File f, int version, int commonDocs) throws IOException {
+
+		Random rand = new Random(42);
+		ChunkIndexWriter writer = new ChunkIndexWriter(f, version);
+		writer.addWord("common", docIds(rand, commonDocs, 4), hits(commonDocs));
+
+		for (int ratio : RATIOS) {
+			int n = Math.max(commonDocs / ratio, 1);
+			writer.addWord("rare" + ratio, docIds(rand, n, 4 * ratio), hits(n));
+		} // end for
+
+		writer.close();
+
+	} // end writeChunk()
+
+	private static int[] docIds(Random rand, int n, int maxGap) {
+		int[] docIds = new int [n];
+		int docId = 0;
+		for (int i = 0; i < n; i++) {
+			docId += 1 + rand.nextInt(maxGap);
+			docIds[i] = docId;
+		} // end for
+		return docIds;
+	} // end docIds()
+
+	private static int[][] hits(int n) {
+		int[][] hits = new int [n][];
+		for (int i = 0; i < n; i++) {
+			hits[i] = new int [] { 1 };
+		} // end for
+		return hits;
+	} // end hits()
+
+	/**
+	 * Read both lists whole and merge them with two pointers.
+	 */
+	private static int linear(InvertedIndexFileReader reader, String a, String b, int limit) {
+		int[] x = reader.getDocIds(a, Integer.MAX_VALUE);
+		int[] y = reader.getDocIds(b, Integer.MAX_VALUE);
+		int i = 0, j = 0, n = 0;
+		while (i < x.length && j < y.length && n < limit) {
+			if (x[i] < y[j]) {
+				i++;
+			} else if (x[i] > y[j]) {
+				j++;
+			} else {
+				n++;
+				i++;
+				j++;
+			} // end if
+		} // end while
+		return n;
+	} // end linear()
+
+	private static int intersect(InvertedIndexFileReader reader, String a, String b, int limit) {
+		ArrayDeque<String> words = new ArrayDeque<String>();
+		words.add(a);
+		words.add(b);
+		int[] docIds = reader.queryAND(words, limit);
+		return (docIds == null) ? 0 : docIds.length;
+	} // end intersect()
+
+	/**
+	 * The main benchmark method.
+	 */
+	public static void main(String[] args) {
+
+		int commonDocs = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int version = args.length > 2 ? Integer.parseInt(args[2]) : ChunkFormat.BLOCKED;
+		int limit = Integer.MAX_VALUE;
+
+		try {
+
+			File f = File.createTempFile("chunk", ".index");
+			f.deleteOnExit();
+			writeChunk(f, version, commonDocs);
+			System.out.println("! Wrote " + f.length() + " byte version " + version + " chunk");
+
+			InvertedIndexFileReader reader = new InvertedIndexFileReader(f, false, StorageBackend.MAPPED);
+			reader.setVerbose(false);
+
+			for (int ratio : RATIOS) {
+
+				String rare = "rare" + ratio;
+
+				// warm up the page cache and JIT before measuring
+				for (int r = 0; r < 3; r++) {
+					linear(reader, "common", rare, limit);
+					intersect(reader, "common", rare, limit);
+				} // end for
+
+				long start = System.nanoTime();
+				int linearMatches = 0;
+				for (int r = 0; r < rounds; r++) {
+					linearMatches = linear(reader, "common", rare, limit);
+				} // end for
+				long linearNanos = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				int matches = 0;
+				for (int r = 0; r < rounds; r++) {
+					matches = intersect(reader, "common", rare, limit);
+				} // end for
+				long nanos = System.nanoTime() - start;
+
+				System.out.println(String.format("ratio %5d: linear %8.3f ms  intersection %8.3f ms  %6.1fx  (%d/%d matches)",
+						ratio, linearNanos / 1e6 / rounds, nanos / 1e6 / rounds,
+						(double) linearNanos / nanos, linearMatches, matches));
+
+			} // end for
+
+		} catch (Exception e) {
+			System.out.println("! Could not run intersection benchmark.");
+			e.printStackTrace();
+		} // end try/catch
+
+	} // end main()
+
+} // end IntersectionBenchmark class
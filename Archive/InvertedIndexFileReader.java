@@ -1,16 +1,21 @@
 package search.indexserver;
 
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
-import java.util.TreeMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import search.common.Timer;
 import search.common.Timer.Method;
 
@@ -21,13 +26,23 @@ import search.common.Timer.Method;
 public class InvertedIndexFileReader {
 	
 	// provides random access to the index (e.g. to jump to an offset in the index area)
-	private RandomAccessFile indexFile;
+	private PostingStore indexFile;
 	
-	// provides sequential access to the index (for reading the lex map into memory)
-	private DataInputStream indexFile1;
+	// chunk format version and the layout of its posting lists
+	private int version;
+	private PostingFormat format;
 	
 	// the in-memory lexicon for looking up offsets/ndocs by word
-	private TreeMap<String, LexMapEntry> lexMap;
+	private Lexicon lexMap;
+	
+	// estimate of the number of docs in the chunk for ranking, found on first use
+	private volatile int docCount = -1;
+	
+	// off-heap docId lists of popular words, or null to always read from the chunk
+	private volatile PostingListCache postingCache;
+	
+	// the owner's reference plus one per query running on the reader; closed at zero
+	private final AtomicInteger refs = new AtomicInteger(1);
 	
 	private final static Timer timer = new Timer("InvertedIndexFileReader",true);
 	private boolean verbose;
@@ -38,41 +53,149 @@ public class InvertedIndexFileReader {
 
 	public void setVerbose(boolean verbose) {
 		this.verbose = verbose;
+		timer.setVerbose(verbose);
 	} // end setVerbose()
 
 	/**
 	 * Create a new inverted index file reader given a docId.
-	 * Note: There is a bit of a startup delay while reading the lexicon into memory.
+	 * Note: There is a short startup delay while reading the lexicon into memory.
 	 * @param docId
 	 */
 	public InvertedIndexFileReader(int docId, boolean v) {
+		this(docId, v, null);
+	} // end InvertedIndexFileReader constructor
+	
+	/**
+	 * Create a new inverted index file reader given a docId and storage backend.
+	 * @param docId
+	 * @param backend storage backend, or null to pick one for the chunk
+	 */
+	public InvertedIndexFileReader(int docId, boolean v, StorageBackend backend) {
+		this(new File(String.format("chunk%1$016x.index", docId)), v, backend);
+	} // end InvertedIndexFileReader constructor
+	
+	/**
+	 * Create a new inverted index file reader for the given chunk file.
+	 * The lexicon sidecar is used if the chunk has one.
+	 * @param file chunk file
+	 * @param backend storage backend, or null to pick one for the chunk
+	 */
+	public InvertedIndexFileReader(File file, boolean v, StorageBackend backend) {
+		this(file, v, backend, true);
+	} // end InvertedIndexFileReader constructor
+	
+	/**
+	 * Create a new inverted index file reader for the given chunk file.
+	 * @param file chunk file
+	 * @param backend storage backend, or null to pick one for the chunk
+	 * @param useSidecar search the chunk's lexicon sidecar in place if it has one,
+	 * rather than loading the lexicon onto the heap
+	 */
+	public InvertedIndexFileReader(File file, boolean v, StorageBackend backend, boolean useSidecar) {
+		
+		try {
+			open(file, v, backend, useSidecar, false);
+		} catch (Exception ex) {
+			System.out.println("! Could not create inverted index file reader.");
+			System.out.println(ex);
+		} // end try/catch
+		
+	} // end InvertedIndexFileReader constructor
+	
+	private InvertedIndexFileReader() {
+	} // end InvertedIndexFileReader constructor
+	
+	/**
+	 * Open an inverted index file reader for a chunk, reporting failure rather than
+	 * returning a reader that cannot answer queries. The lexicon sidecar is used if the
+	 * chunk has one.
+	 * @param docId
+	 * @param v
+	 * @return the reader
+	 * @throws IOException if the chunk or its lexicon cannot be read
+	 */
+	public static InvertedIndexFileReader open(int docId, boolean v) throws IOException {
+		InvertedIndexFileReader reader = new InvertedIndexFileReader();
+		reader.open(new File(String.format("chunk%1$016x.index", docId)), v, null, true, true);
+		return reader;
+	} // end open()
+	
+	/**
+	 * Open the chunk and its lexicon.
+	 * @param strict throw if the lexicon cannot be read, rather than using an empty one
+	 * @throws IOException
+	 */
+	private void open(File file, boolean v, StorageBackend backend, boolean useSidecar, boolean strict) throws IOException {
 		
 		// add new method to timer
 		Method method = timer.addMethod("InvertedIndexFileReader");
 		
+		// initiate timer
+		this.verbose = v;
+		
+		// pick the storage backend for this chunk
+		if (backend == null) {
+			backend = StorageBackend.forChunk(file);
+		} // end if
+		
+		// fire up the random access file reader
+		timer.startTimer("Open index chunk for reading",method);
+		this.indexFile = openStore(file, backend);
+		timer.stopTimer(method);
+		
 		try {
 			
-			// initiate timer
-			this.verbose = v;
-			
-			// fire up the random and sequential file readers
-			timer.startTimer("Open index chunk for reading",method);
-			String filename = String.format("chunk%1$016x.index", docId);
-			this.indexFile = new RandomAccessFile(new File(filename), "r");
-			this.indexFile1 = new DataInputStream(new FileInputStream(new File(filename)));
+			// detect the old interleaved layout or a newer versioned chunk
+			timer.startTimer("Detect index chunk format",method);
+			this.version = ChunkFormat.version(this.indexFile);
+			this.format = ChunkFormat.postingFormat(this.version, this.indexFile);
 			timer.stopTimer(method);
 			
-			// read the lexicon into memory (this takes a minute)
-			timer.startTimer("Read Lexicon Map into Memory",method);
-			this.lexMap = getLexMap();
-			timer.stopTimer(method);
+			// map the lexicon sidecar, or read the lexicon into memory
+			if (useSidecar) {
+				timer.startTimer("Map lexicon sidecar",method);
+				this.lexMap = mapLexMap(file);
+				timer.stopTimer(method);
+			} // end if
+			if (this.lexMap == null) {
+				timer.startTimer("Read Lexicon Map into Memory",method);
+				this.lexMap = getLexMap(strict);
+				timer.stopTimer(method);
+			} // end if
 			
-		} catch (Exception ex) {
-			System.out.println("! Could not create inverted index file reader.");
-			System.out.println(ex);
+		} catch (IOException ex) {
+			if (strict) {
+				this.indexFile.close();
+			} // end if
+			throw ex;
 		} // end try/catch
 		
-	} // end InvertedIndexFileReader constructor
+		if (this.verbose) {
+			System.out.println("! Lexicon holds " + lexMap.size() + " words in "
+					+ lexMap.memoryFootprint() + " bytes");
+		} // end if
+		
+	} // end open()
+	
+	/**
+	 * Open the posting store for a chunk, falling back to positional reads
+	 * if the chunk cannot be memory-mapped.
+	 * @param file
+	 * @param backend
+	 * @return
+	 * @throws IOException
+	 */
+	private PostingStore openStore(File file, StorageBackend backend) throws IOException {
+		try {
+			return backend.open(file);
+		} catch (IOException ex) {
+			if (backend != StorageBackend.MAPPED) {
+				throw ex;
+			} // end if
+			System.out.println("! Could not map index chunk, using positional reads.");
+			return StorageBackend.POSITIONAL.open(file);
+		} // end try/catch
+	} // end openStore()
 	
 	/**
 	 * Transfer query words to priority queue based on nDocs size.
@@ -89,7 +212,8 @@ public class InvertedIndexFileReader {
 		while (it.hasNext()) {
 			
 			String word = (String) it.next();
-			int nDocs = lexMap.get(word).nDocs;
+			LexMapEntry entry = lookup(word);
+			int nDocs = (entry == null) ? 0 : entry.nDocs;
 			Word w = new Word(word,nDocs);
 			
 			// add word to queue
@@ -108,6 +232,15 @@ public class InvertedIndexFileReader {
 	 * @return
 	 */
 	public int[] queryOR(ArrayDeque<String> words, int limit) {
+		return queryOR(words, limit, null);
+	} // end queryOR()
+	
+	/**
+	 * Query words ORed together, taking docIds from postings where a word has already been read.
+	 * @param postings docIds read by readPostings(), or null to read every word from the index
+	 * @return
+	 */
+	public int[] queryOR(ArrayDeque<String> words, int limit, Map<String,int[]> postings) {
 		
 		// add new method to timer
 		Method method = timer.addMethod("queryOR");
@@ -117,31 +250,32 @@ public class InvertedIndexFileReader {
 		PriorityQueue<Word> search = enqueueWords(words);
 		timer.stopTimer(method);
 		
-		// get docIds for word with smallest nDocs.
-		Word word = search.poll();
-		
-		// get docIds for search term
-		timer.startTimer("Search inverted index for \"" + word.getWord() + "\"",method);
-		int[] results = getDocIds(word.getWord(),word.getnDocs());
-		timer.stopTimer(method);
-		
-		// merge docIds for all other words, so only common docIds remain
-		while (!search.isEmpty()) {
+		// the first limit docIds of the union are among the first limit docIds of each
+		// word, so no more than that is read from any posting list
+		PostingCursor[] cursors = new PostingCursor [search.size()];
+		for (int i = 0; i < cursors.length; i++) {
 			
 			// get next search term
-			word = search.poll();
+			Word word = search.poll();
 			
 			// get docIds for search term
 			timer.startTimer("Search inverted index for \"" + word.getWord() + "\"",method);
-			int[] temp = getDocIds(word.getWord(),word.getnDocs());
-			timer.stopTimer(method);
-			
-			// merge search results
-			timer.startTimer("Merge search results",method);
-			results = mergeOR(temp,results,limit);
+			cursors[i] = new ArrayPostingCursor(docIds(word,limit,postings));
 			timer.stopTimer(method);
 			
-		} // end while
+		} // end for
+		
+		// union all lists at once, so every docId appears once and in order
+		timer.startTimer("Union search results",method);
+		int[] results;
+		try {
+			results = Union.union(cursors,limit);
+		} catch (IOException e) {
+			System.out.println("! Could not union docIds.");
+			e.printStackTrace();
+			results = new int [0];
+		} // end try/catch
+		timer.stopTimer(method);
 		
 		// return null if no results found.
 		if (results.length == 0) {
@@ -153,73 +287,34 @@ public class InvertedIndexFileReader {
 		
 	} // end queryOR()
 	
+	
 	/**
-	 * Merge two int arrays so all unique elements in both arrays are added to new array
-	 * @param t
-	 * @param r
+	 * Query words ANDed together.
 	 * @return
 	 */
-	private int[] mergeOR(int[] t, int[] r, int limit) {
-		
-		// add new method to timer
-		Method method = timer.addMethod("mergeOR");
-		
-		// start timer
-		timer.startTimer("Add all docIds to results array",method);
-		
-		int[] result = null;
-		if (r.length > t.length) {
-			if (t.length >= limit) {
-				result = Arrays.copyOf(t,limit);
-			} else {
-				int size = limit;
-				if (t.length + r.length < limit) {
-					size = t.length + r.length;
-				} // end if
-				result = new int [size];
-				for (int i = 0; i < t.length; i++) {
-					result[i] = t[i];
-				} // end for
-				int index = -1;
-				for (int i = t.length; i < size; i++) {
-					int search = -1;
-					while (search < 0) {
-						index++;
-						Arrays.binarySearch(t,r[index]);
-					} // end while
-					result[i] = r[index];
-				} // end for
-			} // end if
-		} else {
-			if (r.length >= limit) {
-				result = Arrays.copyOf(r,limit);
-			} else {
-				int size = limit;
-				if (r.length + t.length < limit) {
-					size = r.length + t.length;
-				} // end if
-				result = new int [size];
-				for (int i = 0; i < r.length; i++) {
-					result[i] = r[i];
-				} // end for
-				for (int i = r.length; i < size; i++) {
-					result[i] = t[i-r.length];
-				} // end for
-			} // end if
-		} // end if
-		
-		// stop timer
-		timer.stopTimer(method);
-		
-		return result;
-		
-	} // end mergeOR()
+	public int[] queryAND(ArrayDeque<String> words, int limit) {
+		return queryAND(words, limit, null);
+	} // end queryAND()
 	
 	/**
-	 * Query words ANDed together.
+	 * Query words ANDed together, taking docIds from postings where a word has already been read.
+	 * @param postings docIds read by readPostings(), or null to read every word from the index
 	 * @return
 	 */
-	public int[] queryAND(ArrayDeque<String> words, int limit) {
+	public int[] queryAND(ArrayDeque<String> words, int limit, Map<String,int[]> postings) {
+		return queryAND(words, limit, postings, null);
+	} // end queryAND()
+	
+	/**
+	 * Query words ANDed together, keeping only the docs whose hit lists satisfy every
+	 * phrase and NEAR/k constraint. Docs are intersected on docIds first, and hit lists are
+	 * only decoded for docs that contain all the words.
+	 * @param postings docIds read by readPostings(), or null to read every word from the index
+	 * @param proximity constraints on word positions, or null
+	 * @return
+	 */
+	public int[] queryAND(ArrayDeque<String> words, int limit, Map<String,int[]> postings,
+			List<Proximity> proximity) {
 		
 		// add new method to timer
 		Method method = timer.addMethod("queryAND");
@@ -229,41 +324,49 @@ public class InvertedIndexFileReader {
 		PriorityQueue<Word> search = enqueueWords(words);
 		timer.stopTimer(method);
 		
-		// get docIds for word with smallest nDocs.
-		Word word = search.poll();
-		
-		// get docIds for search term
-		timer.startTimer("Search inverted index for \"" + word.getWord() + "\"",method);
-		int[] results = getDocIds(word.getWord(),word.getnDocs());
-		timer.stopTimer(method);
+		// words with a position constraint need cursors that can read hit lists
+		Set<String> positional = new HashSet<String>();
+		if (proximity != null) {
+			for (Proximity p : proximity) {
+				positional.addAll(Arrays.asList(p.getWords()));
+			} // end for
+		} // end if
 		
-		// merge docIds for all other words, so only common docIds remain
+		// open a cursor over the docIds of every search term, shortest list first
+		Map<String,PostingCursor> byWord = new HashMap<String,PostingCursor>();
 		while (!search.isEmpty()) {
 			
 			// get next search term
-			word = search.poll();
+			Word word = search.poll();
+			if (byWord.containsKey(word.getWord())) {
+				continue;
+			} // end if
 			
-			// get docIds for search term
-			timer.startTimer("Search inverted index for \"" + word.getWord() + "\"",method);
-			int[] temp = getDocIds(word.getWord(),word.getnDocs());
+			timer.startTimer("Open cursor over inverted index for \"" + word.getWord() + "\"",method);
+			PostingCursor cursor = positional.contains(word.getWord())
+					? getCursor(word.getWord()) : cursor(word.getWord(),postings);
 			timer.stopTimer(method);
 			
-			// merge search results
-			timer.startTimer("Merge search results",method);
-			results = mergeAND(temp,results,limit);
-			timer.stopTimer(method);
+			byWord.put(word.getWord(), (cursor == null) ? new ArrayPostingCursor(new int [0]) : cursor);
 			
 		} // end while
+		PostingCursor[] cursors = byWord.values().toArray(new PostingCursor [byWord.size()]);
 		
-		// resize results to results limit
-		if (results.length > limit) {
-			
-			// resize results array
-			timer.startTimer("Resize results array to size " + limit,method);
-			results = Arrays.copyOf(results, limit);
-			timer.stopTimer(method);
-			
-		} // end if
+		// intersect all lists at once, so only common docIds remain
+		timer.startTimer("Intersect search results",method);
+		int[] results;
+		try {
+			if (positional.isEmpty()) {
+				results = Intersection.intersect(cursors,limit);
+			} else {
+				results = intersect(cursors,byWord,proximity,limit);
+			} // end if
+		} catch (IOException e) {
+			System.out.println("! Could not intersect docIds.");
+			e.printStackTrace();
+			results = new int [0];
+		} // end try/catch
+		timer.stopTimer(method);
 		
 		// return null if no results found.
 		if (results.length == 0) {
@@ -276,100 +379,300 @@ public class InvertedIndexFileReader {
 	} // end queryAND()
 	
 	/**
-	 * Merge two int arrays so only elements common to both arrays remain
-	 * @param t
-	 * @param r
+	 * Intersect posting lists, checking the hit lists of each common doc against the
+	 * proximity constraints before accepting it.
+	 * @param byWord cursor of each word
 	 * @return
+	 * @throws IOException
+	 */
+	private int[] intersect(PostingCursor[] cursors, Map<String,PostingCursor> byWord,
+			List<Proximity> proximity, int limit) throws IOException {
+		
+		int size = limit;
+		for (PostingCursor cursor : cursors) {
+			size = Math.min(size, cursor.cost());
+		} // end for
+		
+		Intersection intersection = new Intersection(cursors);
+		int[] result = new int [Math.max(size, 0)];
+		int index = 0;
+		int docId;
+		
+		candidates:
+		while (index < result.length && (docId = intersection.nextDoc()) != PostingCursor.NO_MORE_DOCS) {
+			
+			// every cursor is on the doc now, so decode just the hit lists the constraints need
+			for (Proximity p : proximity) {
+				String[] w = p.getWords();
+				int[][] positions = new int [w.length][];
+				for (int i = 0; i < w.length; i++) {
+					positions[i] = byWord.get(w[i]).hits();
+				} // end for
+				if (!p.matches(positions)) {
+					continue candidates;
+				} // end if
+			} // end for
+			
+			result[index++] = docId;
+			
+		} // end while
+		
+		return (index < result.length) ? Arrays.copyOf(result, index) : result;
+		
+	} // end intersect()
+	
+	
+	/**
+	 * Query words ranked by BM25 score, using the hit list length of each doc as its term
+	 * frequency. WAND pruning skips the docs that cannot make the top limit.
+	 * @return docIds in decreasing order of score with their scores, or null if none found
 	 */
-	private int[] mergeAND(int[] t, int[] r, int limit) {
+	public ScoredDocIds queryRanked(ArrayDeque<String> words, int limit) {
 		
 		// add new method to timer
-		Method method = timer.addMethod("mergeAND");
+		Method method = timer.addMethod("queryRanked");
 		
-		int size = limit;
-		if (t.length < limit || r.length < limit) {
-			size = Math.min(t.length,r.length);
+		ScoredDocIds results;
+		
+		try {
+			
+			// open a cursor for every distinct search term in the lexicon
+			timer.startTimer("Open cursors over inverted index",method);
+			int docCount = getDocCount();
+			List<RankedSearch.Term> terms = new ArrayList<RankedSearch.Term>();
+			for (String word : new LinkedHashSet<String>(words)) {
+				LexMapEntry entry = lookup(word);
+				if (entry != null && entry.nDocs > 0) {
+					PostingCursor cursor = format.cursor(indexFile, entry.ptr, entry.nDocs);
+					terms.add(new RankedSearch.Term(cursor, entry.nDocs, docCount));
+				} // end if
+			} // end for
+			timer.stopTimer(method);
+			
+			// score docs and keep the best
+			timer.startTimer("Rank search results",method);
+			results = RankedSearch.scoredDocs(terms.toArray(new RankedSearch.Term [terms.size()]),limit,true);
+			timer.stopTimer(method);
+			
+		} catch (IOException e) {
+			System.out.println("! Could not rank docIds.");
+			e.printStackTrace();
+			results = new ScoredDocIds(new int [0], new int [0]);
+		} // end try/catch
+		
+		// return null if no results found.
+		if (results.getDocIds().length == 0) {
+			System.out.println("! No results found.");
+			results = null;
 		} // end if
 		
-		// start timer
-		timer.startTimer("Add all docIds common to both arrays to list",method);
+		return results;
 		
-		int[] result = new int [size];
-		int i = 0, j = 0, index = 0;
-		while ((i < t.length) && (j < r.length) && (index < size)) {
-			if (t[i] > r[j]) {
-				j++;
-			} else if (t[i] < r[j]) {
-				i++;
-			} else {
-				result[index] = t[i];
-				index++;
-				i++;
-				j++;
-			} // end if
-		} // end while
+	} // end queryRanked()
+	
+	/**
+	 * Chunks do not record how many docs they hold, so estimate it as the largest nDocs
+	 * in the lexicon; the most common word is in nearly every doc.
+	 * @return
+	 */
+	private int getDocCount() {
+		if (this.docCount < 0) {
+			int max = 1;
+			for (int i = 0; i < lexMap.size(); i++) {
+				max = Math.max(max, lexMap.nDocs(i));
+			} // end for
+			this.docCount = max;
+		} // end if
+		return this.docCount;
+	} // end getDocCount()
+	
+	/**
+	 * Read the full docId list of each distinct word once, so several queries that share
+	 * words can be evaluated without reading the same posting list again.
+	 * @param words
+	 * @return docIds of each word, keyed by word
+	 */
+	public Map<String,int[]> readPostings(Collection<String> words) {
 		
-		// stop timer
-		timer.stopTimer(method);
+		// add new method to timer
+		Method method = timer.addMethod("readPostings");
+		
+		Map<String,int[]> result = new HashMap<String,int[]>();
+		
+		for (String word : words) {
+			
+			if (result.containsKey(word)) {
+				continue;
+			} // end if
+			
+			LexMapEntry entry = lookup(word);
+			int nDocs = (entry == null) ? 0 : entry.nDocs;
+			
+			timer.startTimer("Read all docIds for \"" + word + "\"",method);
+			result.put(word, docIds(new Word(word,nDocs),nDocs,null));
+			timer.stopTimer(method);
+			
+		} // end for
 		
 		return result;
 		
-	} // end mergeAND()
+	} // end readPostings()
+	
+	/**
+	 * @param limit maximum number of docIds to read from the index
+	 * @param postings docIds already read, or null
+	 * @return docIds of word, from postings if it has been read already
+	 */
+	private int[] docIds(Word word, int limit, Map<String,int[]> postings) {
+		if (postings != null && postings.containsKey(word.getWord())) {
+			return postings.get(word.getWord());
+		} // end if
+		if (word.getnDocs() <= 0 || limit <= 0) {
+			return new int [0];
+		} // end if
+		int[] docIds = getDocIds(word.getWord(),Math.min(word.getnDocs(),limit));
+		return (docIds == null) ? new int [0] : docIds;
+	} // end docIds()
+	
+	/**
+	 * @param postings docIds already read, or null
+	 * @return cursor over docIds of word, over postings if it has been read already
+	 */
+	private PostingCursor cursor(String word, Map<String,int[]> postings) {
+		if (postings != null && postings.containsKey(word)) {
+			return new ArrayPostingCursor(postings.get(word));
+		} // end if
+		try {
+			LexMapEntry entry = lookup(word);
+			IntBuffer cached = (entry == null) ? null : cachedDocIds(word, entry, entry.nDocs);
+			if (cached != null) {
+				return new BufferPostingCursor(cached);
+			} // end if
+		} catch (IOException e) {
+			System.out.println("! Could not cache docIds.");
+			e.printStackTrace();
+		} // end try/catch
+		return getCursor(word);
+	} // end cursor()
+	
+	/**
+	 * Serve the docIds of a word from the posting list cache. On a miss the whole list is
+	 * read into the cache if the cache admits it; a reader that needs only the first limit
+	 * docIds gets null instead, and reads them from the chunk, until the word is popular.
+	 * @param word
+	 * @param entry lexicon entry of word
+	 * @param limit number of docIds needed, entry.nDocs for the whole list
+	 * @return cached docIds, or null if there is no cache or the list is not worth caching (yet)
+	 * @throws IOException
+	 */
+	private IntBuffer cachedDocIds(String word, LexMapEntry entry, int limit) throws IOException {
+		PostingListCache cache = this.postingCache;
+		if (cache == null || !cache.admits(entry.nDocs)) {
+			return null;
+		} // end if
+		IntBuffer docIds = cache.get(word);
+		if (docIds == null && cache.admits(word, entry.nDocs, limit)) {
+			docIds = cache.put(word, format.readDocIds(indexFile, entry.ptr, entry.nDocs, entry.nDocs));
+		} // end if
+		return docIds;
+	} // end cachedDocIds()
+	
+	/**
+	 * Cache docId lists of popular words off-heap. Boolean queries and getDocIds() are
+	 * served from the cache; ranked and phrase queries still need hit lists from the chunk.
+	 * @param cache posting list cache for this chunk only, or null to turn caching off
+	 */
+	public void setPostingCache(PostingListCache cache) {
+		this.postingCache = cache;
+	} // end setPostingCache()
+	
+	/**
+	 * @return the posting list cache, for its hit, miss and eviction counters, or null
+	 */
+	public PostingListCache getPostingCache() {
+		return this.postingCache;
+	} // end getPostingCache()
+	
+	/**
+	 * Pin stopword-like words in the posting list cache and read their lists now.
+	 * @param words
+	 */
+	public void pinPostings(Collection<String> words) {
+		PostingListCache cache = this.postingCache;
+		if (cache == null) {
+			return;
+		} // end if
+		for (String word : words) {
+			cache.pin(word);
+			try {
+				LexMapEntry entry = lookup(word);
+				if (entry != null) {
+					cachedDocIds(word, entry, entry.nDocs);
+				} // end if
+			} catch (IOException e) {
+				System.out.println("! Could not cache docIds of \"" + word + "\".");
+				e.printStackTrace();
+			} // end try/catch
+		} // end for
+	} // end pinPostings()
+	
+	/**
+	 * Map the lexicon sidecar of a chunk.
+	 * @param file chunk file
+	 * @return the mapped lexicon, or null if there is no usable sidecar
+	 */
+	private Lexicon mapLexMap(File file) {
+		
+		File sidecar = MappedLexicon.sidecarFile(file);
+		if (!sidecar.exists()) {
+			return null;
+		} // end if
+		
+		try {
+			return new MappedLexicon(sidecar, file);
+		} catch (IOException ex) {
+			System.out.println("! Could not map lexicon sidecar, loading lexicon instead.");
+			System.out.println(ex);
+			return null;
+		} // end try/catch
+		
+	} // end mapLexMap()
 	
 	/**
 	 * Read the Lex Map into Memory.
+	 * @param strict throw if the lexicon cannot be read, rather than returning an empty one
 	 * @return
+	 * @throws IOException
 	 */
-	@SuppressWarnings("deprecation")
-	private TreeMap<String, LexMapEntry> getLexMap() {
+	private Lexicon getLexMap(boolean strict) throws IOException {
 		
 		// add new method to timer
 		Method method = timer.addMethod("getLexMap");
 		
-		// create new LexMap
-		TreeMap<String, LexMapEntry> map = new TreeMap<String, LexMapEntry>();
-		
 		try {
 			
-			// the first 8 bytes tell us the offset that we
-			// should STOP reading the lexicon from (that's the
-			// end of the lex area and beginning of the index area)
-			timer.startTimer("Get offset to stop reading lexicon from",method);
-			byte[] boundaryBytes = new byte[8];
-			indexFile1.read(boundaryBytes);
-			long lexMapBoundary = ByteBuffer.wrap(boundaryBytes).getLong();
-			int offset = 8;
-			timer.stopTimer(method);
-			
-			// start timer
+			// read the lex area in large blocks straight into a compact lexicon
 			timer.startTimer("Read word and nDocs info from lexicon",method);
+			LexiconLoader loader = new LexiconLoader(indexFile, version);
+			Lexicon map = loader.load();
+			timer.stopTimer(method);
 			
-			// now, read the word and its lexmapentry (ndocs-int, offsetToIndexArea-long)
-			// we keep reading until we reach the end of the lexMap (lexMapBoundary)
-			String word = "";
-			while (offset < lexMapBoundary) {
-				
-				// get the word
-				word = indexFile1.readLine();
-				offset+= word.getBytes().length;
-								
-				// get ndocs, offset
-				LexMapEntry entry = new LexMapEntry(indexFile1.readInt(),indexFile1.readLong());
-				map.put(word.toString(), entry);
-				offset += 12;
-				
-			} // end while
+			if (this.verbose) {
+				System.out.println(String.format("! Loaded %d words in %d ms (%.0f words/s)",
+						loader.getWords(), loader.getMillis(), loader.getWordsPerSecond()));
+			} // end if
 			
-			// stop timer
-			timer.stopTimer(method);
+			return map;
 		
 		} catch (Exception ex) {
+			if (strict) {
+				throw new IOException("Could not read from the lexicon", ex);
+			} // end if
 			System.out.println("! Could not read from the lexicon.");
 			ex.printStackTrace();
+			return new CompactLexicon.Builder().build();
 		} // end try/catch
 		
-		return map;
-		
 	} // end getLexMap()
 	
 	/**
@@ -388,43 +691,31 @@ public class InvertedIndexFileReader {
 			try {
 				
 				// get the number of matching docs from the lexicon for this word
-				int nDocs = lexMap.get(word).nDocs;
+				LexMapEntry entry = lookup(word);
+				if (entry == null) {
+					return new int [0];
+				} // end if
+				int nDocs = entry.nDocs;
+				
+				// popular words are served from the posting list cache
+				IntBuffer cached = cachedDocIds(word, entry, limit);
+				if (cached != null) {
+					int[] docIds = new int [Math.min(limit, cached.limit())];
+					cached.get(docIds);
+					return docIds;
+				} // end if
 				
 				// now seek into the index file at the offset we get from the lexicon for this word
 				timer.startTimer("Seek word pointer for search query in lexicon",method);
-				indexFile.seek(lexMap.get(word).ptr);
+				long ptr = entry.ptr;
 				timer.stopTimer(method);
 
-				// limit is what we use to stop reading from the index - we stop when we hit the limit given
-				// at query time, or nDocs if that is smaller than what the user wants
-				if (nDocs < limit) {
-					limit = nDocs;
-				} // end if
-				
-				// the array of docIds to return
-				int[] docIds = new int [limit];
-
-				int docsFound = 0;		// number of docs found so far
-				int docsSearched = 0;	// number of docs searched so far
-
 				// start timer
 				timer.startTimer("Get docIds from the lexicon",method);
 				
-				// we set done = true once we have enough docs
-				boolean done = false;
-				while ((docsFound < limit) && !done) {
-					
-					docIds[docsFound++] = indexFile.readInt();
-					
-					if (++docsSearched == limit) {
-						done = true;	// if we have searched enough...
-					} else {
-						// now move to next docId - we have to skip over the current docId's
-						// hitlist to get to the next one
-						indexFile.seek(indexFile.getFilePointer() + getHitListSize());
-					} // end if
-					
-				} // end while
+				// limit is what we use to stop reading from the index - we stop when we hit the limit given
+				// at query time, or nDocs if that is smaller than what the user wants
+				int[] docIds = format.readDocIds(indexFile, ptr, nDocs, limit);
 				
 				// stop timer
 				timer.stopTimer(method);
@@ -446,43 +737,141 @@ public class InvertedIndexFileReader {
 	} // end getDocIds()
 	
 	/**
-	 * Read the HitList for given docId and return size of that hitlist
+	 * Open a cursor over the docIds of a word.
+	 * @param word
+	 * @return cursor, or null if the posting list could not be read
+	 */
+	public PostingCursor getCursor(String word) {
+		try {
+			LexMapEntry entry = lookup(word);
+			if (entry == null) {
+				return new ArrayPostingCursor(new int [0]);
+			} // end if
+			return format.cursor(indexFile, entry.ptr, entry.nDocs);
+		} catch (IOException e) {
+			System.out.println("! Could not open cursor over docIds.");
+			e.printStackTrace();
+			return null;
+		} // end try/catch
+	} // end getCursor()
+	
+	/**
+	 * Return the hit list of one posting of a word.
+	 * @param word
+	 * @param ordinal index of the posting in the word's posting list
 	 * @return
 	 */
-	private int getHitListSize() {
+	public int[] getHits(String word, int ordinal) {
 		try {
-			int hitListSize = (indexFile.readByte() & 0xff);
-			if (hitListSize < 0xff) {
-				return (hitListSize & 0xff) * 2 + 1;
-			} else {
-				return (indexFile.readShort() * 2) + 3;
+			LexMapEntry entry = lookup(word);
+			if (entry == null) {
+				return null;
+			} // end if
+			return format.readHits(indexFile, entry.ptr, entry.nDocs, ordinal);
+		} catch (IOException e) {
+			System.out.println("! Could not get hit list.");
+			e.printStackTrace();
+			return null;
+		} // end try/catch
+	} // end getHits()
+	
+	/**
+	 * @return format version of this chunk
+	 */
+	public int getVersion() {
+		return version;
+	} // end getVersion()
+	
+	/**
+	 * Take a reference to the reader for the length of one query.
+	 * @return false if the reader has been retired and closed; use the current one instead
+	 */
+	public boolean acquire() {
+		int n;
+		do {
+			n = this.refs.get();
+			if (n <= 0) {
+				return false;
+			} // end if
+		} while (!this.refs.compareAndSet(n, n + 1));
+		return true;
+	} // end acquire()
+	
+	/**
+	 * Drop a reference taken by acquire(), or the owner's reference when the reader is
+	 * retired. The chunk is closed once no reference is left.
+	 */
+	public void release() {
+		if (this.refs.decrementAndGet() == 0) {
+			close();
+		} // end if
+	} // end release()
+	
+	/**
+	 * Close the chunk, its lexicon sidecar and its posting list cache.
+	 */
+	private void close() {
+		try {
+			if (this.indexFile != null) {
+				this.indexFile.close();
 			} // end if
-		} catch (Exception e) {
-			System.out.println("! Could not get hit list size.");
+			if (this.lexMap instanceof MappedLexicon) {
+				((MappedLexicon) this.lexMap).close();
+			} // end if
+		} catch (IOException e) {
+			System.out.println("! Could not close index chunk.");
 			e.printStackTrace();
-			return -1;
 		} // end try/catch
-	} // end getHitListSize()
+		PostingListCache cache = this.postingCache;
+		if (cache != null) {
+			cache.clear();
+		} // end if
+	} // end close()
+	
+	PostingFormat getFormat() {
+		return format;
+	} // end getFormat()
+	
+	PostingStore getStore() {
+		return indexFile;
+	} // end getStore()
+	
+	Lexicon getLexicon() {
+		return lexMap;
+	} // end getLexicon()
+	
+	/**
+	 * Look up a word in the lexicon.
+	 * @param word
+	 * @return the word's lexicon entry, or null if the word is not in this chunk
+	 */
+	LexMapEntry lookup(String word) {
+		int ordinal = lexMap.find(word);
+		if (ordinal < 0) {
+			return null;
+		} // end if
+		return new LexMapEntry(lexMap.nDocs(ordinal), lexMap.ptr(ordinal));
+	} // end lookup()
 	
 } // end InvertedIndexFileReader class
 
 /**
- * LexMapEntry is what is stored for each word in lexicon.
+ * LexMapEntry is what is looked up for each word in lexicon.
  * How many docs in this index contain the word,
  * and pointer to place in index area of inverted index where entries for this word start.
  * @author Adam Steinberger, Sam Gunther
  */
 class LexMapEntry {
 	
-	public Integer nDocs;
-	public Long ptr;
+	public int nDocs;
+	public long ptr;
 	
 	/**
 	 * LexMapEntry constructor.
 	 * @param nd nDocs
 	 * @param pt Pointer
 	 */
-	public LexMapEntry(Integer nd, Long pt) {
+	public LexMapEntry(int nd, long pt) {
 		nDocs = nd;
 		ptr = pt;
 	} // end LexMapEntry constructor
@@ -0,0 +1,45 @@
+package search.indexserver;
+
+/**
+ * The lexicon of an index chunk: for each word, how many docs contain it and where its
+ * posting list starts. Words are numbered 0..size()-1 in sorted (UTF-8 byte) order.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public interface Lexicon {
+
+	/**
+	 * Look up a word.
+	 * @param word
+	 * @return ordinal of the word, or -1 if it is not in the lexicon
+	 */
+	public int find(String word);
+
+	/**
+	 * @param ordinal
+	 * @return number of docs containing the word
+	 */
+	public int nDocs(int ordinal);
+
+	/**
+	 * @param ordinal
+	 * @return pointer to the word's posting list
+	 */
+	public long ptr(int ordinal);
+
+	/**
+	 * @param ordinal
+	 * @return the word itself
+	 */
+	public String word(int ordinal);
+
+	/**
+	 * @return number of words in the lexicon
+	 */
+	public int size();
+
+	/**
+	 * @return approximate number of bytes of heap used by the lexicon
+	 */
+	public long memoryFootprint();
+
+} // end Lexicon interface
@@ -0,0 +1,125 @@
+package search.indexserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Bulk loader for the lex area of an index chunk.
+ * The lex area is read in large blocks and each entry (word, newline, int nDocs, long ptr)
+ * is decoded straight from the block into a CompactLexicon.Builder, without making Strings.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class LexiconLoader {
+
+	private static final int BLOCK_SIZE = 1 << 20;
+
+	private final PostingStore store;
+	private final int version;
+	private int words;
+	private long nanos;
+
+	/**
+	 * @param store chunk storage
+	 * @param version ChunkFormat version of the chunk
+	 */
+	public LexiconLoader(PostingStore store, int version) {
+		this.store = store;
+		this.version = version;
+	} // end LexiconLoader constructor
+
+	/**
+	 * Read the whole lex area.
+	 * @return
+	 * @throws IOException
+	 */
+	public CompactLexicon load() throws IOException {
+
+		long start = System.nanoTime();
+		CompactLexicon.Builder builder = new CompactLexicon.Builder();
+
+		// the lex map boundary counts each word without its newline, so keep two offsets:
+		// where we are in the file, and where the boundary accounting says we are
+		long lexMapBoundary = this.store.readLong(ChunkFormat.boundaryOffset(this.version));
+		long offset = ChunkFormat.lexStart(this.version);
+		long filePos = offset;
+
+		byte[] buf = new byte [BLOCK_SIZE];
+		int bufStart = 0;
+		int bufEnd = 0;
+
+		while (offset < lexMapBoundary) {
+
+			// find the end of the word in the buffer, refilling it if the entry runs off the end
+			int eol = indexOf(buf, bufStart, bufEnd, (byte) '\n');
+			if (eol < 0 || bufEnd - eol - 1 < 12) {
+				if (bufStart == 0 && bufEnd == buf.length) {
+					throw new IOException("Lexicon entry at " + filePos + " is longer than " + buf.length + " bytes");
+				} // end if
+				System.arraycopy(buf, bufStart, buf, 0, bufEnd - bufStart);
+				bufEnd -= bufStart;
+				bufStart = 0;
+				int n = (int) Math.min(buf.length - bufEnd, this.store.length() - filePos - bufEnd);
+				if (n <= 0) {
+					throw new EOFException("Lexicon runs past end of chunk");
+				} // end if
+				this.store.readFully(filePos + bufEnd, buf, bufEnd, n);
+				bufEnd += n;
+				continue;
+			} // end if
+
+			// words ending in \r\n (as readLine() allows) keep the \r out of the word
+			int wordEnd = (eol > bufStart && buf[eol - 1] == '\r') ? eol - 1 : eol;
+			int len = wordEnd - bufStart;
+			int p = eol + 1;
+			int nDocs = getInt(buf, p);
+			long ptr = ((long) getInt(buf, p + 4) << 32) | (getInt(buf, p + 8) & 0xffffffffL);
+			builder.add(buf, bufStart, len, nDocs, ptr);
+
+			offset += len + 12;
+			filePos += p + 12 - bufStart;
+			bufStart = p + 12;
+
+		} // end while
+
+		CompactLexicon lexicon = builder.build();
+		this.words = builder.size();
+		this.nanos = System.nanoTime() - start;
+		return lexicon;
+
+	} // end load()
+
+	/**
+	 * @return number of lexicon entries read by the last load()
+	 */
+	public int getWords() {
+		return this.words;
+	} // end getWords()
+
+	/**
+	 * @return milliseconds taken by the last load()
+	 */
+	public long getMillis() {
+		return this.nanos / 1000000;
+	} // end getMillis()
+
+	/**
+	 * @return words loaded per second by the last load()
+	 */
+	public double getWordsPerSecond() {
+		return (this.nanos == 0) ? 0 : this.words / (this.nanos / 1e9);
+	} // end getWordsPerSecond()
+
+	private static int indexOf(byte[] b, int from, int to, byte value) {
+		for (int i = from; i < to; i++) {
+			if (b[i] == value) {
+				return i;
+			} // end if
+		} // end for
+		return -1;
+	} // end indexOf()
+
+	private static int getInt(byte[] b, int p) {
+		return ((b[p] & 0xff) << 24) | ((b[p + 1] & 0xff) << 16) | ((b[p + 2] & 0xff) << 8) | (b[p + 3] & 0xff);
+	} // end getInt()
+
+} // end LexiconLoader class
@@ -0,0 +1,92 @@
+package search.indexserver;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Write the lexicon sidecar (chunk%016x.lex) for an index chunk, so an InvertedIndexFileReader
+ * can search the lexicon through a memory map instead of loading it (see MappedLexicon).
+ * Usage: LexiconSidecarWriter docId
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class LexiconSidecarWriter {
+
+	/**
+	 * Write the sidecar for a chunk. The file is written under a temporary name and
+	 * atomically renamed over the old one, so a server never sees a partial sidecar.
+	 * @param chunk chunk file
+	 * @return number of words written
+	 * @throws IOException
+	 */
+	public static int write(File chunk) throws IOException {
+
+		// taken before reading, so a chunk rewritten meanwhile does not match the sidecar
+		long chunkLength = chunk.length();
+		long chunkModified = chunk.lastModified();
+		PostingStore store = new MappedPostingStore(chunk);
+		Lexicon lexicon = new LexiconLoader(store, ChunkFormat.version(store)).load();
+		store.close();
+
+		int size = lexicon.size();
+		byte[][] words = new byte [size][];
+		for (int i = 0; i < size; i++) {
+			words[i] = lexicon.word(i).getBytes(CompactLexicon.UTF8);
+		} // end for
+
+		File sidecar = MappedLexicon.sidecarFile(chunk);
+		File temp = new File(sidecar.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+
+		out.writeLong(MappedLexicon.MAGIC);
+		out.writeLong(chunkLength);
+		out.writeLong(chunkModified);
+		out.writeInt(size);
+
+		// word offsets, then nDocs and ptr, then the words, so no word is padded
+		long pos = MappedLexicon.HEADER_SIZE + 8L * (size + 1) + (long) MappedLexicon.ENTRY_SIZE * size;
+		for (int i = 0; i < size; i++) {
+			out.writeLong(pos);
+			pos += words[i].length;
+		} // end for
+		out.writeLong(pos);
+		for (int i = 0; i < size; i++) {
+			out.writeInt(lexicon.nDocs(i));
+			out.writeLong(lexicon.ptr(i));
+		} // end for
+		for (int i = 0; i < size; i++) {
+			out.write(words[i]);
+		} // end for
+		out.close();
+
+		Files.move(temp.toPath(), sidecar.toPath(),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		return size;
+
+	} // end write()
+
+	/**
+	 * The main sidecar writing method.
+	 */
+	public static void main(String[] args) {
+
+		try {
+
+			File chunk = new File(String.format("chunk%1$016x.index", Integer.parseInt(args[0])));
+			int words = write(chunk);
+			System.out.println("! Wrote " + words + " words to " + MappedLexicon.sidecarFile(chunk));
+
+		} catch (Exception e) {
+			System.out.println("! Could not write lexicon sidecar.");
+			e.printStackTrace();
+		} // end try/catch
+
+	} // end main()
+
+} // end LexiconSidecarWriter class
@@ -0,0 +1,169 @@
+package search.indexserver;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Lexicon that binary searches a lexicon sidecar file (chunk%016x.lex) in place through a
+ * memory map, so a chunk can be queried without loading its lexicon onto the heap.
+ *
+ * The sidecar starts with MAGIC, the length and modification time of the chunk it was built
+ * from, and the number of words. Then come the file offsets of the words, one long per word in
+ * sorted (UTF-8 byte) order plus one for the end of the last word, then int nDocs and long ptr
+ * for each word, then the words themselves, back to back. Sidecars are written by
+ * LexiconSidecarWriter.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class MappedLexicon implements Lexicon {
+
+	// "SKLEXCN2"
+	public static final long MAGIC = 0x534B4C4558434E32L;
+	public static final int HEADER_SIZE = 28;
+	// int nDocs and long ptr of a word
+	public static final int ENTRY_SIZE = 12;
+
+	private final PostingStore file;
+	private final int size;
+	private final long entries;
+
+	/**
+	 * Map a sidecar file.
+	 * @param f sidecar file
+	 * @param chunk chunk the sidecar must belong to
+	 * @throws IOException if the file is not a whole sidecar, or was built from a different
+	 * chunk or an older version of this one
+	 */
+	public MappedLexicon(File f, File chunk) throws IOException {
+
+		this.file = new MappedPostingStore(f);
+
+		if (this.file.length() < HEADER_SIZE || this.file.readLong(0) != MAGIC) {
+			this.file.close();
+			throw new IOException(f + " is not a lexicon sidecar");
+		} // end if
+		if (this.file.readLong(8) != chunk.length() || this.file.readLong(16) != chunk.lastModified()) {
+			this.file.close();
+			throw new IOException(f + " was built from a different chunk");
+		} // end if
+
+		this.size = this.file.readInt(24);
+		this.entries = HEADER_SIZE + 8L * (this.size + 1);
+		if (this.size < 0 || this.file.length() < this.entries || offset(this.size) != this.file.length()) {
+			this.file.close();
+			throw new IOException(f + " is not a whole lexicon sidecar");
+		} // end if
+
+	} // end MappedLexicon constructor
+
+	/**
+	 * @param chunk chunk%016x.index file
+	 * @return the sidecar file for the chunk
+	 */
+	public static File sidecarFile(File chunk) {
+		String name = chunk.getPath();
+		if (name.endsWith(".index")) {
+			name = name.substring(0, name.length() - ".index".length());
+		} // end if
+		return new File(name + ".lex");
+	} // end sidecarFile()
+
+	public int find(String word) {
+
+		byte[] key = word.getBytes(CompactLexicon.UTF8);
+
+		try {
+			int lo = 0, hi = this.size - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int cmp = compare(mid, key);
+				if (cmp < 0) {
+					lo = mid + 1;
+				} else if (cmp > 0) {
+					hi = mid - 1;
+				} else {
+					return mid;
+				} // end if
+			} // end while
+		} catch (IOException e) {
+			System.out.println("! Could not search lexicon sidecar.");
+			e.printStackTrace();
+		} // end try/catch
+
+		return -1;
+
+	} // end find()
+
+	public int nDocs(int ordinal) {
+		try {
+			return this.file.readInt(this.entries + (long) ordinal * ENTRY_SIZE);
+		} catch (IOException e) {
+			System.out.println("! Could not read lexicon sidecar.");
+			e.printStackTrace();
+			return 0;
+		} // end try/catch
+	} // end nDocs()
+
+	public long ptr(int ordinal) {
+		try {
+			return this.file.readLong(this.entries + (long) ordinal * ENTRY_SIZE + 4);
+		} catch (IOException e) {
+			System.out.println("! Could not read lexicon sidecar.");
+			e.printStackTrace();
+			return -1;
+		} // end try/catch
+	} // end ptr()
+
+	public String word(int ordinal) {
+		try {
+			long pos = offset(ordinal);
+			byte[] b = new byte [(int) (offset(ordinal + 1) - pos)];
+			this.file.readFully(pos, b, 0, b.length);
+			return new String(b, CompactLexicon.UTF8);
+		} catch (IOException e) {
+			System.out.println("! Could not read lexicon sidecar.");
+			e.printStackTrace();
+			return null;
+		} // end try/catch
+	} // end word()
+
+	public int size() {
+		return this.size;
+	} // end size()
+
+	public long memoryFootprint() {
+		// the records live in the page cache, not on the heap
+		return 64;
+	} // end memoryFootprint()
+
+	/**
+	 * Release the mapped file.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		this.file.close();
+	} // end close()
+
+	/**
+	 * @return file offset of the word of a record; offset(size) is the end of the last word
+	 */
+	private long offset(int ordinal) throws IOException {
+		return this.file.readLong(HEADER_SIZE + 8L * ordinal);
+	} // end offset()
+
+	/**
+	 * Compare the word of a record with key as unsigned bytes.
+	 */
+	private int compare(int ordinal, byte[] key) throws IOException {
+		long pos = offset(ordinal);
+		int len = (int) (offset(ordinal + 1) - pos);
+		int n = Math.min(len, key.length);
+		for (int i = 0; i < n; i++) {
+			int cmp = this.file.readUnsignedByte(pos + i) - (key[i] & 0xff);
+			if (cmp != 0) {
+				return cmp;
+			} // end if
+		} // end for
+		return len - key.length;
+	} // end compare()
+
+} // end MappedLexicon class
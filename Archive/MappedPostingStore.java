@@ -0,0 +1,109 @@
+package search.indexserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Posting store that memory-maps the whole chunk.
+ * A single MappedByteBuffer can only address 2 GB, so the chunk is mapped as a series of
+ * 1 GB segments. Each segment overlaps the next by 8 bytes, so any int, short or long
+ * read starting inside a segment can be served from that segment alone.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class MappedPostingStore implements PostingStore {
+
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = (int) (SEGMENT_SIZE - 1);
+	private static final int OVERLAP = 8;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer[] segments;
+	private final long length;
+
+	/**
+	 * Map the given chunk file into memory.
+	 * @param f chunk file
+	 * @throws IOException
+	 */
+	public MappedPostingStore(File f) throws IOException {
+
+		this.file = new RandomAccessFile(f, "r");
+		FileChannel channel = this.file.getChannel();
+		this.length = channel.size();
+
+		int nSegments = (int) ((this.length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+		this.segments = new MappedByteBuffer[Math.max(nSegments, 1)];
+
+		for (int i = 0; i < this.segments.length; i++) {
+			long start = i * SEGMENT_SIZE;
+			long size = Math.min(SEGMENT_SIZE + OVERLAP, this.length - start);
+			this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(size, 0));
+		} // end for
+
+	} // end MappedPostingStore constructor
+
+	public int readUnsignedByte(long pos) throws IOException {
+		return segment(pos, 1).get((int) pos & SEGMENT_MASK) & 0xff;
+	} // end readUnsignedByte()
+
+	public int readUnsignedShort(long pos) throws IOException {
+		return segment(pos, 2).getShort((int) pos & SEGMENT_MASK) & 0xffff;
+	} // end readUnsignedShort()
+
+	public int readInt(long pos) throws IOException {
+		return segment(pos, 4).getInt((int) pos & SEGMENT_MASK);
+	} // end readInt()
+
+	public long readLong(long pos) throws IOException {
+		return segment(pos, 8).getLong((int) pos & SEGMENT_MASK);
+	} // end readLong()
+
+	public void readFully(long pos, byte[] b, int off, int len) throws IOException {
+
+		if (pos < 0 || pos + len > this.length) {
+			throw new IOException("Read of " + len + " bytes at " + pos + " is past end of chunk");
+		} // end if
+
+		// copy from each segment the range touches, using a duplicate so
+		// concurrent readers never share a buffer position
+		while (len > 0) {
+			ByteBuffer buf = segment(pos, 1).duplicate();
+			int start = (int) pos & SEGMENT_MASK;
+			int n = Math.min(len, (int) (SEGMENT_SIZE - start));
+			buf.position(start);
+			buf.get(b, off, n);
+			pos += n;
+			off += n;
+			len -= n;
+		} // end while
+
+	} // end readFully()
+
+	public long length() {
+		return this.length;
+	} // end length()
+
+	public void close() throws IOException {
+		this.file.close();
+	} // end close()
+
+	/**
+	 * Find the segment holding a read of width bytes at the given offset.
+	 * @param pos
+	 * @param width number of bytes read, all of which must be inside the chunk
+	 * @return
+	 * @throws IOException if the read runs past the end of the chunk
+	 */
+	private MappedByteBuffer segment(long pos, int width) throws IOException {
+		if (pos < 0 || pos + width > this.length) {
+			throw new IOException("Read of " + width + " bytes at " + pos + " is past end of chunk");
+		} // end if
+		return this.segments[(int) (pos >>> SEGMENT_SHIFT)];
+	} // end segment()
+
+} // end MappedPostingStore class
@@ -0,0 +1,168 @@
+package search.indexserver;
+
+import java.util.Arrays;
+
+/**
+ * Picks the best passage of a document for a multi-term snippet in one linear pass over its words.
+ *
+ * A sliding window of at most MAX_WINDOW words keeps a count of each query term inside it. At each
+ * word the window's left edge moves past words that are not needed (non-terms, and terms that occur
+ * again further right), so the window is the shortest one ending at that word that covers the
+ * terms it covers. The best window covers the most distinct terms, and among those is the shortest
+ * (densest), then the earliest. Each word enters and leaves the window once, so the pass is O(n).
+ * Only term numbers are kept for the window; the passage text is read back in a second pass that
+ * stops at the end of the passage. Reading stops after MAX_WORDS words, or early once a window
+ * holds every term with no word in between.
+ * @author Sam Gunther, Adam Steinberger
+ */
+public class PassageSelector {
+
+	// words of the document looked at
+	public static final int MAX_WORDS = 1000;
+	// longest window, in words
+	public static final int MAX_WINDOW = 30;
+	// words of context shown before the first term
+	public static final int CONTEXT_WORDS = 5;
+	// passages are padded with following words up to this many chars
+	public static final int MIN_CHARS = 150;
+
+	/**
+	 * The chosen passage.
+	 */
+	public static class Passage {
+
+		public final String text;
+		// start and end (exclusive) of each term in text, in pairs
+		public final int[] termOffsets;
+		// number of distinct query terms in the passage
+		public final int termsCovered;
+
+		Passage(String text, int[] termOffsets, int termsCovered) {
+			this.text = text;
+			this.termOffsets = termOffsets;
+			this.termsCovered = termsCovered;
+		} // end Passage constructor
+
+	} // end Passage class
+
+	private final TermMatcher matcher;
+	private final int nTerms;
+
+	/**
+	 * @param matcher matcher for the query terms
+	 * @param nTerms number of query terms
+	 */
+	public PassageSelector(TermMatcher matcher, int nTerms) {
+		this.matcher = matcher;
+		this.nTerms = nTerms;
+	} // end PassageSelector constructor
+
+	/**
+	 * Choose the passage of a document that best covers the query terms.
+	 * @param doc document
+	 * @param html true if doc is HTML, false if it is plain text
+	 * @return the passage; if no term is found it is the start of the document
+	 */
+	public Passage select(CharSequence doc, boolean html) {
+
+		int[] window = new int [MAX_WINDOW];
+		int[] counts = new int [this.nTerms];
+		int distinct = 0;
+		int left = 0;
+
+		int bestDistinct = 0;
+		int bestStart = 0;
+		int bestEnd = 0;
+
+		HtmlTokenStream tokens = new HtmlTokenStream(doc, html);
+		int word = 0;
+		while (word < MAX_WORDS && tokens.next()) {
+
+			// the window may not grow past MAX_WINDOW words, and the new word takes the slot of the oldest
+			if (word - left + 1 > MAX_WINDOW) {
+				int out = window[left % MAX_WINDOW];
+				if (out >= 0 && --counts[out] == 0) {
+					distinct--;
+				} // end if
+				left++;
+			} // end if
+
+			int t = this.matcher.match(tokens.token());
+			window[word % MAX_WINDOW] = t;
+			if (t >= 0 && counts[t]++ == 0) {
+				distinct++;
+			} // end if
+
+			// drop words at the left edge the window does not need
+			while (left < word) {
+				int first = window[left % MAX_WINDOW];
+				if (first >= 0 && counts[first] == 1) {
+					break;
+				} // end if
+				if (first >= 0) {
+					counts[first]--;
+				} // end if
+				left++;
+			} // end while
+
+			if (distinct > bestDistinct
+					|| (distinct == bestDistinct && distinct > 0 && word + 1 - left < bestEnd - bestStart)) {
+				bestDistinct = distinct;
+				bestStart = left;
+				bestEnd = word + 1;
+			} // end if
+
+			word++;
+
+			// no window can do better than every term in a row
+			if (bestDistinct == this.nTerms && bestEnd - bestStart == this.nTerms) {
+				break;
+			} // end if
+
+		} // end while
+
+		return passage(doc, html, bestDistinct, bestStart, bestEnd);
+
+	} // end select()
+
+	/**
+	 * Read the words of a passage, with some context, and find its terms.
+	 */
+	private Passage passage(CharSequence doc, boolean html, int covered, int start, int end) {
+
+		int from = (covered == 0) ? 0 : Math.max(start - CONTEXT_WORDS, 0);
+		StringBuilder text = new StringBuilder(MIN_CHARS + 64);
+		int[] offsets = new int [16];
+		int nOffsets = 0;
+
+		HtmlTokenStream tokens = new HtmlTokenStream(doc, html);
+		int word = 0;
+		while (tokens.next()) {
+			if (word >= end && text.length() >= MIN_CHARS) {
+				break;
+			} // end if
+			if (word >= from) {
+				if (text.length() > 0) {
+					text.append(' ');
+				} // end if
+				CharSequence token = tokens.token();
+				int base = text.length();
+				text.append(token);
+				int at = 0;
+				while (this.matcher.find(token, at)) {
+					if (nOffsets + 2 > offsets.length) {
+						offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+					} // end if
+					offsets[nOffsets++] = base + this.matcher.start();
+					offsets[nOffsets++] = base + this.matcher.end();
+					at = this.matcher.end();
+				} // end while
+			} // end if
+			word++;
+		} // end while
+
+		return new Passage(text.toString(), Arrays.copyOf(offsets, nOffsets), covered);
+
+	} // end passage()
+
+} // end PassageSelector class
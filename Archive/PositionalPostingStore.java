@@ -0,0 +1,99 @@
+package search.indexserver;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Posting store that uses positional FileChannel reads (pread).
+ * Unlike seek() + read() on a RandomAccessFile there is no shared file pointer,
+ * so the store can be used from several threads without locking.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class PositionalPostingStore implements PostingStore {
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long length;
+
+	// small per-thread buffer for reading primitives
+	private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(8);
+		} // end initialValue()
+	};
+
+	/**
+	 * Open the given chunk file for positional reads.
+	 * @param f chunk file
+	 * @throws IOException
+	 */
+	public PositionalPostingStore(File f) throws IOException {
+		this.file = new RandomAccessFile(f, "r");
+		this.channel = this.file.getChannel();
+		this.length = this.channel.size();
+	} // end PositionalPostingStore constructor
+
+	public int readUnsignedByte(long pos) throws IOException {
+		return read(pos, 1).get(0) & 0xff;
+	} // end readUnsignedByte()
+
+	public int readUnsignedShort(long pos) throws IOException {
+		return read(pos, 2).getShort(0) & 0xffff;
+	} // end readUnsignedShort()
+
+	public int readInt(long pos) throws IOException {
+		return read(pos, 4).getInt(0);
+	} // end readInt()
+
+	public long readLong(long pos) throws IOException {
+		return read(pos, 8).getLong(0);
+	} // end readLong()
+
+	public void readFully(long pos, byte[] b, int off, int len) throws IOException {
+		fill(ByteBuffer.wrap(b, off, len), pos);
+	} // end readFully()
+
+	public long length() {
+		return this.length;
+	} // end length()
+
+	public void close() throws IOException {
+		this.file.close();
+	} // end close()
+
+	/**
+	 * Read n bytes at pos into this thread's scratch buffer.
+	 * @param pos
+	 * @param n
+	 * @return
+	 * @throws IOException
+	 */
+	private ByteBuffer read(long pos, int n) throws IOException {
+		ByteBuffer buf = this.scratch.get();
+		buf.clear();
+		buf.limit(n);
+		fill(buf, pos);
+		return buf;
+	} // end read()
+
+	/**
+	 * Keep reading at pos until buf has no space remaining.
+	 * @param buf
+	 * @param pos
+	 * @throws IOException
+	 */
+	private void fill(ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = this.channel.read(buf, pos);
+			if (n < 0) {
+				throw new EOFException("Read at " + pos + " is past end of chunk");
+			} // end if
+			pos += n;
+		} // end while
+	} // end fill()
+
+} // end PositionalPostingStore class
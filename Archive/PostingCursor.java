@@ -0,0 +1,55 @@
+package search.indexserver;
+
+import java.io.IOException;
+
+/**
+ * Iterates over the docIds of a posting list in increasing order.
+ * A new cursor is positioned before the first docId.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public interface PostingCursor {
+
+	// docId returned once the cursor is exhausted
+	public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+	/**
+	 * @return the current docId, -1 before the first call to nextDoc() or advance()
+	 */
+	public int docId();
+
+	/**
+	 * Move to the next docId.
+	 * @return the new docId, or NO_MORE_DOCS
+	 * @throws IOException
+	 */
+	public int nextDoc() throws IOException;
+
+	/**
+	 * Move to the first docId greater than or equal to target.
+	 * The cursor never moves backwards, so it stays put if it is already at or past target.
+	 * @param target
+	 * @return the new docId, or NO_MORE_DOCS
+	 * @throws IOException
+	 */
+	public int advance(int target) throws IOException;
+
+	/**
+	 * @return number of hits of the word in the current doc, or 1 if the cursor was opened
+	 *         without access to the hit lists
+	 * @throws IOException
+	 */
+	public int freq() throws IOException;
+
+	/**
+	 * Decode the hit list (word positions) of the current doc.
+	 * @return the hit list, or null if the cursor was opened without access to the hit lists
+	 * @throws IOException
+	 */
+	public int[] hits() throws IOException;
+
+	/**
+	 * @return number of docIds in the posting list
+	 */
+	public int cost();
+
+} // end PostingCursor interface
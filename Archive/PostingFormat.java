@@ -0,0 +1,57 @@
+package search.indexserver;
+
+import java.io.IOException;
+
+/**
+ * Layout of the posting lists in the index area of a chunk.
+ * Posting lists are found through the lexicon pointer (ptr) and document count (nDocs) of a word.
+ * Hits are returned as unsigned 16-bit values.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public interface PostingFormat {
+
+	/**
+	 * Read the first limit docIds of a posting list.
+	 * @param store chunk storage
+	 * @param ptr lexicon pointer for the word
+	 * @param nDocs lexicon document count for the word
+	 * @param limit maximum number of docIds to read
+	 * @return
+	 * @throws IOException
+	 */
+	public int[] readDocIds(PostingStore store, long ptr, int nDocs, int limit) throws IOException;
+
+	/**
+	 * Open a cursor over the docIds of a posting list.
+	 * @param store chunk storage
+	 * @param ptr lexicon pointer for the word
+	 * @param nDocs lexicon document count for the word
+	 * @return
+	 * @throws IOException
+	 */
+	public PostingCursor cursor(PostingStore store, long ptr, int nDocs) throws IOException;
+
+	/**
+	 * Read the hit list of one posting.
+	 * @param store chunk storage
+	 * @param ptr lexicon pointer for the word
+	 * @param nDocs lexicon document count for the word
+	 * @param ordinal index of the posting in the list
+	 * @return
+	 * @throws IOException
+	 */
+	public int[] readHits(PostingStore store, long ptr, int nDocs, int ordinal) throws IOException;
+
+	/**
+	 * Read a whole posting list, docIds and hit lists.
+	 * @param store chunk storage
+	 * @param ptr lexicon pointer for the word
+	 * @param nDocs lexicon document count for the word
+	 * @param docIds receives nDocs docIds
+	 * @param hits receives nDocs hit lists
+	 * @throws IOException
+	 */
+	public void readPostings(PostingStore store, long ptr, int nDocs, int[] docIds, int[][] hits)
+			throws IOException;
+
+} // end PostingFormat interface
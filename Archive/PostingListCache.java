@@ -0,0 +1,343 @@
+package search.indexserver;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of whole docId lists of popular words, stored off-heap as packed ints in direct
+ * buffers so a large cache adds nothing for the garbage collector to trace or copy.
+ *
+ * Eviction is the same frequency-aware clock as QueryResultCache: the oldest list is evicted
+ * if it has not been used since the clock last passed it, otherwise it loses one use and goes
+ * to the back of the line. Pinned words (stopwords and the like) are never evicted.
+ * A miss costs a read of the whole list, so a read of only the first few docIds of a list
+ * fills the cache only for words the sketch shows are looked up often, and once the cache
+ * is full a word is only let in if
+ * it has been looked up more often lately than the list the clock would evict next; lookups
+ * are counted for every word, cached or not, in a small sketch whose counts are halved from
+ * time to time so old popularity fades.
+ * Only lists of at least minLength docIds are cached, since short lists are cheap to read,
+ * and one list may take at most a quarter of the budget, so a single huge list cannot flush
+ * everything else. Lists belong to one chunk: when the chunk changes, start over with emptyCopy().
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class PostingListCache {
+
+	private static final int MAX_FREQUENCY = 15;
+	// one v3 block of docIds
+	public static final int DEFAULT_MIN_LENGTH = 128;
+	private static final int SKETCH_SIZE = 1 << 12;
+	// lookups lately before a read of part of a list is worth reading the whole list
+	private static final int PARTIAL_READ_FREQUENCY = 4;
+
+	private static class Entry {
+
+		final String word;
+		final IntBuffer docIds;
+		final long bytes;
+		volatile int frequency;
+
+		Entry(String word, IntBuffer docIds) {
+			this.word = word;
+			this.docIds = docIds;
+			this.bytes = 4L * docIds.capacity();
+		} // end Entry constructor
+
+	} // end Entry class
+
+	private final long budget;
+	private final int minLength;
+	private final ConcurrentHashMap<String,Entry> entries;
+	private final ConcurrentLinkedQueue<Entry> clock;
+	private final Set<String> pinned;
+	private final Object evictLock = new Object();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+	private final AtomicIntegerArray sketch = new AtomicIntegerArray(SKETCH_SIZE);
+	private final AtomicInteger sketchCount = new AtomicInteger();
+
+	/**
+	 * @param budget number of off-heap bytes the cached lists may use
+	 */
+	public PostingListCache(long budget) {
+		this(budget, DEFAULT_MIN_LENGTH);
+	} // end PostingListCache constructor
+
+	/**
+	 * @param budget number of off-heap bytes the cached lists may use
+	 * @param minLength shortest docId list worth caching
+	 */
+	public PostingListCache(long budget, int minLength) {
+		this.budget = budget;
+		this.minLength = minLength;
+		this.entries = new ConcurrentHashMap<String,Entry>();
+		this.clock = new ConcurrentLinkedQueue<Entry>();
+		this.pinned = ConcurrentHashMap.newKeySet();
+	} // end PostingListCache constructor
+
+	/**
+	 * @param nDocs length of a docId list
+	 * @return true if a list that long may be cached
+	 */
+	public boolean admits(int nDocs) {
+		return nDocs >= this.minLength && 4L * nDocs <= this.budget / 4;
+	} // end admits()
+
+	/**
+	 * Decide, after a miss, whether the list of a word is worth reading whole into the cache.
+	 * @param word
+	 * @param nDocs length of the word's docId list
+	 * @return true if the list fits, and there is room for it, the word is pinned,
+	 * or the word is more popular than the next list to be evicted
+	 */
+	public boolean admits(String word, int nDocs) {
+		if (!admits(nDocs)) {
+			return false;
+		} // end if
+		if (this.bytes.get() + 4L * nDocs <= this.budget || this.pinned.contains(word)) {
+			return true;
+		} // end if
+		Entry victim = this.clock.peek();
+		if (victim == null || frequency(word) > frequency(victim.word)) {
+			return true;
+		} // end if
+		this.rejections.incrementAndGet();
+		return false;
+	} // end admits()
+
+	/**
+	 * Decide, after a miss by a read of only the first limit docIds of a list, whether to read
+	 * the whole list into the cache instead. A short read is cheap, so unless the word is pinned
+	 * the list is only read whole once the sketch shows the word is looked up again and again.
+	 * @param word
+	 * @param nDocs length of the word's docId list
+	 * @param limit number of docIds the reader needs
+	 * @return true if the whole list should be read and cached
+	 */
+	public boolean admits(String word, int nDocs, int limit) {
+		if (limit < nDocs && !this.pinned.contains(word) && frequency(word) < PARTIAL_READ_FREQUENCY) {
+			return false;
+		} // end if
+		return admits(word, nDocs);
+	} // end admits()
+
+	/**
+	 * @return an empty cache with the same budget and pinned words, for another chunk
+	 */
+	public PostingListCache emptyCopy() {
+		PostingListCache copy = new PostingListCache(this.budget, this.minLength);
+		copy.pinned.addAll(this.pinned);
+		return copy;
+	} // end emptyCopy()
+
+	/**
+	 * Look up the docIds of a word.
+	 * @param word
+	 * @return read-only view of the cached docIds, or null
+	 */
+	public IntBuffer get(String word) {
+		record(word);
+		Entry entry = this.entries.get(word);
+		if (entry == null) {
+			this.misses.incrementAndGet();
+			return null;
+		} // end if
+		if (entry.frequency < MAX_FREQUENCY) {
+			entry.frequency++;
+		} // end if
+		this.hits.incrementAndGet();
+		return entry.docIds.duplicate();
+	} // end get()
+
+	/**
+	 * Copy the docIds of a word off-heap and cache them, evicting other lists if over budget.
+	 * @param word
+	 * @param docIds the word's whole docId list
+	 * @return read-only view of the cached docIds, or null if the list is too long to cache
+	 */
+	public IntBuffer put(String word, int[] docIds) {
+
+		if (!admits(docIds.length)) {
+			return null;
+		} // end if
+
+		IntBuffer buffer = ByteBuffer.allocateDirect(4 * docIds.length)
+				.order(ByteOrder.nativeOrder()).asIntBuffer();
+		buffer.put(docIds);
+		buffer.clear();
+		Entry entry = new Entry(word, buffer.asReadOnlyBuffer());
+
+		Entry current = this.entries.putIfAbsent(word, entry);
+		if (current != null) {
+			return current.docIds.duplicate();
+		} // end if
+		this.clock.add(entry);
+		this.bytes.addAndGet(entry.bytes);
+
+		if (this.bytes.get() > this.budget) {
+			evict();
+		} // end if
+
+		return entry.docIds.duplicate();
+
+	} // end put()
+
+	/**
+	 * Never evict the list of a word once it is cached. Lists too short or too long
+	 * for admits() are still not cached.
+	 * @param word
+	 */
+	public void pin(String word) {
+		this.pinned.add(word);
+	} // end pin()
+
+	/**
+	 * Let the list of a word be evicted again.
+	 * @param word
+	 */
+	public void unpin(String word) {
+		this.pinned.remove(word);
+	} // end unpin()
+
+	/**
+	 * @return the pinned words
+	 */
+	public Set<String> getPinned() {
+		return this.pinned;
+	} // end getPinned()
+
+	/**
+	 * Drop every cached list. Pins are kept.
+	 */
+	public void clear() {
+		synchronized (this.evictLock) {
+			Entry entry;
+			while ((entry = this.clock.poll()) != null) {
+				if (this.entries.remove(entry.word, entry)) {
+					this.bytes.addAndGet(-entry.bytes);
+				} // end if
+			} // end while
+		} // end synchronized
+	} // end clear()
+
+	/**
+	 * Run the clock until the cache is within budget or only pinned lists are left.
+	 */
+	private void evict() {
+		synchronized (this.evictLock) {
+			// each entry can be passed at most MAX_FREQUENCY + 1 times before it goes
+			int passes = (MAX_FREQUENCY + 2) * this.clock.size();
+			Entry entry;
+			while (this.bytes.get() > this.budget && passes-- > 0 && (entry = this.clock.poll()) != null) {
+				if (this.entries.get(entry.word) != entry) {
+					// already removed
+					continue;
+				} // end if
+				if (this.pinned.contains(entry.word)) {
+					this.clock.add(entry);
+				} else if (entry.frequency > 0) {
+					entry.frequency--;
+					this.clock.add(entry);
+				} else if (this.entries.remove(entry.word, entry)) {
+					this.bytes.addAndGet(-entry.bytes);
+					this.evictions.incrementAndGet();
+				} // end if
+			} // end while
+		} // end synchronized
+	} // end evict()
+
+	/**
+	 * Count a lookup of a word in the sketch.
+	 */
+	private void record(String word) {
+		int h = word.hashCode() * 0x9E3779B9;
+		int a = h >>> 20;
+		int b = (h >>> 8) & (SKETCH_SIZE - 1);
+		if (this.sketch.get(a) < MAX_FREQUENCY) {
+			this.sketch.incrementAndGet(a);
+		} // end if
+		if (this.sketch.get(b) < MAX_FREQUENCY) {
+			this.sketch.incrementAndGet(b);
+		} // end if
+		// age the counts after every few lookups per counter
+		if (this.sketchCount.incrementAndGet() % (10 * SKETCH_SIZE) == 0) {
+			for (int i = 0; i < SKETCH_SIZE; i++) {
+				this.sketch.set(i, this.sketch.get(i) >>> 1);
+			} // end for
+		} // end if
+	} // end record()
+
+	/**
+	 * @return estimate of how often a word has been looked up lately
+	 */
+	private int frequency(String word) {
+		int h = word.hashCode() * 0x9E3779B9;
+		return Math.min(this.sketch.get(h >>> 20), this.sketch.get((h >>> 8) & (SKETCH_SIZE - 1)));
+	} // end frequency()
+
+	public long getHits() {
+		return this.hits.get();
+	} // end getHits()
+
+	public long getMisses() {
+		return this.misses.get();
+	} // end getMisses()
+
+	public long getEvictions() {
+		return this.evictions.get();
+	} // end getEvictions()
+
+	/**
+	 * @return number of missed lists not cached because they were less popular than the cached ones
+	 */
+	public long getRejections() {
+		return this.rejections.get();
+	} // end getRejections()
+
+	/**
+	 * @return number of off-heap bytes used by cached lists
+	 */
+	public long getBytes() {
+		return this.bytes.get();
+	} // end getBytes()
+
+	/**
+	 * @return number of off-heap bytes used by cached lists of pinned words
+	 */
+	public long getPinnedBytes() {
+		long total = 0;
+		for (String word : this.pinned) {
+			Entry entry = this.entries.get(word);
+			if (entry != null) {
+				total += entry.bytes;
+			} // end if
+		} // end for
+		return total;
+	} // end getPinnedBytes()
+
+	/**
+	 * @return number of cached lists
+	 */
+	public int size() {
+		return this.entries.size();
+	} // end size()
+
+	public String toString() {
+		long h = getHits();
+		long m = getMisses();
+		return String.format("%d lists, %d of %d bytes (%d pinned), %d hits, %d misses (%.1f%% hit rate), %d evictions, %d rejections",
+				size(), getBytes(), this.budget, getPinnedBytes(), h, m,
+				(h + m == 0) ? 0.0 : 100.0 * h / (h + m), getEvictions(), getRejections());
+	} // end toString()
+
+} // end PostingListCache class
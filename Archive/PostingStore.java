@@ -0,0 +1,65 @@
+package search.indexserver;
+
+import java.io.IOException;
+
+/**
+ * Read-only storage behind an index chunk.
+ * All reads are positional, so a single store can be shared between query threads.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public interface PostingStore {
+
+	/**
+	 * Read one unsigned byte at the given offset.
+	 * @param pos offset in the chunk
+	 * @return the byte value (0-255)
+	 * @throws IOException
+	 */
+	public int readUnsignedByte(long pos) throws IOException;
+
+	/**
+	 * Read a big-endian unsigned short at the given offset.
+	 * @param pos offset in the chunk
+	 * @return the short value (0-65535)
+	 * @throws IOException
+	 */
+	public int readUnsignedShort(long pos) throws IOException;
+
+	/**
+	 * Read a big-endian int at the given offset.
+	 * @param pos offset in the chunk
+	 * @return the int value
+	 * @throws IOException
+	 */
+	public int readInt(long pos) throws IOException;
+
+	/**
+	 * Read a big-endian long at the given offset.
+	 * @param pos offset in the chunk
+	 * @return the long value
+	 * @throws IOException
+	 */
+	public long readLong(long pos) throws IOException;
+
+	/**
+	 * Copy len bytes starting at the given offset into b.
+	 * @param pos offset in the chunk
+	 * @param b destination array
+	 * @param off offset into b
+	 * @param len number of bytes to copy
+	 * @throws IOException
+	 */
+	public void readFully(long pos, byte[] b, int off, int len) throws IOException;
+
+	/**
+	 * @return the size of the chunk in bytes
+	 */
+	public long length();
+
+	/**
+	 * Release the underlying file.
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+
+} // end PostingStore interface
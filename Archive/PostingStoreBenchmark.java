@@ -0,0 +1,106 @@
+package search.indexserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Benchmark getDocIds() on each storage backend against a synthetic index chunk.
+ * Usage: PostingStoreBenchmark [terms] [docsPerTerm] [rounds] [version]
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class PostingStoreBenchmark {
+
+	/**
+	 * Write a synthetic chunk with the given number of words and docs per word.
+	 * @param f
+	 * @param version ChunkFormat version to write
+	 * @param terms
+	 * @param docsPerTerm
+	 * @throws IOException
+	 */
+	private static void writeChunk(File f, int version, int terms, int docsPerTerm) throws IOException {
+
+		Random rand = new Random(42);
+		ChunkIndexWriter writer = new ChunkIndexWriter(f, version);
+
+		for (int t = 0; t < terms; t++) {
+			int[] docIds = new int [docsPerTerm];
+			int[][] hits = new int [docsPerTerm][];
+			int docId = 0;
+			for (int d = 0; d < docsPerTerm; d++) {
+				docId += 1 + rand.nextInt(16);
+				docIds[d] = docId;
+				hits[d] = new int [1 + rand.nextInt(6)];
+				for (int h = 0; h < hits[d].length; h++) {
+					hits[d][h] = rand.nextInt(2000);
+				} // end for
+			} // end for
+			writer.addWord(String.format("term%06d", t), docIds, hits);
+		} // end for
+
+		writer.close();
+
+	} // end writeChunk()
+
+	/**
+	 * Read every posting list in the chunk using the given backend.
+	 * @return nanoseconds taken for all rounds
+	 */
+	private static long run(File f, StorageBackend backend, int terms, int docsPerTerm, int rounds) {
+
+		InvertedIndexFileReader reader = new InvertedIndexFileReader(f, false, backend);
+		reader.setVerbose(false);
+
+		long checksum = 0;
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			for (int t = 0; t < terms; t++) {
+				int[] docIds = reader.getDocIds(String.format("term%06d", t), docsPerTerm);
+				checksum += docIds[docIds.length - 1];
+			} // end for
+		} // end for
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(String.format("%-14s %8.1f ms  %10.0f docIds/s  (checksum %d)",
+				backend, elapsed / 1e6, (double) terms * docsPerTerm * rounds / (elapsed / 1e9), checksum));
+		return elapsed;
+
+	} // end run()
+
+	/**
+	 * The main benchmark method.
+	 */
+	public static void main(String[] args) {
+
+		int terms = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int docsPerTerm = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		int version = args.length > 3 ? Integer.parseInt(args[3]) : ChunkFormat.INTERLEAVED;
+
+		try {
+
+			File f = File.createTempFile("chunk", ".index");
+			f.deleteOnExit();
+			writeChunk(f, version, terms, docsPerTerm);
+			System.out.println("! Wrote " + f.length() + " byte version " + version
+					+ " chunk with " + terms + " terms");
+
+			// warm up the page cache and JIT before measuring
+			run(f, StorageBackend.MAPPED, terms, docsPerTerm, 1);
+
+			long base = run(f, StorageBackend.RANDOM_ACCESS, terms, docsPerTerm, rounds);
+			long positional = run(f, StorageBackend.POSITIONAL, terms, docsPerTerm, rounds);
+			long mapped = run(f, StorageBackend.MAPPED, terms, docsPerTerm, rounds);
+
+			System.out.println(String.format("Speedup over RANDOM_ACCESS: POSITIONAL %.1fx, MAPPED %.1fx",
+					(double) base / positional, (double) base / mapped));
+
+		} catch (Exception e) {
+			System.out.println("! Could not run posting store benchmark.");
+			e.printStackTrace();
+		} // end try/catch
+
+	} // end main()
+
+} // end PostingStoreBenchmark class
@@ -0,0 +1,107 @@
+package search.indexserver;
+
+import java.util.Arrays;
+
+/**
+ * A constraint on where the words of a query appear in a doc, checked against the hit lists
+ * (word positions) of docs that contain all the words.
+ * A phrase ("black cat") needs its words at consecutive positions, in order.
+ * NEAR/k (black NEAR/3 cat) needs two words no more than k positions apart, in either order.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class Proximity {
+
+	private final String[] words;
+	private final int slop;
+	private final boolean ordered;
+
+	private Proximity(String[] words, int slop, boolean ordered) {
+		this.words = words;
+		this.slop = slop;
+		this.ordered = ordered;
+	} // end Proximity constructor
+
+	/**
+	 * @param words words of the phrase, in order
+	 * @return constraint that the words appear at consecutive positions
+	 */
+	public static Proximity phrase(String[] words) {
+		return new Proximity(words.clone(), 0, true);
+	} // end phrase()
+
+	/**
+	 * @param a
+	 * @param b
+	 * @param k maximum distance between the words
+	 * @return constraint that a and b appear no more than k positions apart
+	 */
+	public static Proximity near(String a, String b, int k) {
+		return new Proximity(new String [] {a, b}, k, false);
+	} // end near()
+
+	public String[] getWords() {
+		return this.words;
+	} // end getWords()
+
+	/**
+	 * Check the hit lists of a doc against the constraint.
+	 * @param positions hit list of each word, in the order of getWords(); sorted in place
+	 * @return true if the doc satisfies the constraint
+	 */
+	public boolean matches(int[][] positions) {
+
+		for (int[] p : positions) {
+			if (p == null || p.length == 0) {
+				return false;
+			} // end if
+			Arrays.sort(p);
+		} // end for
+
+		if (this.ordered) {
+
+			// every word must follow the one before it: try each position of the first word
+			starts:
+			for (int start : positions[0]) {
+				for (int i = 1; i < positions.length; i++) {
+					if (Arrays.binarySearch(positions[i], start + i) < 0) {
+						continue starts;
+					} // end if
+				} // end for
+				return true;
+			} // end for
+			return false;
+
+		} else {
+
+			// walk both position lists in order, looking for a close pair
+			int[] a = positions[0];
+			int[] b = positions[1];
+			int i = 0, j = 0;
+			while (i < a.length && j < b.length) {
+				if (Math.abs(a[i] - b[j]) <= this.slop) {
+					return true;
+				} // end if
+				if (a[i] < b[j]) {
+					i++;
+				} else {
+					j++;
+				} // end if
+			} // end while
+			return false;
+
+		} // end if
+
+	} // end matches()
+
+	public String toString() {
+		if (this.ordered) {
+			StringBuilder sb = new StringBuilder("\"");
+			for (int i = 0; i < this.words.length; i++) {
+				sb.append((i == 0) ? "" : " ").append(this.words[i]);
+			} // end for
+			return sb.append('"').toString();
+		} // end if
+		return this.words[0] + " NEAR/" + this.slop + " " + this.words[1];
+	} // end toString()
+
+} // end Proximity class
@@ -1,7 +1,10 @@
 package search.indexserver;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
- * Query object for passing search queries along with results limit, docIds results, and latch.
+ * Query object for passing search queries along with results limit, docIds results, and
+ * the future that completes when a query thread has found the results.
  * @author Adam Steinberger, Sam Gunther
  */
 public class Query {
@@ -9,35 +12,77 @@ public class Query {
 	private String query;
 	private int limit;
 	private int[] docIds;
-	private QLatch latch;
+	private int[] scores;
+	private boolean ranked;
+	private final CompletableFuture<int[]> result;
 
 	/**
 	 * Search query to find docId results for.
 	 * @param q Query
-	 * @param l Latch
+	 * @param l Limit
 	 */
 	public Query(String q, int l) {
+		this(q, l, false);
+	} // end Query constructor
+
+	/**
+	 * Search query to find docId results for.
+	 * @param q Query
+	 * @param l Limit
+	 * @param r Rank results by score instead of docId order
+	 */
+	public Query(String q, int l, boolean r) {
 		this.query = q;
 		this.limit = l;
-		this.latch = new QLatch(1);
+		this.ranked = r;
+		this.result = new CompletableFuture<int[]>();
 	} // end Query constructor
 
-	public QLatch getLatch() {
-		return latch;
-	} // end getLatch()
-
-	public void setLatch(QLatch latch) {
-		this.latch = latch;
-	} // end setLatch()
+	/**
+	 * @return future completed with the docIds once the query has been searched
+	 */
+	public CompletableFuture<int[]> getResult() {
+		return result;
+	} // end getResult()
 
 	public int[] getDocIds() {
 		return docIds;
 	} // end getDocsIds()
 
+	/**
+	 * @return fixed-point scores of the docIds of a ranked query, or null
+	 */
+	public int[] getScores() {
+		return scores;
+	} // end getScores()
+
+	/**
+	 * Attach the results and complete the query's future.
+	 * @param docIds
+	 */
 	public void setDocIds(int[] docIds) {
+		setDocIds(docIds, null);
+	} // end setDocIds()
+
+	/**
+	 * Attach the results and their scores, then complete the query's future.
+	 * @param docIds
+	 * @param scores fixed-point score of each docId, or null if not ranked
+	 */
+	public void setDocIds(int[] docIds, int[] scores) {
 		this.docIds = docIds;
+		this.scores = scores;
+		this.result.complete(docIds);
 	} // end setDocIds()
 
+	/**
+	 * Complete the query's future with the reason it could not be searched.
+	 * @param t
+	 */
+	public void fail(Throwable t) {
+		this.result.completeExceptionally(t);
+	} // end fail()
+
 	public String getQuery() {
 		return query;
 	} // end getQuery()
@@ -46,6 +91,14 @@ public class Query {
 		this.query = query;
 	} // end setQuery()
 
+	public boolean isRanked() {
+		return ranked;
+	} // end isRanked()
+
+	public void setRanked(boolean ranked) {
+		this.ranked = ranked;
+	} // end setRanked()
+
 	public int getLimit() {
 		return limit;
 	} // end getLimit()
@@ -1,6 +1,7 @@
 package search.indexserver;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Query Handler receives queries and returns docIDs for matching documents in the index.
@@ -18,4 +19,12 @@ public interface QueryHandler {
 	 */
 	public int[] queryDocID(int limit, String query);
 	
+	/**
+	 * Search a query in the index without waiting for the results.
+	 * @param limit the maximum number of docID's to be returned
+	 * @param query the String to be searched.
+	 * @return a future completed with an array of ints each representing a docID.
+	 */
+	public CompletableFuture<int[]> queryDocIDAsync(int limit, String query);
+	
 } // end QueryHandler interface
@@ -0,0 +1,262 @@
+package search.indexserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of query results keyed on the normalized query, limit and ranking mode, bounded by
+ * an approximate memory budget.
+ *
+ * Lookups never lock: entries live in a ConcurrentHashMap and a hit only bumps the entry's
+ * frequency. Eviction is a frequency-aware clock over the entries in insertion order: the
+ * oldest entry is evicted if it has not been used since the clock last passed it, otherwise
+ * its frequency is decremented and it goes to the back of the line. Popular queries thus
+ * survive many passes while one-off queries leave after one.
+ *
+ * Results computed for an older generation (see invalidate()) are never cached.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class QueryResultCache {
+
+	// highest frequency an entry can build up, so a once-popular query cannot stay forever
+	private static final int MAX_FREQUENCY = 15;
+
+	// stands in for a null (no results) result
+	private static final int[] NO_RESULTS = new int [0];
+
+	private static class Entry {
+
+		final String key;
+		final int[] docIds;
+		final int[] scores;
+		final long bytes;
+		volatile int frequency;
+
+		Entry(String key, int[] docIds, int[] scores) {
+			this.key = key;
+			this.docIds = docIds;
+			this.scores = scores;
+			// object headers, the key's chars, the docIds and their scores
+			this.bytes = 96 + 2L * key.length() + 4L * docIds.length + ((scores == null) ? 0 : 4L * scores.length);
+		} // end Entry constructor
+
+	} // end Entry class
+
+	private final long budget;
+	private final ConcurrentHashMap<String,Entry> entries;
+	private final ConcurrentLinkedQueue<Entry> clock;
+	private final Object evictLock = new Object();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private volatile int generation;
+
+	/**
+	 * @param budget approximate number of bytes the cached results may use
+	 */
+	public QueryResultCache(long budget) {
+		this.budget = budget;
+		this.entries = new ConcurrentHashMap<String,Entry>();
+		this.clock = new ConcurrentLinkedQueue<Entry>();
+		this.generation = 0;
+	} // end QueryResultCache constructor
+
+	/**
+	 * Normalize a query: no leading or trailing whitespace, and single spaces between words.
+	 * Queries are searched in this form, so equal keys always mean equal results.
+	 * @param query
+	 * @return
+	 */
+	public static String normalize(String query) {
+		StringBuilder sb = new StringBuilder(query.length());
+		boolean space = false;
+		for (int i = 0; i < query.length(); i++) {
+			char c = query.charAt(i);
+			if (Character.isWhitespace(c)) {
+				space = sb.length() > 0;
+			} else {
+				if (space) {
+					sb.append(' ');
+					space = false;
+				} // end if
+				sb.append(c);
+			} // end if
+		} // end for
+		return sb.toString();
+	} // end normalize()
+
+	/**
+	 * Build the cache key of a query.
+	 * @param query normalized query
+	 * @param limit
+	 * @param ranked
+	 * @return
+	 */
+	public static String key(String query, int limit, boolean ranked) {
+		return (ranked ? "R" : "B") + limit + ":" + query;
+	} // end key()
+
+	/**
+	 * @return the current generation, to pass to put() once the results are found
+	 */
+	public int getGeneration() {
+		return this.generation;
+	} // end getGeneration()
+
+	/**
+	 * Look up the results of a query.
+	 * @param key
+	 * @param found set to true in found[0] if the query is cached, since null is a valid result
+	 * @return a copy of the cached docIds, or null
+	 */
+	public int[] get(String key, boolean[] found) {
+		return get(key, found, null);
+	} // end get()
+
+	/**
+	 * Look up the results of a query and their scores.
+	 * @param key
+	 * @param found set to true in found[0] if the query is cached, since null is a valid result
+	 * @param scores if not null, set in scores[0] to a copy of the cached scores, or null if
+	 * the results were not ranked
+	 * @return a copy of the cached docIds, or null
+	 */
+	public int[] get(String key, boolean[] found, int[][] scores) {
+		Entry entry = this.entries.get(key);
+		if (scores != null) {
+			scores[0] = (entry == null || entry.scores == null) ? null : entry.scores.clone();
+		} // end if
+		if (entry == null) {
+			this.misses.incrementAndGet();
+			found[0] = false;
+			return null;
+		} // end if
+		if (entry.frequency < MAX_FREQUENCY) {
+			entry.frequency++;
+		} // end if
+		this.hits.incrementAndGet();
+		found[0] = true;
+		return (entry.docIds == NO_RESULTS) ? null : entry.docIds.clone();
+	} // end get()
+
+	/**
+	 * Cache the results of a query, evicting other results if over budget.
+	 * @param key
+	 * @param docIds results, or null if the query found nothing
+	 * @param generation value of getGeneration() when the query was started
+	 */
+	public void put(String key, int[] docIds, int generation) {
+		put(key, docIds, null, generation);
+	} // end put()
+
+	/**
+	 * Cache the results of a ranked query with their scores, evicting other results if over budget.
+	 * @param key
+	 * @param docIds results, or null if the query found nothing
+	 * @param scores score of each docId, or null if not ranked
+	 * @param generation value of getGeneration() when the query was started
+	 */
+	public void put(String key, int[] docIds, int[] scores, int generation) {
+
+		Entry entry = new Entry(key, (docIds == null) ? NO_RESULTS : docIds.clone(),
+				(docIds == null || scores == null) ? null : scores.clone());
+		if (entry.bytes > this.budget || generation != this.generation) {
+			return;
+		} // end if
+
+		if (this.entries.putIfAbsent(key, entry) != null) {
+			return;
+		} // end if
+		this.clock.add(entry);
+		this.bytes.addAndGet(entry.bytes);
+
+		// a concurrent invalidate() may have cleared the map before the entry went in
+		if (generation != this.generation) {
+			remove(entry);
+		} // end if
+
+		if (this.bytes.get() > this.budget) {
+			evict();
+		} // end if
+
+	} // end put()
+
+	/**
+	 * Drop every cached result, and ignore results of queries started before now.
+	 */
+	public void invalidate() {
+		synchronized (this.evictLock) {
+			this.generation++;
+			Entry entry;
+			while ((entry = this.clock.poll()) != null) {
+				if (this.entries.remove(entry.key, entry)) {
+					this.bytes.addAndGet(-entry.bytes);
+				} // end if
+			} // end while
+		} // end synchronized
+	} // end invalidate()
+
+	/**
+	 * Run the clock until the cache is within budget.
+	 */
+	private void evict() {
+		synchronized (this.evictLock) {
+			Entry entry;
+			while (this.bytes.get() > this.budget && (entry = this.clock.poll()) != null) {
+				if (this.entries.get(entry.key) != entry) {
+					// already removed
+					continue;
+				} // end if
+				if (entry.frequency > 0) {
+					entry.frequency--;
+					this.clock.add(entry);
+				} else if (this.entries.remove(entry.key, entry)) {
+					this.bytes.addAndGet(-entry.bytes);
+					this.evictions.incrementAndGet();
+				} // end if
+			} // end while
+		} // end synchronized
+	} // end evict()
+
+	private void remove(Entry entry) {
+		if (this.entries.remove(entry.key, entry)) {
+			this.bytes.addAndGet(-entry.bytes);
+		} // end if
+	} // end remove()
+
+	public long getHits() {
+		return this.hits.get();
+	} // end getHits()
+
+	public long getMisses() {
+		return this.misses.get();
+	} // end getMisses()
+
+	public long getEvictions() {
+		return this.evictions.get();
+	} // end getEvictions()
+
+	/**
+	 * @return approximate number of bytes used by cached results
+	 */
+	public long getBytes() {
+		return this.bytes.get();
+	} // end getBytes()
+
+	/**
+	 * @return number of cached results
+	 */
+	public int size() {
+		return this.entries.size();
+	} // end size()
+
+	public String toString() {
+		long h = getHits();
+		long m = getMisses();
+		return String.format("%d results, %d bytes, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+				size(), getBytes(), h, m, (h + m == 0) ? 0.0 : 100.0 * h / (h + m), getEvictions());
+	} // end toString()
+
+} // end QueryResultCache class
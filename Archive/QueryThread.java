@@ -2,6 +2,10 @@ package search.indexserver;
 
 import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.TimeUnit;
 
 import search.common.LogLibrary;
 import search.common.Timer;
@@ -9,33 +13,37 @@ import search.common.Timer.Method;
 
 /**
  * Query Thread for searching index from queue of queries.
+ * Several query threads can share one queue and one read-only index reader.
  * @author Adam Steinberger, Sam Gunther
  */
 public class QueryThread implements Runnable {
 	
+	// largest k understood in NEAR/k
+	public static final int MAX_NEAR_DISTANCE = 1 << 20;
+	
+	// stands for a quoted phrase while NEAR/k operators are parsed; quotes are gone by then
+	private static final String PHRASE = "\"";
+	
 	private static LogLibrary logs;
 	private final static Timer timer = new Timer("QueryThread",true);
-	private ArrayDeque<Query> queries;
+	private BlockingDeque<Query> queries;
 	private ArrayDeque<String> words;
-	private QLatch queryLatch;
-	private QLatch serverLatch;
-	private boolean kill;
+	private List<Proximity> proximity;
+	private volatile boolean kill;
 	private boolean verbose;
-	private InvertedIndexFileReader iiReader;
+	private volatile InvertedIndexFileReader iiReader;
 	
 	/**
 	 * QueryThread dequeues search queries from a search queue and queries index
-	 * @param sq query queue
-	 * @param sl server latch
-	 * @throws IOException 
+	 * @param reader index reader shared by all query threads
+	 * @param sq query queue shared by all query threads
 	 */
-	public QueryThread(int docId, ArrayDeque<Query> sq, QLatch sl, boolean vb) {
+	public QueryThread(InvertedIndexFileReader reader, BlockingDeque<Query> sq, boolean vb) {
 		logs = LogLibrary.instance("QueryThread.log");
 		this.queries = sq;
-		this.serverLatch = sl;
 		this.kill = false;
 		this.verbose = vb;
-		this.iiReader = new InvertedIndexFileReader(docId,vb);
+		this.iiReader = reader;
 	} // end QueryThread constructor
 
 	public boolean isVerbose() {
@@ -47,6 +55,15 @@ public class QueryThread implements Runnable {
 		this.iiReader.setVerbose(v);
 	} // end setVerbose()
 
+	/**
+	 * Serve queries taken from now on from another index reader.
+	 * @param reader
+	 */
+	public void setReader(InvertedIndexFileReader reader) {
+		reader.setVerbose(this.verbose);
+		this.iiReader = reader;
+	} // end setReader()
+
 	/**
 	 * Kill QueryThread process
 	 */
@@ -63,15 +80,40 @@ public class QueryThread implements Runnable {
 	/**
 	 * Parse Query into words pushed onto a queue.
 	 * @param query
-	 * @return
+	 * @param words queue the words are pushed onto
+	 * @return true if the words are ORed, false if they are ANDed
 	 */
-	private boolean parseQuery(String query) {
+	static boolean parseQuery(String query, ArrayDeque<String> words) {
+		return parseQuery(query, words, null);
+	} // end parseQuery()
+	
+	/**
+	 * Parse Query into words pushed onto a queue, and quoted phrases and NEAR/k operators
+	 * into proximity constraints. Phrases and NEAR/k are only understood in AND queries;
+	 * their words are pushed onto the queue like any other word.
+	 * @param query
+	 * @param words queue the words are pushed onto
+	 * @param proximity list the constraints are added to, or null to ignore them
+	 * @return true if the words are ORed, false if they are ANDed
+	 * @throws IllegalArgumentException if a NEAR/k does not have a single word on each side
+	 */
+	static boolean parseQuery(String query, ArrayDeque<String> words, List<Proximity> proximity) {
 		
 		// add new method to timer
 		Method method = timer.addMethod("parseQuery");
 		
-		// reset query word queue
-		this.words = new ArrayDeque<String>();
+		// take phrases and NEAR/k out of AND queries first
+		if (proximity != null && query.indexOf("||") < 0 && (query.indexOf('"') >= 0 || query.indexOf("NEAR/") >= 0)) {
+			
+			timer.startTimer("Parse phrases and NEAR operators",method);
+			query = parseProximity(query,words,proximity);
+			timer.stopTimer(method);
+			
+			if (query.isEmpty()) {
+				return false;
+			} // end if
+			
+		} // end if
 		
 		// check query for || operators
 		int hasOR = query.indexOf("||");
@@ -89,7 +131,7 @@ public class QueryThread implements Runnable {
 					
 					// add word to search queue
 					timer.startTimer("Add \"" + s + "\" to search queue",method);
-					this.words.addFirst(s);
+					words.addFirst(s);
 					timer.stopTimer(method);
 					
 					i = pos+3;
@@ -103,7 +145,7 @@ public class QueryThread implements Runnable {
 			
 			// add word to search queue
 			timer.startTimer("Add \"" + s + "\" to search queue",method);
-			this.words.addFirst(s);
+			words.addFirst(s);
 			timer.stopTimer(method);
 			
 		} else if (query.indexOf(" ") >= 0) {
@@ -119,7 +161,7 @@ public class QueryThread implements Runnable {
 					
 					// add word to search queue
 					timer.startTimer("Add \"" + s + "\" to search queue",method);
-					this.words.addFirst(s);
+					words.addFirst(s);
 					timer.stopTimer(method);
 					
 					i = pos;
@@ -133,14 +175,14 @@ public class QueryThread implements Runnable {
 
 			// add word to search queue
 			timer.startTimer("Add \"" + s + "\" to search queue",method);
-			this.words.addFirst(s);
+			words.addFirst(s);
 			timer.stopTimer(method);
 			
 		} else {
 			
 			// add word to search queue
 			timer.startTimer("Add \"" + query + "\" to search queue",method);
-			this.words.addFirst(query);
+			words.addFirst(query);
 			timer.stopTimer(method);
 			
 		} // end if/else
@@ -149,6 +191,94 @@ public class QueryThread implements Runnable {
 		
 	} // end parseQuery()
 	
+	/**
+	 * Push the words of quoted phrases and NEAR/k operands onto the queue and add their
+	 * constraints to the list. A NEAR/k operator applies to the single words on each side;
+	 * a NEAR/k whose k is out of range is taken as a plain word.
+	 * @return the rest of the query, words separated by single spaces
+	 * @throws IllegalArgumentException if a NEAR/k does not have a single word on each side
+	 */
+	private static String parseProximity(String query, ArrayDeque<String> words, List<Proximity> proximity) {
+		
+		// pull out quoted phrases, leaving a marker so a NEAR/k next to one can be told apart;
+		// an unclosed quote runs to the end of the query
+		StringBuilder rest = new StringBuilder();
+		int i = 0;
+		while (i < query.length()) {
+			int open = query.indexOf('"', i);
+			if (open < 0) {
+				rest.append(query.substring(i));
+				break;
+			} // end if
+			rest.append(query.substring(i, open)).append(' ').append(PHRASE).append(' ');
+			int close = query.indexOf('"', open + 1);
+			if (close < 0) {
+				close = query.length();
+			} // end if
+			String[] phrase = split(query.substring(open + 1, close));
+			for (String s : phrase) {
+				words.addFirst(s);
+			} // end for
+			if (phrase.length > 1) {
+				proximity.add(Proximity.phrase(phrase));
+			} // end if
+			i = close + 1;
+		} // end while
+		
+		// turn a NEAR/k b into a constraint, keeping a and b as plain words
+		String[] tokens = split(rest.toString());
+		StringBuilder plain = new StringBuilder();
+		for (int t = 0; t < tokens.length; t++) {
+			int k = nearDistance(tokens[t]);
+			if (k >= 0) {
+				if (t == 0 || t + 1 == tokens.length || !isWord(tokens[t - 1]) || !isWord(tokens[t + 1])) {
+					throw new IllegalArgumentException(tokens[t] + " needs a single word on each side: " + query);
+				} // end if
+				proximity.add(Proximity.near(tokens[t - 1], tokens[t + 1], k));
+			} else if (!tokens[t].equals(PHRASE)) {
+				plain.append((plain.length() == 0) ? "" : " ").append(tokens[t]);
+			} // end if
+		} // end for
+		
+		return plain.toString();
+		
+	} // end parseProximity()
+	
+	/**
+	 * @param token
+	 * @return k if the token is a NEAR/k operator with 0 <= k <= MAX_NEAR_DISTANCE, else -1
+	 */
+	private static int nearDistance(String token) {
+		if (!token.startsWith("NEAR/") || token.length() == "NEAR/".length()
+				|| token.length() > "NEAR/".length() + 7) {
+			return -1;
+		} // end if
+		int k = 0;
+		for (int c = "NEAR/".length(); c < token.length(); c++) {
+			char ch = token.charAt(c);
+			if (ch < '0' || ch > '9') {
+				return -1;
+			} // end if
+			k = 10 * k + (ch - '0');
+		} // end for
+		return (k <= MAX_NEAR_DISTANCE) ? k : -1;
+	} // end nearDistance()
+	
+	/**
+	 * @return true if the token is a word, not a phrase marker or another NEAR/k
+	 */
+	private static boolean isWord(String token) {
+		return !token.equals(PHRASE) && nearDistance(token) < 0;
+	} // end isWord()
+	
+	/**
+	 * @return the whitespace separated words of s
+	 */
+	private static String[] split(String s) {
+		s = s.trim();
+		return s.isEmpty() ? new String [0] : s.split("\\s+");
+	} // end split()
+	
 	/**
 	 * Run QueryThread to search the index for queries
 	 */
@@ -160,65 +290,96 @@ public class QueryThread implements Runnable {
 		// Make sure kill switch disengaged
 		while (!this.kill) {
 			
-			// dequeue first search query from search queue
-			Query search = this.queries.pollFirst();
-			
-			// open threadLatch if search queue is empty
-			if (search != null) {
-				
-				int[] docIds;
-				
-				// get query latch for this search
-				this.queryLatch = search.getLatch();
-				
-				// parse query into words
-				timer.startTimer("Parse query into words",method);
-				boolean hasOR = parseQuery(search.getQuery());
-				timer.stopTimer(method);
-				
-				// start timer
-				timer.startTimer("Query the inverted index",method);
-				
-				// query index using OR or AND search
-				if (hasOR) {
-					docIds = this.iiReader.queryOR(this.words,search.getLimit());
-				} else {
-					docIds = this.iiReader.queryAND(this.words,search.getLimit());
-				} // end if
-				
-				// stop timer
-				timer.stopTimer(method);
-				
-				// add results to result queue
-				timer.startTimer("Attach results to query object",method);
-				search.setDocIds(docIds);
-				timer.stopTimer(method);
-				
-				// countDown query latch
-				timer.startTimer("Count down query latch",method);
-				this.queryLatch.countDown();
-				timer.stopTimer(method);
-				
-			} // end if
+			Query search;
 			
 			try {
 				
-				// try waiting for index server to get queries
-				timer.startTimer("Wait on index server latch until new query is available",method);
-				this.serverLatch.awaitZero();
+				// wait for the index server to queue a search query
+				timer.startTimer("Wait on query queue until new query is available",method);
+				search = this.queries.pollFirst(100, TimeUnit.MILLISECONDS);
 				timer.stopTimer(method);
 				
 			} catch (InterruptedException e) {
 				try {
-					logs.log("Index Server", "high risk", "server latch will not open");
+					logs.log("Index Server", "high risk", "query thread interrupted");
 				} catch (IOException e1) {
 					e1.printStackTrace();
 				} // end try/catch
-				e.printStackTrace();
+				return;
 			} // end try/catch
-						
+			
+			// check the kill switch again if no query arrived
+			if (search != null) {
+				
+				// keep one reader for the whole query, even if the chunk is reloaded meanwhile;
+				// a reader retired before it could be taken has already been replaced
+				InvertedIndexFileReader reader;
+				do {
+					reader = this.iiReader;
+				} while (!reader.acquire());
+				
+				try {
+					search(search, reader, method);
+				} finally {
+					reader.release();
+				} // end try/finally
+				
+			} // end if
+			
 		} // end while
 		
 	} // end run()
 	
+	/**
+	 * Parse a query into words, then query the index using ranked, OR or AND search.
+	 * A query that fails to parse or search completes its future exceptionally rather than
+	 * killing this thread.
+	 * @param search
+	 * @param reader
+	 * @param method
+	 */
+	private void search(Query search, InvertedIndexFileReader reader, Method method) {
+		
+		int[] docIds;
+		int[] scores = null;
+		
+		try {
+			
+			timer.startTimer("Parse query into words",method);
+			this.words = new ArrayDeque<String>();
+			this.proximity = new ArrayList<Proximity>();
+			boolean hasOR = parseQuery(search.getQuery(),this.words,this.proximity);
+			timer.stopTimer(method);
+			
+			// start timer
+			timer.startTimer("Query the inverted index",method);
+			
+			if (search.isRanked()) {
+				ScoredDocIds ranked = reader.queryRanked(this.words,search.getLimit());
+				docIds = (ranked == null) ? null : ranked.getDocIds();
+				scores = (ranked == null) ? null : ranked.getScores();
+			} else if (hasOR) {
+				docIds = reader.queryOR(this.words,search.getLimit());
+			} else {
+				docIds = reader.queryAND(this.words,search.getLimit(),null,this.proximity);
+			} // end if
+			
+		} catch (Exception e) {
+			System.out.println("! Could not query the inverted index.");
+			e.printStackTrace();
+			timer.stopTimer(method);
+			search.fail(e);
+			return;
+		} // end try/catch
+		
+		// stop timer
+		timer.stopTimer(method);
+		
+		// attach results to query object, completing its future
+		timer.startTimer("Complete query future with results",method);
+		search.setDocIds(docIds,scores);
+		timer.stopTimer(method);
+		
+	} // end search()
+	
 } // end QueryThread class
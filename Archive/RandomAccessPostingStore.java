@@ -0,0 +1,63 @@
+package search.indexserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Posting store backed by seek() + read() on a RandomAccessFile.
+ * This is how the index was originally read. Every read is a syscall and the
+ * file pointer is shared, so reads are synchronized.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class RandomAccessPostingStore implements PostingStore {
+
+	private final RandomAccessFile file;
+
+	/**
+	 * Open the given chunk file for random access.
+	 * @param f chunk file
+	 * @throws IOException
+	 */
+	public RandomAccessPostingStore(File f) throws IOException {
+		this.file = new RandomAccessFile(f, "r");
+	} // end RandomAccessPostingStore constructor
+
+	public synchronized int readUnsignedByte(long pos) throws IOException {
+		this.file.seek(pos);
+		return this.file.readUnsignedByte();
+	} // end readUnsignedByte()
+
+	public synchronized int readUnsignedShort(long pos) throws IOException {
+		this.file.seek(pos);
+		return this.file.readUnsignedShort();
+	} // end readUnsignedShort()
+
+	public synchronized int readInt(long pos) throws IOException {
+		this.file.seek(pos);
+		return this.file.readInt();
+	} // end readInt()
+
+	public synchronized long readLong(long pos) throws IOException {
+		this.file.seek(pos);
+		return this.file.readLong();
+	} // end readLong()
+
+	public synchronized void readFully(long pos, byte[] b, int off, int len) throws IOException {
+		this.file.seek(pos);
+		this.file.readFully(b, off, len);
+	} // end readFully()
+
+	public long length() {
+		try {
+			return this.file.length();
+		} catch (IOException e) {
+			return -1;
+		} // end try/catch
+	} // end length()
+
+	public void close() throws IOException {
+		this.file.close();
+	} // end close()
+
+} // end RandomAccessPostingStore class
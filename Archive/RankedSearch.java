@@ -0,0 +1,256 @@
+package search.indexserver;
+
+import java.io.IOException;
+
+/**
+ * Top-k ranked retrieval over the posting lists of the words of a query, with WAND pruning.
+ * Docs are scored with BM25, taking the term frequency of a word in a doc from the length of
+ * its hit list. Chunks do not record document lengths, so there is no length normalization
+ * (b = 0) and a word adds idf * tf * (K1 + 1) / (tf + K1) to the score of a doc.
+ *
+ * That never exceeds idf * (K1 + 1), the word's upper bound. The cursors are kept ordered by
+ * docId, and the first doc worth scoring is the one where the upper bounds of the cursors
+ * up to it first add up to more than the lowest score in the top limit. Every cursor behind
+ * that doc can skip straight to it, so docs that cannot enter the top limit are never scored.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class RankedSearch {
+
+	public static final double K1 = 1.2;
+
+	/**
+	 * A word of a ranked query.
+	 */
+	public static class Term {
+
+		private final PostingCursor cursor;
+		private final double idf;
+		private final double upperBound;
+
+		/**
+		 * @param cursor unused cursor over the word's posting list
+		 * @param nDocs lexicon document count for the word
+		 * @param docCount number of docs in the chunk
+		 */
+		public Term(PostingCursor cursor, int nDocs, int docCount) {
+			this.cursor = cursor;
+			this.idf = idf(nDocs, docCount);
+			this.upperBound = this.idf * (K1 + 1);
+		} // end Term constructor
+
+	} // end Term class
+
+	/**
+	 * @param nDocs number of docs containing the word
+	 * @param docCount number of docs in the chunk
+	 * @return BM25 inverse document frequency of the word
+	 */
+	public static double idf(int nDocs, int docCount) {
+		docCount = Math.max(docCount, nDocs);
+		return Math.log(1 + (docCount - nDocs + 0.5) / (nDocs + 0.5));
+	} // end idf()
+
+	/**
+	 * @param idf
+	 * @param tf number of hits of the word in the doc
+	 * @return score the word adds to the doc
+	 */
+	public static double score(double idf, int tf) {
+		// a posting with an empty hit list still means the word is in the doc
+		tf = Math.max(tf, 1);
+		return idf * tf * (K1 + 1) / (tf + K1);
+	} // end score()
+
+	/**
+	 * Find the highest scoring docs.
+	 * @param terms one term per word
+	 * @param limit maximum number of docIds to return
+	 * @return docIds in decreasing order of score, ties in increasing docId order
+	 * @throws IOException
+	 */
+	public static int[] topDocs(Term[] terms, int limit) throws IOException {
+		return topDocs(terms, limit, true);
+	} // end topDocs()
+
+	/**
+	 * Find the highest scoring docs.
+	 * @param terms one term per word
+	 * @param limit maximum number of docIds to return
+	 * @param prune false to score every doc, for comparison with WAND
+	 * @return docIds in decreasing order of score, ties in increasing docId order
+	 * @throws IOException
+	 */
+	public static int[] topDocs(Term[] terms, int limit, boolean prune) throws IOException {
+		return scoredDocs(terms, limit, prune).getDocIds();
+	} // end topDocs()
+
+	/**
+	 * Find the highest scoring docs and their scores.
+	 * @param terms one term per word
+	 * @param limit maximum number of docIds to return
+	 * @param prune false to score every doc, for comparison with WAND
+	 * @return docIds in decreasing order of score, ties in increasing docId order, with their
+	 * fixed-point scores
+	 * @throws IOException
+	 */
+	public static ScoredDocIds scoredDocs(Term[] terms, int limit, boolean prune) throws IOException {
+
+		// position every cursor on its first docId
+		Term[] live = new Term [terms.length];
+		int nLive = 0;
+		long total = 0;
+		for (Term term : terms) {
+			if (term.cursor.nextDoc() != PostingCursor.NO_MORE_DOCS) {
+				live[nLive++] = term;
+				total += term.cursor.cost();
+			} // end if
+		} // end for
+
+		// min-heap of the best docs so far, lowest score on top
+		int capacity = (int) Math.max(Math.min(limit, total), 0);
+		double[] scores = new double [capacity];
+		int[] docs = new int [capacity];
+		int size = 0;
+
+		while (nLive > 0 && capacity > 0) {
+
+			sortByDocId(live, nLive);
+			double threshold = (prune && size == capacity) ? scores[0] : -1;
+
+			// find the pivot: the first cursor at which the upper bounds exceed the threshold
+			double bound = 0;
+			int pivot = -1;
+			for (int i = 0; i < nLive; i++) {
+				bound += live[i].upperBound;
+				if (bound > threshold) {
+					pivot = i;
+					break;
+				} // end if
+			} // end for
+			if (pivot < 0) {
+				break;
+			} // end if
+			int pivotDoc = live[pivot].cursor.docId();
+
+			if (live[0].cursor.docId() == pivotDoc) {
+
+				// every cursor up to the pivot is on the pivot doc, so score it; sum in
+				// term order so the score does not depend on the order of the cursors
+				double score = 0;
+				for (Term term : terms) {
+					if (term.cursor.docId() == pivotDoc) {
+						score += score(term.idf, term.cursor.freq());
+					} // end if
+				} // end for
+
+				if (size < capacity) {
+					scores[size] = score;
+					docs[size] = pivotDoc;
+					siftUp(scores, docs, size++);
+				} else if (score > scores[0]) {
+					scores[0] = score;
+					docs[0] = pivotDoc;
+					siftDown(scores, docs, size, 0);
+				} // end if
+
+				for (int i = 0; i < nLive && live[i].cursor.docId() == pivotDoc; i++) {
+					live[i].cursor.nextDoc();
+				} // end for
+
+			} else {
+
+				// docs before the pivot doc cannot beat the threshold
+				for (int i = 0; i < pivot; i++) {
+					live[i].cursor.advance(pivotDoc);
+				} // end for
+
+			} // end if
+
+			// drop exhausted cursors
+			int n = 0;
+			for (int i = 0; i < nLive; i++) {
+				if (live[i].cursor.docId() != PostingCursor.NO_MORE_DOCS) {
+					live[n++] = live[i];
+				} // end if
+			} // end for
+			nLive = n;
+
+		} // end while
+
+		// empty the heap from the lowest score up
+		int[] result = new int [size];
+		int[] resultScores = new int [size];
+		while (size > 0) {
+			result[size - 1] = docs[0];
+			resultScores[size - 1] = ScoredDocIds.fixedPoint(scores[0]);
+			size--;
+			scores[0] = scores[size];
+			docs[0] = docs[size];
+			siftDown(scores, docs, size, 0);
+		} // end while
+
+		return new ScoredDocIds(result, resultScores);
+
+	} // end scoredDocs()
+
+	/**
+	 * Insertion sort by current docId; queries have few words and the order barely changes.
+	 */
+	private static void sortByDocId(Term[] terms, int n) {
+		for (int i = 1; i < n; i++) {
+			Term term = terms[i];
+			int docId = term.cursor.docId();
+			int j = i - 1;
+			while (j >= 0 && terms[j].cursor.docId() > docId) {
+				terms[j + 1] = terms[j];
+				j--;
+			} // end while
+			terms[j + 1] = term;
+		} // end for
+	} // end sortByDocId()
+
+	/**
+	 * @return true if entry a ranks below entry b: lower score, or the same score and a later docId
+	 */
+	private static boolean below(double[] scores, int[] docs, int a, int b) {
+		return scores[a] < scores[b] || (scores[a] == scores[b] && docs[a] > docs[b]);
+	} // end below()
+
+	private static void siftUp(double[] scores, int[] docs, int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!below(scores, docs, i, parent)) {
+				break;
+			} // end if
+			swap(scores, docs, i, parent);
+			i = parent;
+		} // end while
+	} // end siftUp()
+
+	private static void siftDown(double[] scores, int[] docs, int size, int i) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				break;
+			} // end if
+			if (child + 1 < size && below(scores, docs, child + 1, child)) {
+				child++;
+			} // end if
+			if (!below(scores, docs, child, i)) {
+				break;
+			} // end if
+			swap(scores, docs, i, child);
+			i = child;
+		} // end while
+	} // end siftDown()
+
+	private static void swap(double[] scores, int[] docs, int a, int b) {
+		double score = scores[a];
+		scores[a] = scores[b];
+		scores[b] = score;
+		int docId = docs[a];
+		docs[a] = docs[b];
+		docs[b] = docId;
+	} // end swap()
+
+} // end RankedSearch class
@@ -0,0 +1,119 @@
+package search.indexserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Benchmark top-k ranked queries over frequent words, comparing WAND with scoring every doc.
+ * Usage: RankedSearchBenchmark [docs] [limit] [rounds] [version]
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class RankedSearchBenchmark {
+
+	// fraction of the docs each word is in, most common first
+	private static final double[] DENSITIES = { 0.9, 0.5, 0.2, 0.05, 0.01 };
+
+	/**
+	 * Write a chunk with one word per density. Most docs have a word once or twice and a few
+	 * have it many times, as in real text.
+	 */
+	private static void writeChunk(File f, int version, int docs) throws IOException {
+
+		Random rand = new Random(42);
+		ChunkIndexWriter writer = new ChunkIndexWriter(f, version);
+
+		for (int w = 0; w < DENSITIES.length; w++) {
+			int[] docIds = new int [docs];
+			int n = 0;
+			for (int d = 0; d < docs; d++) {
+				if (rand.nextDouble() < DENSITIES[w]) {
+					docIds[n++] = d;
+				} // end if
+			} // end for
+			int[][] hits = new int [n][];
+			for (int d = 0; d < n; d++) {
+				int tf = 1;
+				while (tf < 200 && rand.nextInt(3) == 0) {
+					tf *= 2;
+				} // end while
+				hits[d] = new int [tf];
+			} // end for
+			writer.addWord("word" + w, Arrays.copyOf(docIds, n), hits);
+		} // end for
+
+		writer.close();
+
+	} // end writeChunk()
+
+	private static long run(InvertedIndexFileReader reader, String[] words, int limit, int rounds,
+			boolean prune) throws IOException {
+
+		int docCount = reader.getLexicon().nDocs(0);
+		for (int i = 0; i < reader.getLexicon().size(); i++) {
+			docCount = Math.max(docCount, reader.getLexicon().nDocs(i));
+		} // end for
+
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			RankedSearch.Term[] terms = new RankedSearch.Term [words.length];
+			for (int w = 0; w < words.length; w++) {
+				int nDocs = reader.getLexicon().nDocs(reader.getLexicon().find(words[w]));
+				terms[w] = new RankedSearch.Term(reader.getCursor(words[w]), nDocs, docCount);
+			} // end for
+			RankedSearch.topDocs(terms, limit, prune);
+		} // end for
+		return System.nanoTime() - start;
+
+	} // end run()
+
+	/**
+	 * The main benchmark method.
+	 */
+	public static void main(String[] args) {
+
+		int docs = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int limit = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		int version = args.length > 3 ? Integer.parseInt(args[3]) : ChunkFormat.BLOCKED;
+
+		String[][] queries = {
+				{ "word0", "word1" },
+				{ "word0", "word3" },
+				{ "word1", "word2", "word4" },
+				{ "word0", "word1", "word2", "word3", "word4" } };
+
+		try {
+
+			File f = File.createTempFile("chunk", ".index");
+			f.deleteOnExit();
+			writeChunk(f, version, docs);
+			System.out.println("! Wrote " + f.length() + " byte version " + version + " chunk");
+
+			InvertedIndexFileReader reader = new InvertedIndexFileReader(f, false, StorageBackend.MAPPED);
+			reader.setVerbose(false);
+
+			for (String[] words : queries) {
+
+				// warm up the page cache and JIT before measuring
+				run(reader, words, limit, 2, false);
+				run(reader, words, limit, 2, true);
+
+				long full = run(reader, words, limit, rounds, false);
+				long wand = run(reader, words, limit, rounds, true);
+
+				System.out.println(String.format("%-40s full %8.2f ms  WAND %8.2f ms  (%.0f%% of full)",
+						Arrays.toString(words), full / 1e6 / rounds, wand / 1e6 / rounds,
+						100.0 * wand / full));
+
+			} // end for
+
+		} catch (Exception e) {
+			System.out.println("! Could not run ranked search benchmark.");
+			e.printStackTrace();
+		} // end try/catch
+
+	} // end main()
+
+} // end RankedSearchBenchmark class
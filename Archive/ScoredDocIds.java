@@ -0,0 +1,54 @@
+package search.indexserver;
+
+import java.util.Arrays;
+
+/**
+ * DocIds of a ranked query, best first, with the BM25 score of each. Scores are fixed-point
+ * numbers (the score times SCORE_SCALE, rounded), so they go over the wire as varints and
+ * answers from different index servers can be merged by score.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class ScoredDocIds {
+
+	// fixed-point scores are the score times this, rounded
+	public static final int SCORE_SCALE = 1 << 16;
+
+	private final int[] docIds;
+	private final int[] scores;
+
+	/**
+	 * @param docIds docIds best first, or null if none found
+	 * @param scores fixed-point score of each docId, or null if the docIds were not scored
+	 */
+	public ScoredDocIds(int[] docIds, int[] scores) {
+		this.docIds = docIds;
+		this.scores = scores;
+	} // end ScoredDocIds constructor
+
+	/**
+	 * @param score BM25 score
+	 * @return the score as a fixed-point number, clamped to the range of a non-negative int
+	 */
+	public static int fixedPoint(double score) {
+		return (int) Math.max(Math.min(Math.round(score * SCORE_SCALE), Integer.MAX_VALUE), 0);
+	} // end fixedPoint()
+
+	/**
+	 * @return docIds best first, or null if none found
+	 */
+	public int[] getDocIds() {
+		return this.docIds;
+	} // end getDocIds()
+
+	/**
+	 * @return fixed-point score of each docId, or null if the docIds were not scored
+	 */
+	public int[] getScores() {
+		return this.scores;
+	} // end getScores()
+
+	public String toString() {
+		return Arrays.toString(this.docIds) + " scored " + Arrays.toString(this.scores);
+	} // end toString()
+
+} // end ScoredDocIds class
@@ -0,0 +1,110 @@
+package search.indexserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Version 2 posting layout: docIds for a word are stored contiguously, and hit lists
+ * live in a parallel hits area addressed by per-posting offsets.
+ * Boolean queries read the docIds in one bulk read and never touch the hit lists.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class SeparatedPostingFormat implements PostingFormat {
+
+	// offset of the hits area in the chunk
+	private final long hitsArea;
+
+	/**
+	 * @param hitsArea offset of the hits area in the chunk
+	 */
+	public SeparatedPostingFormat(long hitsArea) {
+		this.hitsArea = hitsArea;
+	} // end SeparatedPostingFormat constructor
+
+	public int[] readDocIds(PostingStore store, long ptr, int nDocs, int limit) throws IOException {
+
+		if (nDocs < limit) {
+			limit = nDocs;
+		} // end if
+
+		// docIds follow the hits pointer, so read them all at once
+		byte[] bytes = new byte [limit * 4];
+		store.readFully(ptr + 8, bytes, 0, bytes.length);
+
+		int[] docIds = new int [limit];
+		ByteBuffer.wrap(bytes).asIntBuffer().get(docIds);
+		return docIds;
+
+	} // end readDocIds()
+
+	public PostingCursor cursor(final PostingStore store, long ptr, final int nDocs) throws IOException {
+
+		// hit lists are only looked up for the docs a ranked or phrase query checks
+		final long hits = hitsStart(store, ptr);
+		return new ArrayPostingCursor(readDocIds(store, ptr, nDocs, nDocs)) {
+			public int freq() throws IOException {
+				return hitCount(store, hits, nDocs, ordinal());
+			} // end freq()
+			public int[] hits() throws IOException {
+				return ChunkFormat.readHitList(store, hitList(store, hits, nDocs, ordinal()));
+			} // end hits()
+		};
+
+	} // end cursor()
+
+	public int[] readHits(PostingStore store, long ptr, int nDocs, int ordinal) throws IOException {
+		return ChunkFormat.readHitList(store, hitList(store, hitsStart(store, ptr), nDocs, ordinal));
+	} // end readHits()
+
+	/**
+	 * @param store chunk storage
+	 * @param ptr lexicon pointer for the word
+	 * @return offset of the word's hit list offset table
+	 * @throws IOException
+	 */
+	protected long hitsStart(PostingStore store, long ptr) throws IOException {
+		return this.hitsArea + store.readLong(ptr);
+	} // end hitsStart()
+
+	/**
+	 * Read the number of hits in one posting without reading the hit list.
+	 * @param store chunk storage
+	 * @param hits offset of the word's hit list offset table
+	 * @param nDocs lexicon document count for the word
+	 * @param ordinal index of the posting in the list
+	 * @return
+	 * @throws IOException
+	 */
+	static int hitCount(PostingStore store, long hits, int nDocs, int ordinal) throws IOException {
+		return ChunkFormat.hitCount(store, hitList(store, hits, nDocs, ordinal));
+	} // end hitCount()
+
+	/**
+	 * @param store chunk storage
+	 * @param hits offset of the word's hit list offset table
+	 * @param nDocs lexicon document count for the word
+	 * @param ordinal index of the posting in the list
+	 * @return offset of the posting's hit list
+	 * @throws IOException
+	 */
+	static long hitList(PostingStore store, long hits, int nDocs, int ordinal) throws IOException {
+		long offset = store.readInt(hits + 4L * ordinal) & 0xffffffffL;
+		return hits + 4L * nDocs + offset;
+	} // end hitList()
+
+	public void readPostings(PostingStore store, long ptr, int nDocs, int[] docIds, int[][] hits)
+			throws IOException {
+
+		int[] ids = readDocIds(store, ptr, nDocs, nDocs);
+		System.arraycopy(ids, 0, docIds, 0, nDocs);
+
+		// hit lists are stored in posting order, so walk them after the offset table
+		long pos = this.hitsArea + store.readLong(ptr) + 4L * nDocs;
+		for (int i = 0; i < nDocs; i++) {
+			hits[i] = ChunkFormat.readHitList(store, pos);
+			pos += ChunkFormat.hitListSize(store, pos);
+		} // end for
+
+	} // end readPostings()
+
+} // end SeparatedPostingFormat class
@@ -0,0 +1,368 @@
+package search.indexserver;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/**
+ * Scatter-gather over an index split into shards, each served by its own IndexClient.
+ * A query goes to every shard at once, asking each for the whole limit, and the answers are
+ * merged into the global top limit: docId order queries by merging the sorted lists, ranked
+ * queries by merging the shards' best-first lists on the BM25 score sent with every docId.
+ * Each shard scores with its own document frequencies, which is close enough when documents
+ * are spread evenly over the shards. Shards get one deadline per query; a shard that has not
+ * answered by then (or failed) is left out and the query completes with the shards that did
+ * answer, marked partial, instead of waiting on it.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class ShardBroker {
+
+	// time each shard has to answer a query
+	public static final long DEFAULT_TIMEOUT_MILLIS = 250;
+
+	/**
+	 * Merged answer to a query.
+	 */
+	public static class Result {
+
+		private final int[] docIds;
+		private final int[] scores;
+		private final int shardsAnswered;
+		private final int shardCount;
+
+		Result(int[] docIds, int[] scores, int shardsAnswered, int shardCount) {
+			this.docIds = docIds;
+			this.scores = scores;
+			this.shardsAnswered = shardsAnswered;
+			this.shardCount = shardCount;
+		} // end Result constructor
+
+		/**
+		 * @return docIds of the answering shards, merged, or null if none match
+		 */
+		public int[] getDocIds() {
+			return this.docIds;
+		} // end getDocIds()
+
+		/**
+		 * @return fixed-point score of each docId of a ranked query, or null
+		 */
+		public int[] getScores() {
+			return this.scores;
+		} // end getScores()
+
+		public int getShardsAnswered() {
+			return this.shardsAnswered;
+		} // end getShardsAnswered()
+
+		public int getShardCount() {
+			return this.shardCount;
+		} // end getShardCount()
+
+		/**
+		 * @return true if some shards missed their deadline or failed
+		 */
+		public boolean isPartial() {
+			return this.shardsAnswered < this.shardCount;
+		} // end isPartial()
+
+		public String toString() {
+			return Arrays.toString(this.docIds) + " from " + this.shardsAnswered + " of " + this.shardCount + " shards";
+		} // end toString()
+
+	} // end Result class
+
+	private final IndexClient[] shards;
+	private final long timeoutMillis;
+	private final ScheduledExecutorService deadlines;
+
+	/**
+	 * @param shards "host:port" endpoints, one shard per entry; replicas of a shard separated by commas
+	 * @param timeoutMillis time each shard has to answer a query
+	 */
+	public ShardBroker(String[] shards, long timeoutMillis) {
+		this(clients(shards), timeoutMillis);
+	} // end ShardBroker constructor
+
+	/**
+	 * @param shards clients of the shards, each serving a different part of the index
+	 * @param timeoutMillis time each shard has to answer a query
+	 */
+	public ShardBroker(List<IndexClient> shards, long timeoutMillis) {
+
+		if (shards.isEmpty()) {
+			throw new IllegalArgumentException("Shard broker needs at least one shard");
+		} // end if
+
+		this.shards = shards.toArray(new IndexClient [shards.size()]);
+		this.timeoutMillis = timeoutMillis;
+		this.deadlines = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ShardBroker-deadlines");
+				t.setDaemon(true);
+				return t;
+			} // end newThread()
+		});
+
+	} // end ShardBroker constructor
+
+	private static List<IndexClient> clients(String[] shards) {
+		List<IndexClient> clients = new ArrayList<IndexClient>();
+		for (String shard : shards) {
+			clients.add(new IndexClient(shard));
+		} // end for
+		return clients;
+	} // end clients()
+
+	/**
+	 * Send a query to every shard.
+	 * @param limit docIds wanted, or 0 for the servers' default
+	 * @param query
+	 * @return a future completed with the first docIds matching the query in docId order
+	 */
+	public CompletableFuture<Result> queryAsync(int limit, String query) {
+		return scatter(false, limit, query);
+	} // end queryAsync()
+
+	/**
+	 * Send a query whose results are ranked by score to every shard.
+	 * @param limit docIds wanted
+	 * @param query
+	 * @return a future completed with the best docIds of the shards, best first
+	 */
+	public CompletableFuture<Result> queryRankedAsync(int limit, String query) {
+		return scatter(true, limit, query);
+	} // end queryRankedAsync()
+
+	/**
+	 * Send a query to every shard and wait for the merged answer.
+	 * @param limit docIds wanted
+	 * @param query
+	 * @return the merged answer of the shards that answered in time
+	 * @throws IOException if interrupted
+	 */
+	public Result query(int limit, String query) throws IOException {
+		try {
+			return queryAsync(limit, query).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for query \"" + query + "\"", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} // end try/catch
+	} // end query()
+
+	public int getShardCount() {
+		return this.shards.length;
+	} // end getShardCount()
+
+	/**
+	 * Close the connections to every shard.
+	 */
+	public void close() {
+		this.deadlines.shutdownNow();
+		for (IndexClient shard : this.shards) {
+			shard.close();
+		} // end for
+	} // end close()
+
+	/**
+	 * Send a query to every shard and merge the answers that arrive before the deadline.
+	 */
+	private CompletableFuture<Result> scatter(final boolean ranked, int wanted, String query) {
+
+		final int limit = (wanted > 0) ? wanted : IndexServerListener.LIMIT;
+
+		final CompletableFuture<Result> result = new CompletableFuture<Result>();
+		final AtomicReferenceArray<ScoredDocIds> answers = new AtomicReferenceArray<ScoredDocIds>(this.shards.length);
+		final AtomicInteger waiting = new AtomicInteger(this.shards.length);
+		final AtomicBoolean gathered = new AtomicBoolean();
+
+		final AtomicReferenceArray<CompletableFuture<ScoredDocIds>> sent = new AtomicReferenceArray<CompletableFuture<ScoredDocIds>>(this.shards.length);
+
+		final Runnable gather = new Runnable() {
+			public void run() {
+				// the last answer and the deadline may race; only the first merges
+				if (gathered.compareAndSet(false, true)) {
+					result.complete(merge(answers, ranked, limit));
+					// shards that missed the deadline forget their queries
+					for (int i = 0; i < sent.length(); i++) {
+						CompletableFuture<ScoredDocIds> answer = sent.get(i);
+						if (answer != null) {
+							answer.cancel(false);
+						} // end if
+					} // end for
+				} // end if
+			} // end run()
+		};
+
+		// the deadline counts from now, including any time spent opening connections below
+		final ScheduledFuture<?> deadline = this.deadlines.schedule(gather, this.timeoutMillis, TimeUnit.MILLISECONDS);
+
+		for (int i = 0; i < this.shards.length; i++) {
+			final int shard = i;
+			// a shard's query expires with the deadline even if the deadline task is late
+			CompletableFuture<ScoredDocIds> answer = this.shards[i].send(ranked ? WireProtocol.RANKED_QUERY : WireProtocol.QUERY,
+					limit, query, this.timeoutMillis);
+			sent.set(i, answer);
+			answer.whenComplete(new BiConsumer<ScoredDocIds, Throwable>() {
+				public void accept(ScoredDocIds docIds, Throwable failure) {
+					if (failure instanceof CancellationException || failure instanceof SocketTimeoutException) {
+						// missed the deadline; gathered without it
+					} else if (failure != null) {
+						System.out.println("! Shard " + shards[shard].getEndpoints() + " failed: " + failure);
+					} else if (!gathered.get()) {
+						answers.set(shard, docIds);
+					} // end if
+					if (waiting.decrementAndGet() == 0) {
+						deadline.cancel(false);
+						gather.run();
+					} // end if
+				} // end accept()
+			});
+		} // end for
+
+		return result;
+
+	} // end scatter()
+
+	/**
+	 * Merge the answers of the shards that answered.
+	 * @param answers answer per shard, null where the shard did not answer
+	 * @param ranked true to merge by score, false to merge in docId order
+	 * @param limit
+	 * @return the merged answer
+	 */
+	static Result merge(AtomicReferenceArray<ScoredDocIds> answers, boolean ranked, int limit) {
+
+		int n = answers.length();
+		int[][] lists = new int [n][];
+		int[][] scores = new int [n][];
+		int answered = 0;
+		for (int i = 0; i < n; i++) {
+			ScoredDocIds answer = answers.get(i);
+			if (answer != null) {
+				answered++;
+				lists[i] = (answer.getDocIds() == null) ? new int [0] : answer.getDocIds();
+				scores[i] = (answer.getScores() == null) ? new int [lists[i].length] : answer.getScores();
+			} // end if
+		} // end for
+
+		if (ranked) {
+			ScoredDocIds merged = mergeByScore(lists, scores, limit);
+			int[] docIds = merged.getDocIds();
+			return new Result((docIds.length == 0) ? null : docIds, (docIds.length == 0) ? null : merged.getScores(), answered, n);
+		} // end if
+		int[] docIds = mergeByDocId(lists, limit);
+		return new Result((docIds.length == 0) ? null : docIds, null, answered, n);
+
+	} // end merge()
+
+	/**
+	 * @param lists docIds in increasing order per shard, null for no answer; negative docIds
+	 * are padding and end a list
+	 * @param limit
+	 * @return the first limit distinct docIds of all lists, in increasing order
+	 */
+	static int[] mergeByDocId(int[][] lists, int limit) {
+
+		int[] pos = new int [lists.length];
+		int[] merged = new int [Math.max(limit, 0)];
+		int size = 0;
+
+		while (size < merged.length) {
+			int min = Integer.MAX_VALUE;
+			boolean found = false;
+			for (int i = 0; i < lists.length; i++) {
+				if (lists[i] != null && pos[i] < lists[i].length && lists[i][pos[i]] >= 0
+						&& lists[i][pos[i]] <= min) {
+					min = lists[i][pos[i]];
+					found = true;
+				} // end if
+			} // end for
+			if (!found) {
+				break;
+			} // end if
+			merged[size++] = min;
+			// a docId held by several shards is taken once
+			for (int i = 0; i < lists.length; i++) {
+				if (lists[i] != null && pos[i] < lists[i].length && lists[i][pos[i]] == min) {
+					pos[i]++;
+				} // end if
+			} // end for
+		} // end while
+
+		return Arrays.copyOf(merged, size);
+
+	} // end mergeByDocId()
+
+	/**
+	 * K-way merge of the shards' ranked answers: a heap holds the next docId of every list,
+	 * highest score on top, ties to the lower docId.
+	 * @param lists docIds best first per shard, null for no answer; negative docIds are
+	 * padding and end a list
+	 * @param scores fixed-point score of each docId, in the same layout as lists
+	 * @param limit
+	 * @return the limit distinct docIds with the highest scores, best first, with their scores;
+	 * a docId held by several shards keeps its highest score
+	 */
+	static ScoredDocIds mergeByScore(final int[][] lists, final int[][] scores, int limit) {
+
+		final int[] pos = new int [lists.length];
+		PriorityQueue<Integer> heads = new PriorityQueue<Integer>(Math.max(lists.length, 1), new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int sa = scores[a][pos[a]];
+				int sb = scores[b][pos[b]];
+				if (sa != sb) {
+					return (sa > sb) ? -1 : 1;
+				} // end if
+				return Integer.compare(lists[a][pos[a]], lists[b][pos[b]]);
+			} // end compare()
+		});
+		for (int i = 0; i < lists.length; i++) {
+			if (lists[i] != null && lists[i].length > 0 && lists[i][0] >= 0) {
+				heads.add(i);
+			} // end if
+		} // end for
+
+		int[] merged = new int [Math.max(limit, 0)];
+		int[] mergedScores = new int [merged.length];
+		int size = 0;
+		Set<Integer> seen = new HashSet<Integer>();
+
+		while (size < merged.length && !heads.isEmpty()) {
+			int i = heads.poll();
+			// the first time a docId comes off the heap is its highest score
+			if (seen.add(lists[i][pos[i]])) {
+				merged[size] = lists[i][pos[i]];
+				mergedScores[size++] = scores[i][pos[i]];
+			} // end if
+			pos[i]++;
+			if (pos[i] < lists[i].length && lists[i][pos[i]] >= 0) {
+				heads.add(i);
+			} // end if
+		} // end while
+
+		return new ScoredDocIds(Arrays.copyOf(merged, size), Arrays.copyOf(mergedScores, size));
+
+	} // end mergeByScore()
+
+} // end ShardBroker class
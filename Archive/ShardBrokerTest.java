@@ -0,0 +1,422 @@
+package search.indexserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import search.common.LogLibrary;
+
+/**
+ * Test the wire protocol, IndexClient deadlines and ShardBroker merges and deadlines, against
+ * fake shards on local ports that answer every query with fixed docIds (and scores, if ranked)
+ * after a fixed delay.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class ShardBrokerTest {
+
+	private static LogLibrary logs;
+
+	private static final ThreadFactory DAEMONS = new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "FakeShard");
+			t.setDaemon(true);
+			return t;
+		} // end newThread()
+	};
+	private static final ExecutorService threads = Executors.newCachedThreadPool(DAEMONS);
+	private static final ScheduledExecutorService replies = Executors.newScheduledThreadPool(2, DAEMONS);
+
+	/**
+	 * Index server that answers QUERY and RANKED_QUERY with the first limit of its docIds,
+	 * and RANKED_QUERY with their scores too.
+	 */
+	private static class FakeShard {
+
+		final ServerSocket listener;
+
+		FakeShard(final int[] docIds, final int[] scores, final long delayMillis) throws IOException {
+			this.listener = new ServerSocket(0);
+			threads.execute(new Runnable() {
+				public void run() {
+					try {
+						while (true) {
+							serve(listener.accept(), docIds, scores, delayMillis);
+						} // end while
+					} catch (IOException e) {
+						// listener closed
+					} // end try/catch
+				} // end run()
+			});
+		} // end FakeShard constructor
+
+		String endpoint() {
+			return "localhost:" + this.listener.getLocalPort();
+		} // end endpoint()
+
+		void close() throws IOException {
+			this.listener.close();
+		} // end close()
+
+	} // end FakeShard class
+
+	private static void serve(final Socket socket, final int[] docIds, final int[] scores, final long delayMillis) {
+		threads.execute(new Runnable() {
+			public void run() {
+				try {
+					final WireConnection connection = new WireConnection(socket, threads);
+					WireProtocol.Message request;
+					while ((request = connection.read()) != null) {
+						final int id = request.getRequestId();
+						final boolean ranked = request.getType() == WireProtocol.RANKED_QUERY;
+						final int[] answer = Arrays.copyOf(docIds, Math.min(request.getVarInt(), docIds.length));
+						replies.schedule(new Runnable() {
+							public void run() {
+								if (ranked) {
+									connection.reply(new WireProtocol.Message(WireProtocol.SCORED_DOC_IDS, id)
+											.putScoredDocIds(answer, scores));
+								} else {
+									connection.reply(new WireProtocol.Message(WireProtocol.DOC_IDS, id).putDocIds(answer));
+								} // end if
+							} // end run()
+						}, delayMillis, TimeUnit.MILLISECONDS);
+					} // end while
+					connection.finish();
+				} catch (IOException e) {
+					// client went away
+				} // end try/catch
+			} // end run()
+		});
+	} // end serve()
+
+	/**
+	 * @return a local endpoint nothing listens on
+	 */
+	private static String deadEndpoint() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		return "localhost:" + port;
+	} // end deadEndpoint()
+
+	/**
+	 * Random messages must read back as written, and a frame longer than MAX_FRAME_LENGTH must
+	 * be refused.
+	 */
+	private static boolean checkWire() throws IOException {
+		Random rand = new Random(3);
+		for (int t = 0; t < 5000; t++) {
+			int[] docIds = (rand.nextInt(10) == 0) ? null : new int [rand.nextInt(50)];
+			int[] scores = (docIds == null) ? null : new int [docIds.length];
+			if (docIds != null) {
+				for (int i = 0; i < docIds.length; i++) {
+					docIds[i] = (rand.nextInt(4) == 0) ? rand.nextInt() : rand.nextInt(100000);
+					scores[i] = ScoredDocIds.fixedPoint(rand.nextDouble() * 40);
+				} // end for
+			} // end if
+			String[] strings = new String [rand.nextInt(5)];
+			for (int i = 0; i < strings.length; i++) {
+				strings[i] = (rand.nextInt(3) == 0) ? null : "h\u00e9llo \u4e16" + rand.nextInt();
+			} // end for
+			int value = rand.nextInt();
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			WireProtocol.write(new DataOutputStream(bytes), new WireProtocol.Message(WireProtocol.CAPTIONS, t)
+					.putVarInt(value).putDocIds(docIds).putStrings(strings).putString("x").putScoredDocIds(docIds, scores));
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			WireProtocol.Message m = WireProtocol.read(in);
+			if (m.getType() != WireProtocol.CAPTIONS || m.getRequestId() != t || m.getVarInt() != value
+					|| !Arrays.equals(docIds, m.getDocIds()) || !Arrays.equals(strings, m.getStrings())
+					|| !"x".equals(m.getString())) {
+				return false;
+			} // end if
+			ScoredDocIds scored = m.getScoredDocIds();
+			if (!Arrays.equals(docIds, scored.getDocIds()) || !Arrays.equals(scores, scored.getScores())
+					|| WireProtocol.read(in) != null) {
+				return false;
+			} // end if
+		} // end for
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new DataOutputStream(bytes).writeInt(WireProtocol.MAX_FRAME_LENGTH + 1);
+		try {
+			WireProtocol.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+			return false;
+		} catch (IOException e) {
+			return true;
+		} // end try/catch
+	} // end checkWire()
+
+	/**
+	 * DocId merges must match brute force on 3000 random cases: docId order is the sorted union
+	 * with no duplicates and no -1 padding, and missing shards are skipped.
+	 */
+	private static boolean checkMerge() {
+		Random rand = new Random(1);
+		for (int t = 0; t < 3000; t++) {
+			int[][] lists = new int [1 + rand.nextInt(5)][];
+			TreeSet<Integer> all = new TreeSet<Integer>();
+			for (int i = 0; i < lists.length; i++) {
+				if (rand.nextInt(6) == 0) {
+					continue;
+				} // end if
+				TreeSet<Integer> list = new TreeSet<Integer>();
+				int n = rand.nextInt(20);
+				while (list.size() < n) {
+					list.add(rand.nextInt(100));
+				} // end while
+				all.addAll(list);
+				lists[i] = new int [n + ((rand.nextInt(4) == 0) ? 3 : 0)];
+				Arrays.fill(lists[i], -1);
+				int d = 0;
+				for (int docId : list) {
+					lists[i][d++] = docId;
+				} // end for
+			} // end for
+			int limit = 1 + rand.nextInt(25);
+			int[] expected = new int [Math.min(limit, all.size())];
+			int d = 0;
+			for (int docId : all) {
+				if (d == expected.length) {
+					break;
+				} // end if
+				expected[d++] = docId;
+			} // end for
+			if (!Arrays.equals(expected, ShardBroker.mergeByDocId(lists, limit))) {
+				return false;
+			} // end if
+		} // end for
+		return true;
+	} // end checkMerge()
+
+	/**
+	 * Score merges must match brute force on 3000 random cases: the limit docIds with the
+	 * highest scores, ties to the lower docId, each docId once with its highest score, no -1
+	 * padding, and missing shards skipped. Scores are drawn from a small range to get ties.
+	 */
+	private static boolean checkScoreMerge() {
+		Random rand = new Random(2);
+		for (int t = 0; t < 3000; t++) {
+			int[][] lists = new int [1 + rand.nextInt(5)][];
+			int[][] scores = new int [lists.length][];
+			final Map<Integer,Integer> best = new HashMap<Integer,Integer>();
+			for (int i = 0; i < lists.length; i++) {
+				if (rand.nextInt(6) == 0) {
+					continue;
+				} // end if
+				// a shard's docIds, best first, each with its own score
+				final Map<Integer,Integer> shard = new HashMap<Integer,Integer>();
+				int n = rand.nextInt(20);
+				while (shard.size() < n) {
+					shard.put(rand.nextInt(100), rand.nextInt(30));
+				} // end while
+				List<Integer> ranked = new ArrayList<Integer>(shard.keySet());
+				ranked.sort(new Comparator<Integer>() {
+					public int compare(Integer a, Integer b) {
+						int c = Integer.compare(shard.get(b), shard.get(a));
+						return (c != 0) ? c : Integer.compare(a, b);
+					} // end compare()
+				});
+				lists[i] = new int [n + ((rand.nextInt(4) == 0) ? 3 : 0)];
+				scores[i] = new int [lists[i].length];
+				Arrays.fill(lists[i], -1);
+				for (int d = 0; d < n; d++) {
+					int docId = ranked.get(d);
+					lists[i][d] = docId;
+					scores[i][d] = shard.get(docId);
+					if (!best.containsKey(docId) || best.get(docId) < shard.get(docId)) {
+						best.put(docId, shard.get(docId));
+					} // end if
+				} // end for
+			} // end for
+
+			// brute force: every docId at its highest score, sorted
+			List<Integer> all = new ArrayList<Integer>(best.keySet());
+			all.sort(new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					int c = Integer.compare(best.get(b), best.get(a));
+					return (c != 0) ? c : Integer.compare(a, b);
+				} // end compare()
+			});
+			int limit = 1 + rand.nextInt(25);
+			int[] expected = new int [Math.min(limit, all.size())];
+			int[] expectedScores = new int [expected.length];
+			for (int d = 0; d < expected.length; d++) {
+				expected[d] = all.get(d);
+				expectedScores[d] = best.get(expected[d]);
+			} // end for
+
+			ScoredDocIds merged = ShardBroker.mergeByScore(lists, scores, limit);
+			if (!Arrays.equals(expected, merged.getDocIds()) || !Arrays.equals(expectedScores, merged.getScores())) {
+				return false;
+			} // end if
+		} // end for
+		return true;
+	} // end checkScoreMerge()
+
+	/**
+	 * Queries to a shard that never answers must fail at their deadline and leave nothing
+	 * pending, and so must a cancelled query.
+	 */
+	private static boolean checkClientDeadlines() throws Exception {
+		FakeShard slow = new FakeShard(new int[] {1, 2, 3}, null, 100000);
+		IndexClient client = new IndexClient(IndexClient.parseEndpoints(slow.endpoint()), 2, 200);
+		try {
+
+			long start = System.nanoTime();
+			try {
+				client.query(3, "x");
+				return false;
+			} catch (IOException e) {
+				long millis = (System.nanoTime() - start) / 1000000;
+				if (millis < 200 || millis > 2000) {
+					return false;
+				} // end if
+			} // end try/catch
+
+			List<CompletableFuture<int[]>> futures = new ArrayList<CompletableFuture<int[]>>();
+			for (int i = 0; i < 1000; i++) {
+				futures.add(client.queryAsync(3, "q" + i));
+			} // end for
+			for (CompletableFuture<int[]> future : futures) {
+				try {
+					future.get(5, TimeUnit.SECONDS);
+					return false;
+				} catch (ExecutionException e) {
+					// expected
+				} // end try/catch
+			} // end for
+
+			CompletableFuture<int[]> cancelled = client.queryAsync(3, "cancel me", 100000);
+			cancelled.cancel(false);
+
+			// the pending entries go in callbacks that may run just after the futures complete
+			Thread.sleep(100);
+			return client.getPendingCount() == 0;
+
+		} finally {
+			client.close();
+			slow.close();
+		} // end try/finally
+	} // end checkClientDeadlines()
+
+	/**
+	 * With one slow and one dead shard out of four, a query must return the other two shards'
+	 * merged answer at the deadline, marked partial, and leave nothing pending on the slow one.
+	 * A ranked query must merge the two answers by score.
+	 */
+	private static boolean checkBrokerDeadline() throws Exception {
+		FakeShard a = new FakeShard(new int[] {1, 4, 9, 12, 30}, new int[] {50, 40, 30, 20, 10}, 5);
+		FakeShard b = new FakeShard(new int[] {2, 4, 10, 11}, new int[] {45, 44, 43, 42}, 20);
+		FakeShard slow = new FakeShard(new int[] {0, 3, 5}, new int[] {99, 98, 97}, 100000);
+		IndexClient slowClient = new IndexClient(IndexClient.parseEndpoints(slow.endpoint()), 2, 100000);
+		List<IndexClient> shards = new ArrayList<IndexClient>();
+		shards.add(new IndexClient(a.endpoint()));
+		shards.add(new IndexClient(b.endpoint()));
+		shards.add(slowClient);
+		shards.add(new IndexClient(deadEndpoint()));
+		ShardBroker broker = new ShardBroker(shards, 250);
+		try {
+
+			long start = System.nanoTime();
+			ShardBroker.Result result = broker.query(6, "anything");
+			long millis = (System.nanoTime() - start) / 1000000;
+			if (!Arrays.equals(result.getDocIds(), new int[] {1, 2, 4, 9, 10, 11})
+					|| result.getShardsAnswered() != 2 || result.getShardCount() != 4 || !result.isPartial()
+					|| millis < 250 || millis > 2000) {
+				System.out.println("! Broker answered " + result + " after " + millis + " ms");
+				return false;
+			} // end if
+
+			result = broker.queryRankedAsync(4, "anything").get(5, TimeUnit.SECONDS);
+			if (!Arrays.equals(result.getDocIds(), new int[] {1, 2, 4, 10})
+					|| !Arrays.equals(result.getScores(), new int[] {50, 45, 44, 43}) || result.getShardsAnswered() != 2) {
+				System.out.println("! Broker ranked " + result);
+				return false;
+			} // end if
+
+			List<CompletableFuture<ShardBroker.Result>> futures = new ArrayList<CompletableFuture<ShardBroker.Result>>();
+			for (int i = 0; i < 200; i++) {
+				futures.add(broker.queryAsync(5, "q" + i));
+			} // end for
+			for (CompletableFuture<ShardBroker.Result> future : futures) {
+				if (future.get(5, TimeUnit.SECONDS).getShardsAnswered() != 2) {
+					return false;
+				} // end if
+			} // end for
+			Thread.sleep(100);
+			return slowClient.getPendingCount() == 0;
+
+		} finally {
+			broker.close();
+			a.close();
+			b.close();
+			slow.close();
+		} // end try/finally
+	} // end checkBrokerDeadline()
+
+	/**
+	 * The main test method.
+	 */
+	public static void main(String[] args) {
+
+		try {
+
+			logs = LogLibrary.instance("ShardBrokerTest.log");
+
+			if (checkWire()) {
+				logs.log("Front End", "no risk", "wire protocol test passed");
+			} else {
+				logs.log("Front End", "high risk", "wire protocol test failed");
+			} // end if
+
+			if (checkMerge()) {
+				logs.log("Front End", "no risk", "shard merge test passed");
+			} else {
+				logs.log("Front End", "high risk", "shard merge test failed");
+			} // end if
+
+			if (checkScoreMerge()) {
+				logs.log("Front End", "no risk", "shard score merge test passed");
+			} else {
+				logs.log("Front End", "high risk", "shard score merge test failed");
+			} // end if
+
+			if (checkClientDeadlines()) {
+				logs.log("Front End", "no risk", "index client deadline test passed");
+			} else {
+				logs.log("Front End", "high risk", "index client deadline test failed");
+			} // end if
+
+			if (checkBrokerDeadline()) {
+				logs.log("Front End", "no risk", "shard broker deadline test passed");
+			} else {
+				logs.log("Front End", "high risk", "shard broker deadline test failed");
+			} // end if
+
+		} catch (Exception e) {
+			System.out.println("! Could not run the shard broker test.");
+			e.printStackTrace();
+		} // end try/catch
+
+	} // end main()
+
+} // end ShardBrokerTest class
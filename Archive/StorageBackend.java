@@ -0,0 +1,53 @@
+package search.indexserver;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Storage backends an InvertedIndexFileReader can use for a chunk.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public enum StorageBackend {
+
+	/** memory-map the chunk (default) */
+	MAPPED,
+
+	/** positional FileChannel reads */
+	POSITIONAL,
+
+	/** seek() + read() on a RandomAccessFile (the original reader) */
+	RANDOM_ACCESS;
+
+	/**
+	 * Open a posting store for the given chunk file using this backend.
+	 * @param f chunk file
+	 * @return
+	 * @throws IOException
+	 */
+	public PostingStore open(File f) throws IOException {
+		switch (this) {
+		case MAPPED:
+			return new MappedPostingStore(f);
+		case POSITIONAL:
+			return new PositionalPostingStore(f);
+		default:
+			return new RandomAccessPostingStore(f);
+		} // end switch
+	} // end open()
+
+	/**
+	 * Pick a backend for the given chunk file.
+	 * Chunks are memory-mapped unless we are on a 32-bit JVM, where mapping
+	 * a large chunk would exhaust the address space.
+	 * @param f chunk file
+	 * @return
+	 */
+	public static StorageBackend forChunk(File f) {
+		String model = System.getProperty("sun.arch.data.model");
+		if ("32".equals(model) && f.length() > (256L << 20)) {
+			return POSITIONAL;
+		} // end if
+		return MAPPED;
+	} // end forChunk()
+
+} // end StorageBackend enum
@@ -0,0 +1,264 @@
+package search.indexserver;
+
+import java.util.Arrays;
+
+/**
+ * Matches query terms against text as whole words, ignoring case, without regexes.
+ * Text is split into words (runs of letters, digits and '_', like the regex \b). Terms are kept
+ * in a small open-addressing hash table of lowercased chars, keyed on their first word, so a
+ * term with punctuation inside ("e-mail", "don't") is looked up by its first word and then
+ * compared whole, separators included; a term matches where it starts and ends on a word
+ * boundary, as \bterm\b did. Words are hashed and compared in place, so classifying a token
+ * allocates nothing. Build one matcher per request; find() keeps the position of the last match,
+ * so a matcher must not be shared between threads.
+ * @author Sam Gunther, Adam Steinberger
+ */
+public class TermMatcher {
+
+	// first word of the terms in each slot
+	private final char[][] keys;
+	// lowercased terms starting with the slot's key, in increasing term index order
+	private final char[][][] terms;
+	private final int[][] indices;
+	private final int mask;
+	private int start = -1;
+	private int end = -1;
+	private int term = -1;
+	// end of the term matched by the last successful lookup()
+	private int lookupEnd = -1;
+
+	/**
+	 * @param terms query terms; a term that appears twice keeps its first index, and leading and
+	 * trailing punctuation of a term is ignored
+	 */
+	public TermMatcher(String[] terms) {
+
+		int capacity = 4;
+		while (capacity < 2 * terms.length) {
+			capacity <<= 1;
+		} // end while
+		this.keys = new char [capacity][];
+		this.terms = new char [capacity][][];
+		this.indices = new int [capacity][];
+		this.mask = capacity - 1;
+
+		for (int i = 0; i < terms.length; i++) {
+
+			// the term from its first word char to its last, lowercased
+			int s = 0;
+			int e = terms[i].length();
+			while (s < e && !isWordChar(terms[i].charAt(s))) {
+				s++;
+			} // end while
+			while (e > s && !isWordChar(terms[i].charAt(e - 1))) {
+				e--;
+			} // end while
+			if (s == e) {
+				continue;
+			} // end if
+			char[] chars = new char [e - s];
+			int firstWord = chars.length;
+			for (int c = 0; c < chars.length; c++) {
+				chars[c] = Character.toLowerCase(terms[i].charAt(s + c));
+				if (firstWord == chars.length && !isWordChar(chars[c])) {
+					firstWord = c;
+				} // end if
+			} // end for
+
+			int slot = hash(chars, 0, firstWord) & this.mask;
+			while (this.keys[slot] != null && !equals(this.keys[slot], chars, 0, firstWord)) {
+				slot = (slot + 1) & this.mask;
+			} // end while
+			if (this.keys[slot] == null) {
+				this.keys[slot] = Arrays.copyOf(chars, firstWord);
+				this.terms[slot] = new char[][] {chars};
+				this.indices[slot] = new int[] {i};
+			} else if (indexOf(this.terms[slot], chars) < 0) {
+				int n = this.terms[slot].length;
+				this.terms[slot] = Arrays.copyOf(this.terms[slot], n + 1);
+				this.terms[slot][n] = chars;
+				this.indices[slot] = Arrays.copyOf(this.indices[slot], n + 1);
+				this.indices[slot][n] = i;
+			} // end if
+
+		} // end for
+
+	} // end TermMatcher constructor
+
+	/**
+	 * Classify a token as isTerm() did: the lowest index of a term found as a whole word in it.
+	 * @param token
+	 * @return index of the term, or -1 if the token holds none
+	 */
+	public int match(CharSequence token) {
+		int best = -1;
+		int i = 0;
+		int n = token.length();
+		while (i < n) {
+			while (i < n && !isWordChar(token.charAt(i))) {
+				i++;
+			} // end while
+			int s = i;
+			while (i < n && isWordChar(token.charAt(i))) {
+				i++;
+			} // end while
+			if (i > s) {
+				int t = lookup(token, s, i);
+				if (t >= 0 && (best < 0 || t < best)) {
+					best = t;
+				} // end if
+			} // end if
+		} // end while
+		return best;
+	} // end match()
+
+	/**
+	 * Find the next term in the text. Matches do not overlap: the search goes on from the end
+	 * of the last one. Where terms of different lengths start at the same word, the one with
+	 * the lowest index is found, as match() would classify it.
+	 * @param text
+	 * @param from position to start looking at
+	 * @return true if a term was found; its position is then given by start(), end() and term()
+	 */
+	public boolean find(CharSequence text, int from) {
+		int i = Math.max(from, 0);
+		int n = text.length();
+		// a word cut by from is not a match
+		while (i > 0 && i < n && isWordChar(text.charAt(i - 1)) && isWordChar(text.charAt(i))) {
+			i++;
+		} // end while
+		while (i < n) {
+			while (i < n && !isWordChar(text.charAt(i))) {
+				i++;
+			} // end while
+			int s = i;
+			while (i < n && isWordChar(text.charAt(i))) {
+				i++;
+			} // end while
+			if (i > s) {
+				int t = lookup(text, s, i);
+				if (t >= 0) {
+					this.start = s;
+					this.end = this.lookupEnd;
+					this.term = t;
+					return true;
+				} // end if
+			} // end if
+		} // end while
+		this.start = this.end = this.term = -1;
+		return false;
+	} // end find()
+
+	/**
+	 * @return start of the last term found
+	 */
+	public int start() {
+		return this.start;
+	} // end start()
+
+	/**
+	 * @return end (exclusive) of the last term found
+	 */
+	public int end() {
+		return this.end;
+	} // end end()
+
+	/**
+	 * @return index of the last term found
+	 */
+	public int term() {
+		return this.term;
+	} // end term()
+
+	/**
+	 * Look up the terms starting with the word text[s, e), ignoring case.
+	 * @return lowest index of a term that matches there whole and ends on a word boundary, or -1;
+	 * the end of the matched term is left in lookupEnd
+	 */
+	private int lookup(CharSequence text, int s, int e) {
+		int slot = hash(text, s, e) & this.mask;
+		char[] key;
+		while ((key = this.keys[slot]) != null) {
+			if (equals(key, text, s, e)) {
+				char[][] candidates = this.terms[slot];
+				for (int k = 0; k < candidates.length; k++) {
+					if (matchesAt(candidates[k], text, s)) {
+						this.lookupEnd = s + candidates[k].length;
+						return this.indices[slot][k];
+					} // end if
+				} // end for
+				return -1;
+			} // end if
+			slot = (slot + 1) & this.mask;
+		} // end while
+		return -1;
+	} // end lookup()
+
+	/**
+	 * @return true if the text holds term at s, ignoring case, and the term ends on a word boundary
+	 */
+	private static boolean matchesAt(char[] term, CharSequence text, int s) {
+		int e = s + term.length;
+		if (e > text.length() || !equals(term, text, s, e)) {
+			return false;
+		} // end if
+		return e == text.length() || !isWordChar(text.charAt(e));
+	} // end matchesAt()
+
+	/**
+	 * @return position of term in terms, or -1
+	 */
+	private static int indexOf(char[][] terms, char[] term) {
+		for (int k = 0; k < terms.length; k++) {
+			if (Arrays.equals(terms[k], term)) {
+				return k;
+			} // end if
+		} // end for
+		return -1;
+	} // end indexOf()
+
+	private static int hash(char[] key, int s, int e) {
+		int h = 0;
+		for (int i = s; i < e; i++) {
+			h = 31 * h + key[i];
+		} // end for
+		return h ^ (h >>> 16);
+	} // end hash()
+
+	private static int hash(CharSequence text, int s, int e) {
+		int h = 0;
+		for (int i = s; i < e; i++) {
+			h = 31 * h + Character.toLowerCase(text.charAt(i));
+		} // end for
+		return h ^ (h >>> 16);
+	} // end hash()
+
+	private static boolean equals(char[] key, char[] other, int s, int e) {
+		if (key.length != e - s) {
+			return false;
+		} // end if
+		for (int i = s; i < e; i++) {
+			if (key[i - s] != other[i]) {
+				return false;
+			} // end if
+		} // end for
+		return true;
+	} // end equals()
+
+	private static boolean equals(char[] key, CharSequence text, int s, int e) {
+		if (key.length != e - s) {
+			return false;
+		} // end if
+		for (int i = s; i < e; i++) {
+			if (key[i - s] != Character.toLowerCase(text.charAt(i))) {
+				return false;
+			} // end if
+		} // end for
+		return true;
+	} // end equals()
+
+	private static boolean isWordChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '_';
+	} // end isWordChar()
+
+} // end TermMatcher class
@@ -0,0 +1,178 @@
+package search.indexserver;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import search.common.LogLibrary;
+
+/**
+ * Test TermMatcher against the \bterm\b regexes CaptionGenerator used before it, on random
+ * tokens and texts made of words that are terms, differ from terms only in case, contain
+ * terms as part of a longer word, or are terms with punctuation inside ("e-mail", "don't").
+ * @author Sam Gunther, Adam Steinberger
+ */
+public class TermMatcherTest {
+
+	private static LogLibrary logs;
+
+	private static final String[] VOCAB = {"cat", "Cat", "CAT", "black", "dog", "cats", "a", "the",
+			"b_c", "x1", "1", "catdog", "hello", "HeLLo", "e-mail", "E-Mail", "e", "mail", "don't",
+			"don", "t", "e-mail-x"};
+	private static final String[] SEPARATORS = {"", " ", ",", ".", "-", "'", "\"", "(", "_", "  "};
+
+	/**
+	 * Pick 1 to 3 query terms, lowercased like the front end sends them.
+	 */
+	private static String[] randomTerms(Random rand) {
+		String[] terms = new String [1 + rand.nextInt(3)];
+		for (int i = 0; i < terms.length; i++) {
+			terms[i] = VOCAB[rand.nextInt(VOCAB.length)].toLowerCase();
+		} // end for
+		return terms;
+	} // end randomTerms()
+
+	/**
+	 * Join words from the vocabulary with random separators.
+	 */
+	private static String randomText(Random rand, int words) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			text.append(SEPARATORS[rand.nextInt(SEPARATORS.length)]);
+			text.append(VOCAB[rand.nextInt(VOCAB.length)]);
+		} // end for
+		text.append(SEPARATORS[rand.nextInt(SEPARATORS.length)]);
+		return text.toString();
+	} // end randomText()
+
+	/**
+	 * Compile the regexes CaptionGenerator used to build for its terms.
+	 */
+	private static Pattern[] regexes(String[] terms) {
+		Pattern[] regexes = new Pattern [terms.length];
+		for (int i = 0; i < terms.length; i++) {
+			regexes[i] = Pattern.compile("\\b" + terms[i].toLowerCase() + "\\b");
+		} // end for
+		return regexes;
+	} // end regexes()
+
+	/**
+	 * The old isTerm(): index of the first term whose regex matches the lowercased token.
+	 */
+	private static int isTerm(Pattern[] regexes, String token) {
+		for (int i = 0; i < regexes.length; i++) {
+			if (regexes[i].matcher(token.toLowerCase()).find()) {
+				return i;
+			} // end if
+		} // end for
+		return -1;
+	} // end isTerm()
+
+	/**
+	 * match() must classify 200k random tokens as isTerm() did.
+	 */
+	private static boolean checkMatch() {
+		Random rand = new Random(1);
+		for (int t = 0; t < 200000; t++) {
+			String[] terms = randomTerms(rand);
+			String token = randomText(rand, 1 + rand.nextInt(3));
+			if (new TermMatcher(terms).match(token) != isTerm(regexes(terms), token)) {
+				System.out.println("! match() differs on \"" + token + "\"");
+				return false;
+			} // end if
+		} // end for
+		return true;
+	} // end checkMatch()
+
+	/**
+	 * find() must step through the matches the regexes find in a text, in order, each with the
+	 * first index of a term matching at its start, skipping matches that overlap the last one.
+	 */
+	private static boolean checkFind() {
+		Random rand = new Random(2);
+		for (int t = 0; t < 20000; t++) {
+			String[] terms = randomTerms(rand);
+			String text = randomText(rand, rand.nextInt(30));
+
+			// start of each regex match -> end and term
+			TreeMap<Integer,int[]> expected = new TreeMap<Integer,int[]>();
+			Pattern[] regexes = regexes(terms);
+			for (int i = 0; i < regexes.length; i++) {
+				Matcher m = regexes[i].matcher(text.toLowerCase());
+				while (m.find()) {
+					if (!expected.containsKey(m.start())) {
+						expected.put(m.start(), new int [] {m.end(), i});
+					} // end if
+				} // end while
+			} // end for
+
+			TermMatcher matcher = new TermMatcher(terms);
+			int from = 0;
+			for (Map.Entry<Integer,int[]> match : expected.entrySet()) {
+				if (match.getKey() < from) {
+					continue;
+				} // end if
+				if (!matcher.find(text, from) || matcher.start() != match.getKey()
+						|| matcher.end() != match.getValue()[0] || matcher.term() != match.getValue()[1]) {
+					System.out.println("! find() differs on \"" + text + "\"");
+					return false;
+				} // end if
+				from = matcher.end();
+			} // end for
+			if (matcher.find(text, from)) {
+				System.out.println("! find() found too much in \"" + text + "\"");
+				return false;
+			} // end if
+		} // end for
+		return true;
+	} // end checkFind()
+
+	/**
+	 * Punctuated terms must match only as a whole, and only on word boundaries.
+	 */
+	private static boolean checkPunctuated() {
+		TermMatcher matcher = new TermMatcher(new String[] {"e-mail", "don't"});
+		return matcher.match("send e-mail now") == 0 && matcher.match("(E-Mail)") == 0
+				&& matcher.match("don't") == 1 && matcher.match("e-mails") == -1
+				&& matcher.match("e--mail") == -1 && matcher.match("mail") == -1
+				&& matcher.find("send e-mail now", 0) && matcher.start() == 5 && matcher.end() == 11
+				&& matcher.term() == 0 && !matcher.find("send e-mail now", 11);
+	} // end checkPunctuated()
+
+	/**
+	 * The main test method.
+	 */
+	public static void main(String[] args) {
+
+		try {
+
+			logs = LogLibrary.instance("TermMatcherTest.log");
+
+			if (checkMatch()) {
+				logs.log("Caption Server", "no risk", "term match test passed");
+			} else {
+				logs.log("Caption Server", "high risk", "term match test failed");
+			} // end if
+
+			if (checkPunctuated()) {
+				logs.log("Caption Server", "no risk", "punctuated term test passed");
+			} else {
+				logs.log("Caption Server", "high risk", "punctuated term test failed");
+			} // end if
+
+			if (checkFind()) {
+				logs.log("Caption Server", "no risk", "term find test passed");
+			} else {
+				logs.log("Caption Server", "high risk", "term find test failed");
+			} // end if
+
+		} catch (Exception e) {
+			System.out.println("! Could not run the term matcher test.");
+			e.printStackTrace();
+		} // end try/catch
+
+	} // end main()
+
+} // end TermMatcherTest class
@@ -0,0 +1,86 @@
+package search.indexserver;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Union the posting lists of all words of an OR query at once.
+ * The cursors are kept in a min-heap ordered by their current docId, so the smallest docId
+ * of all lists is always on top. Each docId is emitted once, and the union stops as soon as
+ * limit docIds have been emitted.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class Union {
+
+	/**
+	 * Union posting lists.
+	 * @param cursors one unused cursor per word
+	 * @param limit maximum number of docIds to return
+	 * @return the first limit docIds found in any list, in increasing order without duplicates
+	 * @throws IOException
+	 */
+	public static int[] union(PostingCursor[] cursors, int limit) throws IOException {
+
+		// position every cursor on its first docId and heap the ones that have any
+		PostingCursor[] heap = new PostingCursor [cursors.length];
+		long total = 0;
+		int size = 0;
+		for (PostingCursor cursor : cursors) {
+			if (cursor.nextDoc() != PostingCursor.NO_MORE_DOCS) {
+				heap[size++] = cursor;
+				total += cursor.cost();
+			} // end if
+		} // end for
+		for (int i = size / 2 - 1; i >= 0; i--) {
+			siftDown(heap, size, i);
+		} // end for
+
+		int[] result = new int [(int) Math.max(Math.min(limit, total), 0)];
+		int n = 0;
+
+		while (size > 0 && n < result.length) {
+
+			// emit the smallest docId, then move every cursor on it past it
+			int docId = heap[0].docId();
+			result[n++] = docId;
+
+			while (size > 0 && heap[0].docId() == docId) {
+				if (heap[0].nextDoc() == PostingCursor.NO_MORE_DOCS) {
+					heap[0] = heap[--size];
+					heap[size] = null;
+				} // end if
+				if (size > 0) {
+					siftDown(heap, size, 0);
+				} // end if
+			} // end while
+
+		} // end while
+
+		return (n < result.length) ? Arrays.copyOf(result, n) : result;
+
+	} // end union()
+
+	/**
+	 * Restore the heap order below position i.
+	 */
+	private static void siftDown(PostingCursor[] heap, int size, int i) {
+		PostingCursor cursor = heap[i];
+		int docId = cursor.docId();
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				break;
+			} // end if
+			if (child + 1 < size && heap[child + 1].docId() < heap[child].docId()) {
+				child++;
+			} // end if
+			if (heap[child].docId() >= docId) {
+				break;
+			} // end if
+			heap[i] = heap[child];
+			i = child;
+		} // end while
+		heap[i] = cursor;
+	} // end siftDown()
+
+} // end Union class
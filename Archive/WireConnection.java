@@ -0,0 +1,123 @@
+package search.indexserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server side of one WireProtocol connection. The listener's thread reads requests with
+ * read() and answers each with reply() whenever it is ready, from any thread; a writer thread
+ * sends the answers in the order they are ready and closes the connection once the client has
+ * stopped sending and every request it sent has been answered.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class WireConnection {
+
+	// queued after the last answer of the connection
+	private static final WireProtocol.Message END = new WireProtocol.Message(WireProtocol.ERROR, 0);
+
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final BlockingQueue<WireProtocol.Message> replies = new LinkedBlockingQueue<WireProtocol.Message>();
+
+	// requests not yet answered, plus one while the client may still send more
+	private final AtomicInteger pending = new AtomicInteger(1);
+
+	/**
+	 * Open a connection and start its writer thread.
+	 * @param socket
+	 * @param writers runs the writer thread
+	 * @throws IOException
+	 */
+	public WireConnection(Socket socket, Executor writers) throws IOException {
+		this.socket = socket;
+		socket.setTcpNoDelay(true);
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		writers.execute(new Runnable() {
+			public void run() {
+				writeReplies();
+			} // end run()
+		});
+	} // end WireConnection constructor
+
+	/**
+	 * Read the next request. Every request returned must be answered with reply().
+	 * After the last request (null, or an exception) call finish().
+	 * @return the request, or null once the client has stopped sending
+	 * @throws IOException
+	 */
+	public WireProtocol.Message read() throws IOException {
+		WireProtocol.Message request = WireProtocol.read(this.in);
+		if (request != null) {
+			this.pending.incrementAndGet();
+		} // end if
+		return request;
+	} // end read()
+
+	/**
+	 * Queue the answer to a request read from this connection.
+	 * @param answer
+	 */
+	public void reply(WireProtocol.Message answer) {
+		this.replies.add(answer);
+		done();
+	} // end reply()
+
+	/**
+	 * Note that no more requests will be read; the connection closes once they are answered.
+	 */
+	public void finish() {
+		done();
+	} // end finish()
+
+	public Socket getSocket() {
+		return this.socket;
+	} // end getSocket()
+
+	private void done() {
+		if (this.pending.decrementAndGet() == 0) {
+			this.replies.add(END);
+		} // end if
+	} // end done()
+
+	/**
+	 * Send answers as they are queued; answers already waiting go out in the same packet.
+	 */
+	private void writeReplies() {
+
+		try {
+
+			WireProtocol.Message reply;
+			while ((reply = this.replies.take()) != END) {
+				WireProtocol.write(this.out, reply);
+				if (this.replies.isEmpty()) {
+					this.out.flush();
+				} // end if
+			} // end while
+
+			this.out.flush();
+
+		} catch (Exception e) {
+			System.out.println("! Could not send answers to " + this.socket.getRemoteSocketAddress() + ".");
+			e.printStackTrace();
+		} finally {
+			try {
+				this.socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} // end try/catch
+			System.out.println("! Remote client " + this.socket.getInetAddress() + " disconnected");
+		} // end try/catch/finally
+
+	} // end writeReplies()
+
+} // end WireConnection class
@@ -0,0 +1,292 @@
+package search.indexserver;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Binary protocol spoken between the front end, index servers and caption servers.
+ *
+ * Every message is a frame: an int length, then that many bytes holding a one byte type, an int
+ * request ID and the type's payload. Clients pick the request IDs; a server answers each request
+ * with one message carrying the same ID, as soon as it is ready, so a client may send many
+ * requests on one connection without waiting and must match answers by ID, not by order.
+ *
+ * Payloads are made of varints (7 bits per byte, low bits first), strings (varint length, then
+ * UTF-8 bytes) and docId lists (varint count + 1, or 0 for null, then each docId as the zigzag
+ * varint of its difference from the one before, so sorted lists of close docIds take a byte or
+ * two per docId and unsorted ranked lists still work).
+ *
+ * Requests and answers:
+ * QUERY: varint limit (0 for the server's default; servers may cap it), string query;
+ *   answered by DOC_IDS: docIds (null if none found)
+ * RANKED_QUERY: varint limit, string query; answered by SCORED_DOC_IDS: docIds best first (null
+ *   if none found), then the BM25 score of each as a varint fixed-point number (ScoredDocIds)
+ * CAPTION: varint docId, strings terms; answered by CAPTIONS with one caption
+ * CAPTION_BATCH: varint timeoutMillis (0 for the server's default), varint count, varint docIds, strings terms;
+ *   answered by CAPTIONS in the order of the docIds, null where a caption missed the deadline
+ * Any request may instead be answered by ERROR: string message.
+ * @author Adam Steinberger, Sam Gunther
+ */
+public class WireProtocol {
+
+	public static final byte QUERY = 1;
+	public static final byte RANKED_QUERY = 2;
+	public static final byte DOC_IDS = 3;
+	public static final byte CAPTION = 4;
+	public static final byte CAPTION_BATCH = 5;
+	public static final byte CAPTIONS = 6;
+	public static final byte ERROR = 7;
+	public static final byte SCORED_DOC_IDS = 8;
+
+	// longest frame accepted, so a corrupt length cannot make us allocate gigabytes
+	public static final int MAX_FRAME_LENGTH = 16 << 20;
+
+	private static final int HEADER_LENGTH = 5;
+
+	/**
+	 * One message, built up with the put methods or read back with the get methods.
+	 */
+	public static class Message {
+
+		private byte[] buf;
+		private int length;
+		private int pos;
+
+		/**
+		 * Start a message to send.
+		 * @param type
+		 * @param requestId
+		 */
+		public Message(byte type, int requestId) {
+			this.buf = new byte [64];
+			this.buf[0] = type;
+			putIntAt(1, requestId);
+			this.length = HEADER_LENGTH;
+		} // end Message constructor
+
+		private Message(byte[] buf) {
+			this.buf = buf;
+			this.length = buf.length;
+			this.pos = HEADER_LENGTH;
+		} // end Message constructor
+
+		public byte getType() {
+			return this.buf[0];
+		} // end getType()
+
+		public int getRequestId() {
+			return ((this.buf[1] & 0xff) << 24) | ((this.buf[2] & 0xff) << 16)
+					| ((this.buf[3] & 0xff) << 8) | (this.buf[4] & 0xff);
+		} // end getRequestId()
+
+		public Message putVarInt(int value) {
+			ensure(5);
+			while ((value & ~0x7f) != 0) {
+				this.buf[this.length++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			} // end while
+			this.buf[this.length++] = (byte) value;
+			return this;
+		} // end putVarInt()
+
+		public Message putString(String s) {
+			byte[] b = s.getBytes(CompactLexicon.UTF8);
+			putVarInt(b.length);
+			ensure(b.length);
+			System.arraycopy(b, 0, this.buf, this.length, b.length);
+			this.length += b.length;
+			return this;
+		} // end putString()
+
+		/**
+		 * @param strings strings, any of which may be null
+		 */
+		public Message putStrings(String[] strings) {
+			putVarInt(strings.length);
+			for (String s : strings) {
+				if (s == null) {
+					putVarInt(0);
+				} else {
+					byte[] b = s.getBytes(CompactLexicon.UTF8);
+					putVarInt(b.length + 1);
+					ensure(b.length);
+					System.arraycopy(b, 0, this.buf, this.length, b.length);
+					this.length += b.length;
+				} // end if
+			} // end for
+			return this;
+		} // end putStrings()
+
+		/**
+		 * @param docIds docIds in any order, or null
+		 */
+		public Message putDocIds(int[] docIds) {
+			if (docIds == null) {
+				return putVarInt(0);
+			} // end if
+			putVarInt(docIds.length + 1);
+			int prev = 0;
+			for (int docId : docIds) {
+				int delta = docId - prev;
+				putVarInt((delta << 1) ^ (delta >> 31));
+				prev = docId;
+			} // end for
+			return this;
+		} // end putDocIds()
+
+		/**
+		 * @param docIds docIds in any order, or null
+		 * @param scores fixed-point score of each docId; sent as 0 if null
+		 */
+		public Message putScoredDocIds(int[] docIds, int[] scores) {
+			putDocIds(docIds);
+			if (docIds != null) {
+				for (int i = 0; i < docIds.length; i++) {
+					putVarInt((scores == null) ? 0 : scores[i]);
+				} // end for
+			} // end if
+			return this;
+		} // end putScoredDocIds()
+
+		public int getVarInt() throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				if (this.pos >= this.length) {
+					throw new EOFException("Message ends inside a varint");
+				} // end if
+				byte b = this.buf[this.pos++];
+				value |= (b & 0x7f) << shift;
+				if (b >= 0) {
+					return value;
+				} // end if
+			} // end for
+			throw new IOException("Varint is too long");
+		} // end getVarInt()
+
+		/**
+		 * Read the number of items that follow, each taking at least one byte.
+		 * @return the count
+		 * @throws IOException if the count is negative or larger than what is left
+		 */
+		public int getCount() throws IOException {
+			return checkCount(getVarInt());
+		} // end getCount()
+
+		public String getString() throws IOException {
+			return getBytes(getVarInt());
+		} // end getString()
+
+		public String[] getStrings() throws IOException {
+			String[] strings = new String [getCount()];
+			for (int i = 0; i < strings.length; i++) {
+				int n = getVarInt();
+				strings[i] = (n == 0) ? null : getBytes(n - 1);
+			} // end for
+			return strings;
+		} // end getStrings()
+
+		public int[] getDocIds() throws IOException {
+			int n = getVarInt();
+			if (n == 0) {
+				return null;
+			} // end if
+			int[] docIds = new int [checkCount(n - 1)];
+			int prev = 0;
+			for (int i = 0; i < docIds.length; i++) {
+				int zigzag = getVarInt();
+				prev += (zigzag >>> 1) ^ -(zigzag & 1);
+				docIds[i] = prev;
+			} // end for
+			return docIds;
+		} // end getDocIds()
+
+		public ScoredDocIds getScoredDocIds() throws IOException {
+			int[] docIds = getDocIds();
+			if (docIds == null) {
+				return new ScoredDocIds(null, null);
+			} // end if
+			int[] scores = new int [checkCount(docIds.length)];
+			for (int i = 0; i < scores.length; i++) {
+				scores[i] = getVarInt();
+			} // end for
+			return new ScoredDocIds(docIds, scores);
+		} // end getScoredDocIds()
+
+		private String getBytes(int n) throws IOException {
+			if (n < 0 || n > this.length - this.pos) {
+				throw new EOFException("Message ends inside a string");
+			} // end if
+			String s = new String(this.buf, this.pos, n, CompactLexicon.UTF8);
+			this.pos += n;
+			return s;
+		} // end getBytes()
+
+		/**
+		 * Every item takes at least one byte, so a count larger than what is left is corrupt.
+		 */
+		private int checkCount(int n) throws IOException {
+			if (n < 0 || n > this.length - this.pos) {
+				throw new IOException("Count " + n + " runs past the end of the message");
+			} // end if
+			return n;
+		} // end checkCount()
+
+		private void ensure(int n) {
+			if (this.length + n > this.buf.length) {
+				this.buf = Arrays.copyOf(this.buf, Math.max(2 * this.buf.length, this.length + n));
+			} // end if
+		} // end ensure()
+
+		private void putIntAt(int at, int value) {
+			this.buf[at] = (byte) (value >>> 24);
+			this.buf[at + 1] = (byte) (value >>> 16);
+			this.buf[at + 2] = (byte) (value >>> 8);
+			this.buf[at + 3] = (byte) value;
+		} // end putIntAt()
+
+	} // end Message class
+
+	/**
+	 * Write one message. Callers sharing a stream must not write at the same time.
+	 * @param out
+	 * @param m
+	 * @throws IOException
+	 */
+	public static void write(DataOutputStream out, Message m) throws IOException {
+		out.writeInt(m.length);
+		out.write(m.buf, 0, m.length);
+	} // end write()
+
+	/**
+	 * Read one message.
+	 * @param in
+	 * @return the message, or null if the stream ended cleanly before it
+	 * @throws IOException if the stream ends inside a message or the frame is malformed
+	 */
+	public static Message read(DataInputStream in) throws IOException {
+		int first = in.read();
+		if (first < 0) {
+			return null;
+		} // end if
+		int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+		if (length < HEADER_LENGTH || length > MAX_FRAME_LENGTH) {
+			throw new IOException("Bad frame length " + length);
+		} // end if
+		byte[] buf = new byte [length];
+		in.readFully(buf);
+		return new Message(buf);
+	} // end read()
+
+	/**
+	 * @param requestId
+	 * @param message
+	 * @return an ERROR answer
+	 */
+	public static Message error(int requestId, String message) {
+		return new Message(ERROR, requestId).putString(message);
+	} // end error()
+
+} // end WireProtocol class